@@ -0,0 +1,251 @@
+package alix.fr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import alix.fr.Lexik.LexEntry;
+import alix.fr.Lexik.NameEntry;
+import alix.fr.query.Lexer;
+import alix.util.Chain;
+import alix.util.LocTrie;
+import alix.util.Occ;
+
+/**
+ * A frozen version of the dictionaries of {@link Lexik}, for tokenizers. The
+ * maps are private copies, never modified after the constructor, and final
+ * fields, so that a lexicon can be shared by tokenizers in many threads,
+ * without lock. Loading more words in {@link Lexik} does not change a lexicon
+ * already given, get another one with {@link Lexik#lexicon()}, both may be used
+ * in the same JVM.
+ *
+ * <pre>
+ * Lexicon lexicon = Lexik.lexicon();
+ * // in each thread
+ * Tokenizer toks = lexicon.tokenizer(text);
+ * </pre>
+ *
+ * Entries ({@link LexEntry}, {@link NameEntry}) are shared with Lexik, they are
+ * read only.
+ *
+ * @author glorieux-f
+ */
+public final class Lexicon
+{
+    /** Stop words */
+    private final Set<String> stop;
+    /** Words by orthographic form */
+    private final Map<String, LexEntry> word;
+    /** Names on which keep Capitalization */
+    private final Map<String, NameEntry> name;
+    /** Abbreviations with a final dot */
+    private final Map<String, String> brevidot;
+    /** Graphic normalization */
+    private final Map<String, String> orth;
+    /** Words with initial accentuated cap */
+    private final Map<String, String> caps;
+    /** Compound expressions, immutable */
+    private final LocTrie loc;
+    /** Rules to correct tags in context, read only after loading */
+    private final Lexer lexer;
+
+    /**
+     * Copy the dictionaries, should not be modified while copying.
+     */
+    Lexicon(final Set<String> stop, final Map<String, LexEntry> word, final Map<String, NameEntry> name,
+            final Map<String, String> brevidot, final Map<String, String> orth, final Map<String, String> caps,
+            final LocTrie loc, final Lexer lexer)
+    {
+        this.stop = Collections.unmodifiableSet(new HashSet<String>(stop));
+        this.word = Collections.unmodifiableMap(new HashMap<String, LexEntry>(word));
+        this.name = Collections.unmodifiableMap(new HashMap<String, NameEntry>(name));
+        this.brevidot = Collections.unmodifiableMap(new HashMap<String, String>(brevidot));
+        this.orth = Collections.unmodifiableMap(new HashMap<String, String>(orth));
+        this.caps = Collections.unmodifiableMap(new HashMap<String, String>(caps));
+        this.loc = loc;
+        this.lexer = lexer;
+    }
+
+    /**
+     * A tokenizer bound to this lexicon, for a text.
+     */
+    public Tokenizer tokenizer(final String text)
+    {
+        return new Tokenizer(this, text, null);
+    }
+
+    /**
+     * A tokenizer bound to this lexicon, for a text, xml or not.
+     */
+    public Tokenizer tokenizer(final String text, final Boolean xml)
+    {
+        return new Tokenizer(this, text, xml);
+    }
+
+    /**
+     * A tokenizer bound to this lexicon, texts to give later with
+     * {@link Tokenizer#text(String)} or {@link Tokenizer#reader(Readable)}.
+     */
+    public Tokenizer tokenizer(final Boolean xml)
+    {
+        return new Tokenizer(this, xml);
+    }
+
+    /**
+     * A tokenizer bound to this lexicon, for a stream of text.
+     */
+    public Tokenizer tokenizer(final Readable reader)
+    {
+        return new Tokenizer(this, reader, null);
+    }
+
+    /**
+     * A tokenizer bound to this lexicon, for a stream of text, xml or not.
+     */
+    public Tokenizer tokenizer(final Readable reader, final Boolean xml)
+    {
+        return new Tokenizer(this, reader, xml);
+    }
+
+    /**
+     * Compound expressions
+     */
+    public LocTrie loc()
+    {
+        return loc;
+    }
+
+    /**
+     * Rules to correct tags in context
+     */
+    public Lexer lexer()
+    {
+        return lexer;
+    }
+
+    /**
+     * Update an occurrence with lexical informations about a word, see
+     * {@link Lexik#word(Occ)}.
+     *
+     * @return true if entry found
+     */
+    public boolean word(final Occ occ)
+    {
+        String orth = this.orth.get(occ.graph());
+        if (orth != null) occ.orth(orth);
+        LexEntry entry = word.get(occ.orth());
+        if (entry == null) return false;
+        occ.lem(entry.lem);
+        occ.tag(entry.tag.code());
+        return true;
+    }
+
+    /**
+     * Update an occurrence with lexical informations about a name, see
+     * {@link Lexik#name(Occ)}.
+     *
+     * @return true if entry found
+     */
+    public boolean name(final Occ occ)
+    {
+        NameEntry entry = name.get(occ.orth());
+        if (entry == null) {
+            occ.orth().capitalize();
+            entry = name.get(occ.orth());
+        }
+        if (entry == null) return false;
+        occ.lem(occ.orth());
+        occ.tag(entry.tag);
+        return true;
+    }
+
+    /**
+     * Normalize graphical form of a chain with the table of graphical variants
+     */
+    public boolean orth(final Chain chain)
+    {
+        String orth = this.orth.get(chain);
+        if (orth == null) return false;
+        chain.copy(orth);
+        return true;
+    }
+
+    /**
+     * An abbreviation with a final dot, or null
+     */
+    public String brevidot(final Chain graph)
+    {
+        return brevidot.get(graph);
+    }
+
+    /**
+     * Lower case form of a word with an initial accentuated cap (Etat > état),
+     * or null
+     */
+    public String caps(final Chain graph)
+    {
+        return caps.get(graph);
+    }
+
+    /**
+     * Is it a stop word?
+     */
+    public boolean isStop(final CharSequence orth)
+    {
+        return stop.contains(orth);
+    }
+
+    /**
+     * Return the fields recorded for this orthographic form, or null
+     */
+    public LexEntry entry(final CharSequence orth)
+    {
+        return word.get(orth);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Lexicon " + word.size() + " words, " + name.size() + " names, " + loc;
+    }
+
+    /**
+     * Two lexicons in the same JVM, tokenizers in threads.
+     *
+     * @throws ParseException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, ParseException, InterruptedException
+    {
+        final String text = "Le Tarentule est au-dessus de la ville, à la lumière d’une lampe.";
+        final Lexicon standard = Lexik.lexicon();
+        Lexik.load(new BufferedReader(new StringReader("GRAPH;CAT\nTarentule;NAMEplace\n")), 0, "test");
+        final Lexicon local = Lexik.lexicon();
+        for (Lexicon lexicon : new Lexicon[] { standard, local }) {
+            final StringBuilder[] out = new StringBuilder[4];
+            Thread[] threads = new Thread[out.length];
+            for (int i = 0; i < threads.length; i++) {
+                final StringBuilder sb = out[i] = new StringBuilder();
+                threads[i] = new Thread(() -> {
+                    Tokenizer toks = lexicon.tokenizer(text);
+                    Occ occ;
+                    while ((occ = toks.word()) != null) sb.append(occ).append('\n');
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join();
+            for (int i = 1; i < out.length; i++) {
+                if (!out[i].toString().equals(out[0].toString())) System.out.println("Thread " + i + " differs");
+            }
+            System.out.println(lexicon);
+            System.out.println(out[0]);
+        }
+    }
+}
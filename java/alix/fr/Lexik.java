@@ -1,22 +1,30 @@
 package alix.fr;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import alix.fr.dic.Tag;
+import alix.fr.query.Lexer;
 import alix.util.Chain;
+import alix.util.LocTrie;
 import alix.util.Occ;
+import alix.util.Snapshot;
 import alix.util.StemTrie;
 
 /**
@@ -45,32 +53,49 @@ public class Lexik
     /** Graphic normalization (replacement) */
     public static HashMap<String, String> ORTH = new HashMap<String, String>((int) (100 * 0.75));
     private static short _ORTH = 5;
+    /** Compound expressions, compiled for the tokenizer */
+    public static LocTrie LOC;
+    /** Compound expressions collected from csv, compiled in {@link #LOC} */
+    private static LocTrie.Builder LOCS = new LocTrie.Builder();
+    private static short _LOC = 6;
     /*
-    public static StemTrie LOC = new StemTrie();
-    public static short _LOC = 6;
     public static StemTrie RULES = new StemTrie();
     public static short _RULES = 7;
     */
+    /** Rules to correct tags in context, for the tokenizer */
+    private static final Lexer LEXER = new Lexer();
+    /** Frozen copy of the dictionaries, null when a load has changed them */
+    private static Lexicon lexicon;
     /** Words with initial accentuated cap */
     public static HashMap<String, String> CAPS = new HashMap<String, String>();
     private static short _CAPS = 7;
+    /** Csv resources of the dictionaries, in load order */
+    static final String[] RESOURCES = { "dic/stop.csv", "dic/commune.csv", "dic/france.csv", "dic/forename.csv",
+            "dic/word.csv", "dic/orth.csv", "dic/brevidot.csv", "dic/name.csv", "dic/place.csv", "dic/author.csv",
+            "dic/caps.csv" };
+    /** File name of the binary snapshot of the dictionaries */
+    public static final String SNAPSHOT = "lexik.bin";
+    /** Header of the snapshot, change it with format */
+    private static final String MAGIC = "alix.fr.Lexik 1";
     /* Load dictionaries */
     static {
         try {
-            loadRes("dic/stop.csv", _STOP);
-            loadRes("dic/commune.csv", _NAME);
-            loadRes("dic/france.csv", _NAME);
-            // personnes passe sur les lieux
-            loadRes("dic/forename.csv", _NAME);
-            loadRes("dic/word.csv", _WORD);
-            // loadRes("dic/loc.csv", _LOC);
-            // loadRes( "dic/rules.csv", _RULES );
-            loadRes("dic/orth.csv", _ORTH);
-            loadRes("dic/brevidot.csv", _BREVIDOT);
-            loadRes("dic/name.csv", _NAME);
-            loadRes("dic/place.csv", _NAME);
-            loadRes("dic/author.csv", _NAME);
-            loadRes("dic/caps.csv", _CAPS);
+            ByteBuffer buf = Snapshot.open(Snapshot.path(Lexik.class, SNAPSHOT), MAGIC,
+                    Snapshot.stamp(Lexik.class, RESOURCES));
+            boolean loaded = false;
+            if (buf != null) {
+                try {
+                    read(buf);
+                    loaded = true;
+                }
+                catch (RuntimeException e) {
+                    clear();
+                }
+            }
+            if (!loaded) resources();
+            // compounds are not in the snapshot, compiled at each start
+            loadRes("dic/loc.csv", _LOC);
+            LEXER.loadRes("/alix/fr/dic/rules.csv");
             // dictionnaire local
             File f = new File(Lexik.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath());
             if (f.isFile()) f = f.getParentFile();
@@ -97,6 +122,150 @@ public class Lexik
     }
     static String url;
 
+    /**
+     * Load the dictionaries from the csv resources.
+     * 
+     * @throws IOException
+     * @throws ParseException
+     */
+    private static void resources() throws IOException, ParseException
+    {
+        loadRes("dic/stop.csv", _STOP);
+        loadRes("dic/commune.csv", _NAME);
+        loadRes("dic/france.csv", _NAME);
+        // personnes passe sur les lieux
+        loadRes("dic/forename.csv", _NAME);
+        loadRes("dic/word.csv", _WORD);
+        // loadRes("dic/loc.csv", _LOC);
+        // loadRes( "dic/rules.csv", _RULES );
+        loadRes("dic/orth.csv", _ORTH);
+        loadRes("dic/brevidot.csv", _BREVIDOT);
+        loadRes("dic/name.csv", _NAME);
+        loadRes("dic/place.csv", _NAME);
+        loadRes("dic/author.csv", _NAME);
+        loadRes("dic/caps.csv", _CAPS);
+    }
+
+    private static void clear()
+    {
+        STOP.clear();
+        WORD.clear();
+        NAME.clear();
+        BREVIDOT.clear();
+        ORTH.clear();
+        CAPS.clear();
+    }
+
+    /**
+     * Load the dictionaries from a snapshot, no csv parsing.
+     */
+    private static void read(ByteBuffer buf)
+    {
+        for (int i = buf.getInt(); i > 0; i--) {
+            STOP.add(Snapshot.getString(buf));
+        }
+        for (int i = buf.getInt(); i > 0; i--) {
+            String orth = Snapshot.getString(buf);
+            short tag = buf.getShort();
+            String lem = Snapshot.getString(buf);
+            WORD.put(orth, new LexEntry(tag, lem, buf.getFloat(), buf.getFloat()));
+        }
+        for (int i = buf.getInt(); i > 0; i--) {
+            String name = Snapshot.getString(buf);
+            short tag = buf.getShort();
+            NAME.put(name, new NameEntry(tag, Snapshot.getString(buf)));
+        }
+        read(buf, BREVIDOT);
+        read(buf, ORTH);
+        read(buf, CAPS);
+    }
+
+    private static void read(ByteBuffer buf, HashMap<String, String> map)
+    {
+        for (int i = buf.getInt(); i > 0; i--) {
+            map.put(Snapshot.getString(buf), Snapshot.getString(buf));
+        }
+    }
+
+    private static void write(DataOutputStream out, HashMap<String, String> map) throws IOException
+    {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            Snapshot.putString(out, e.getKey());
+            Snapshot.putString(out, e.getValue());
+        }
+    }
+
+    /**
+     * Write a snapshot of the dictionaries from csv resources (local dictionary
+     * excluded), to be mapped at next start. Resources are loaded in new maps,
+     * the dictionaries in use (with the local one) are restored after.
+     * 
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static void snapshot(Path file) throws IOException, ParseException
+    {
+        synchronized (Lexik.class) {
+            final HashSet<String> stop = STOP;
+            final HashMap<String, LexEntry> word = WORD;
+            final HashMap<String, NameEntry> name = NAME;
+            final HashMap<String, String> brevidot = BREVIDOT;
+            final HashMap<String, String> orth = ORTH;
+            final HashMap<String, String> caps = CAPS;
+            STOP = new HashSet<String>();
+            WORD = new HashMap<String, LexEntry>();
+            NAME = new HashMap<String, NameEntry>();
+            BREVIDOT = new HashMap<String, String>();
+            ORTH = new HashMap<String, String>();
+            CAPS = new HashMap<String, String>();
+            try {
+                resources();
+                write(file);
+            }
+            finally {
+                STOP = stop;
+                WORD = word;
+                NAME = name;
+                BREVIDOT = brevidot;
+                ORTH = orth;
+                CAPS = caps;
+                // the cache may have been built on the maps of resources only
+                lexicon = null;
+            }
+        }
+    }
+
+    /**
+     * Write the dictionaries in a snapshot file.
+     */
+    private static void write(Path file) throws IOException
+    {
+        try (DataOutputStream out = Snapshot.create(file, MAGIC, Snapshot.stamp(Lexik.class, RESOURCES))) {
+            out.writeInt(STOP.size());
+            for (String stop : STOP) Snapshot.putString(out, stop);
+            out.writeInt(WORD.size());
+            for (Map.Entry<String, LexEntry> e : WORD.entrySet()) {
+                LexEntry entry = e.getValue();
+                Snapshot.putString(out, e.getKey());
+                out.writeShort(entry.tag.code());
+                Snapshot.putString(out, entry.lem);
+                out.writeFloat(entry.orthfreq);
+                out.writeFloat(entry.lemfreq);
+            }
+            out.writeInt(NAME.size());
+            for (Map.Entry<String, NameEntry> e : NAME.entrySet()) {
+                Snapshot.putString(out, e.getKey());
+                out.writeShort(e.getValue().tag.code());
+                Snapshot.putString(out, e.getValue().orth);
+            }
+            write(out, BREVIDOT);
+            write(out, ORTH);
+            write(out, CAPS);
+        }
+        Snapshot.commit(file);
+    }
+
     /**
      * Load a dictionary in the correct hash map
      * 
@@ -186,11 +355,11 @@ public class Lexik
                 RULES.add(cells);
                 continue;
             }
+            */
             else if (action == _LOC) {
-                LOC.add(cells);
+                LOCS.add(cells);
                 continue;
             }
-            */
             else if (action == _ORTH) {
                 if (cells.length < 3) {
                     System.err.println(src + "#" + n + " " + l);
@@ -215,6 +384,22 @@ public class Lexik
             }
         }
         buf.close();
+        // new compounds, compile again
+        if (mode == _LOC) LOC = LOCS.build();
+        synchronized (Lexik.class) {
+            lexicon = null;
+        }
+    }
+
+    /**
+     * A frozen copy of the dictionaries in their current state, to share
+     * between tokenizers in threads. Same object till a new load. Dictionaries
+     * should not be loaded while copying.
+     */
+    public static synchronized Lexicon lexicon()
+    {
+        if (lexicon == null) lexicon = new Lexicon(STOP, WORD, NAME, BREVIDOT, ORTH, CAPS, LOC, LEXER);
+        return lexicon;
     }
 
     /**
@@ -290,7 +475,9 @@ public class Lexik
      */
     public static boolean word(Occ occ)
     {
-        if (ORTH.containsKey(occ.graph())) occ.orth(ORTH.get(occ.graph()));
+        // one lookup, values are not null
+        String orth = ORTH.get(occ.graph());
+        if (orth != null) occ.orth(orth);
         LexEntry entry = Lexik.WORD.get(occ.orth());
         if (entry == null) return false;
         occ.lem(entry.lem);
@@ -326,8 +513,9 @@ public class Lexik
      */
     public static boolean orth(Chain chain)
     {
-        if (!ORTH.containsKey(chain)) return false;
-        chain.copy(ORTH.get(chain));
+        String orth = ORTH.get(chain);
+        if (orth == null) return false;
+        chain.copy(orth);
         return true;
     }
 
@@ -441,6 +629,12 @@ public class Lexik
         public final String orth;
         public final Tag tag;
 
+        public NameEntry(final int tag, final String orth)
+        {
+            this.tag = new Tag(tag);
+            this.orth = orth;
+        }
+
         public NameEntry(final int tag, final String[] cells)
         {
             if (tag == 0) this.tag = new Tag(Tag.NAME);
@@ -481,6 +675,14 @@ public class Lexik
             else this.lemfreq = 0;
         }
 
+        public LexEntry(final int tag, final String lem, final float orthfreq, final float lemfreq)
+        {
+            this.tag = new Tag(tag);
+            this.lem = lem;
+            this.orthfreq = orthfreq;
+            this.lemfreq = lemfreq;
+        }
+
         // ? score ?
         public LexEntry(final String cat, final String lem, final String orthfreq, final String lemfreq)
         {
@@ -507,6 +709,13 @@ public class Lexik
      */
     public static void main(String[] args) throws IOException, ParseException, URISyntaxException
     {
+        if (args.length > 0 && args[0].equals("snapshot")) {
+            long time = System.nanoTime();
+            Path file = (args.length > 1) ? Paths.get(args[1]) : Snapshot.path(Lexik.class, SNAPSHOT);
+            snapshot(file);
+            System.out.println(file + " written in " + ((System.nanoTime() - time) / 1000000) + " ms.");
+            return;
+        }
         // comp();
         Occ occ = new Occ();
         for (String token : (" l' animal Henri III Abailart  est lorsqu' et depuis quand est il en cette ville ?"
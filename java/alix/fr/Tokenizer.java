@@ -1,7 +1,15 @@
 package alix.fr;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashSet;
 
 import alix.fr.dic.Tag;
@@ -9,7 +17,7 @@ import alix.fr.query.Lexer;
 import alix.util.Char;
 import alix.util.Occ;
 import alix.util.OccChain;
-import alix.util.StemTrie.Stem;
+import alix.util.LocTrie;
 import alix.util.Chain;
 
 /**
@@ -19,6 +27,16 @@ import alix.util.Chain;
  * to tokenize Char array is a bit faster than String.charAt() but not enough to
  * be too complex;
  * 
+ * Text may be given as a complete String, or streamed from a {@link Reader} (or
+ * a {@link CharBuffer}, any {@link Readable}) through a sliding buffer, so that
+ * a big file is not loaded in memory. Positions (pointer, start and end of
+ * occurrences) are always absolute char index in the text. Lookahead needed
+ * for locutions and rules is done on the buffer of occurrences, which are
+ * copied from the text, so the char buffer keeps only the token in progress.
+ * 
+ * A tokenizer is for one thread, but tokenizers in many threads may share the
+ * same frozen dictionaries, see {@link Lexicon#tokenizer(String)}.
+ * 
  * TODO For OCR corrections SymSpell
  * http://blog.faroo.com/2015/03/24/fast-approximate-string-matching-with-large-edit-distances/
  * 
@@ -26,11 +44,23 @@ import alix.util.Chain;
  *
  */
 public class Tokenizer {
+    /** Default size of the sliding buffer for streamed text */
+    public static final int BUFSIZE = 1 << 16;
     /**
-     * The text, as a non mutable string. Same text could be shared as reference by
-     * multiple Tokenizer.
+     * Max chars searched for the end of a TEI header in a stream, all kept in
+     * buffer to come back if not found
      */
-    private String text;
+    public static final int HEADER_MAX = 1 << 20;
+    /** Source of text in streaming mode, null when all text is in buffer */
+    private Readable reader;
+    /** The chars of the text, all the text for a String, or a sliding window */
+    private char[] buf;
+    /** Absolute index in the text of the first char in buffer */
+    private int base;
+    /** Absolute index in the text after the last char in buffer */
+    private int limit;
+    /** Absolute index of the first char to keep when the buffer slides */
+    private int mark;
     /** Where we are in the text */
     private int pointer;
     /** An end index, may be set after init */
@@ -54,16 +84,16 @@ public class Tokenizer {
     private int right;
     /** Pointer on the current occurrence in the chain */
     private Occ occhere;
-    /** Handle on root of compound dictionary */
-    private Stem locroot = Lexik.LOC.getRoot();
-    /** Handle on root of rules dictionary */
-    static private Lexer lexer = new Lexer();
-    static {
-        try {
-            lexer.loadRes("/alix/fr/dic/rules.csv");
-        } catch (Exception e) {
-        }
-    }
+    /** Dictionaries, frozen, shared with other tokenizers */
+    private final Lexicon lexicon;
+    /** Compiled dictionary of compounds */
+    private final LocTrie loc;
+    /** Word code of the NAME slot in compounds (“NAME de NAME”) */
+    private final int locname;
+    /** Rules to correct tags in context, shared read only */
+    private final Lexer lexer;
+    /** Context of an occurrence for the rules, own to this tokenizer */
+    private final Occ[] window;
     /** A chain used for some testing */
     private Chain test = new Chain();
     /** used to test the word after */
@@ -111,21 +141,50 @@ public class Tokenizer {
     }
 
     /**
-     * Constructor for multiple
+     * Constructor for multiple, with the default lexicon
      * 
      * @param text
      */
     public Tokenizer(final Boolean xml) {
+        this(Lexik.lexicon(), xml);
+    }
+
+    /**
+     * Constructor for multiple, see {@link Lexicon#tokenizer(Boolean)}
+     */
+    Tokenizer(final Lexicon lexicon, final Boolean xml) {
+        this(lexicon);
         this.xml = xml;
-        this.text = null;
+        this.buf = null;
     }
 
     /**
-     * Constructor, give complete text in a String, release file handle.
+     * Bind to a lexicon.
+     */
+    private Tokenizer(final Lexicon lexicon) {
+        this.lexicon = lexicon;
+        this.loc = lexicon.loc();
+        this.locname = loc.code("NAME");
+        this.lexer = lexicon.lexer();
+        this.window = new Occ[lexer.width()];
+    }
+
+    /**
+     * Constructor, give complete text in a String, release file handle, with
+     * the default lexicon.
      * 
      * @param text
      */
     public Tokenizer(String text, final Boolean xml) {
+        this(Lexik.lexicon(), text, xml);
+    }
+
+    /**
+     * Constructor, give complete text in a String, see
+     * {@link Lexicon#tokenizer(String, Boolean)}
+     */
+    Tokenizer(final Lexicon lexicon, String text, final Boolean xml) {
+        this(lexicon);
         if (xml != null) {
             this.xml = xml;
         } else {
@@ -137,11 +196,49 @@ public class Tokenizer {
         text(text);
     }
 
+    /**
+     * Constructor, stream text from a reader, xml is guessed from first char.
+     * 
+     * @param reader
+     */
+    public Tokenizer(final Readable reader) {
+        this(reader, null);
+    }
+
+    /**
+     * Constructor, stream text from a reader (or a CharBuffer), with a bounded
+     * buffer. The reader is not closed.
+     * 
+     * @param reader
+     * @param xml
+     *            null to guess from first char
+     */
+    public Tokenizer(final Readable reader, final Boolean xml) {
+        this(Lexik.lexicon(), reader, xml);
+    }
+
+    /**
+     * Constructor, stream text from a reader, see
+     * {@link Lexicon#tokenizer(Readable, Boolean)}
+     */
+    Tokenizer(final Lexicon lexicon, final Readable reader, final Boolean xml) {
+        this(lexicon);
+        if (xml != null)
+            this.xml = xml;
+        reader(reader, xml == null);
+    }
+
     /**
      * Set text
      */
     public void text(String text) {
-        this.text = text + "\n"; // this hack will avoid lots of tests
+        reader = null;
+        buf = new char[text.length() + 1];
+        text.getChars(0, text.length(), buf, 0);
+        buf[text.length()] = '\n'; // this hack will avoid lots of tests
+        base = 0;
+        limit = buf.length;
+        mark = 0;
         pointer = 0;
         if (this.xml) {
             // useful for TEI files
@@ -152,22 +249,117 @@ public class Tokenizer {
                     pointer = pos;
             }
         }
-        end = text.length() - 1;
-        // on fait quoi ?
-        // System.out.println( "last char ? "+text.charAt( end - 1 ));
+        end = text.length();
         // start the buffer of occurrences, fill it with the needed occurrences for the
         // larger rule on the right size
         occhere = occbuf.first();
         maxright = lexer.maxright();
     }
 
+    /**
+     * Set a reader as the source of text, like {@link #text(String)}
+     */
+    public void reader(final Readable reader) {
+        reader(reader, false);
+    }
+
+    private void reader(final Readable reader, final boolean guess) {
+        this.reader = reader;
+        if (buf == null || buf.length != BUFSIZE)
+            buf = new char[BUFSIZE];
+        base = 0;
+        limit = 0;
+        mark = 0;
+        pointer = 0;
+        end = Integer.MAX_VALUE; // known at end of stream
+        if (guess) {
+            int pos = 0;
+            while (pos < end && Char.isSpace(charAt(pos)))
+                pos++;
+            this.xml = (charAt(pos) == '<');
+        }
+        if (this.xml) {
+            // useful for TEI files, header is kept in buffer to come back if not found,
+            // search is bounded, so is the buffer
+            int pos = indexOf("<teiHeader>", 0, 500);
+            if (pos > 0) {
+                pos = indexOf("</teiHeader>", pos, HEADER_MAX);
+                if (pos > 0)
+                    pointer = pos;
+            }
+        }
+        occhere = occbuf.first();
+        maxright = lexer.maxright();
+    }
+
+    /**
+     * Char at an absolute position in the text. Beyond the end of text, a '\n' is
+     * returned, as an ending space.
+     */
+    private char charAt(final int pos) {
+        if (pos < limit)
+            return buf[pos - base];
+        return fill(pos);
+    }
+
+    /**
+     * Read the stream till a position, the buffer slides to forget the chars
+     * before mark, or grows if the token in progress is bigger than the buffer.
+     */
+    private char fill(final int pos) {
+        while (pos >= limit) {
+            if (reader == null)
+                return '\n';
+            if (mark > base) {
+                System.arraycopy(buf, mark - base, buf, 0, limit - mark);
+                base = mark;
+            }
+            if (limit - base == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            int off = limit - base;
+            int n;
+            try {
+                if (reader instanceof Reader)
+                    n = ((Reader) reader).read(buf, off, buf.length - off);
+                else
+                    n = reader.read(CharBuffer.wrap(buf, off, buf.length - off));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (n < 0) {
+                reader = null;
+                end = Math.min(end, limit);
+                return '\n';
+            }
+            limit += n;
+        }
+        return buf[pos - base];
+    }
+
+    /**
+     * Search a String in text, from a position, before a max position.
+     * 
+     * @return absolute index, or -1 if not found
+     */
+    private int indexOf(final String s, int from, final int max) {
+        final int len = s.length();
+        for (int pos = from; pos < max && pos < end; pos++) {
+            int i = 0;
+            while (i < len && charAt(pos + i) == s.charAt(i))
+                i++;
+            if (i == len)
+                return pos;
+        }
+        return -1;
+    }
+
     /**
      * Set pointer position, especially to forward after an header
      * 
      * @param pos
      */
     public Tokenizer pointer(int pos) {
-        if (pos > 0 && pos < end)
+        if (pos > 0 && pos < end && pos >= base)
             pointer = pos;
         return this;
     }
@@ -178,7 +370,7 @@ public class Tokenizer {
      * @param pos
      */
     public Tokenizer end(int pos) {
-        if (pos > pointer && pos < text.length())
+        if (pos > pointer && (reader != null || pos < limit))
             end = pos;
         return this;
     }
@@ -234,12 +426,12 @@ public class Tokenizer {
         // no compound with punctuation
         if (!occhere.tag().isPun()) {
             // is this occurrence the first token of a compound ?
-            Stem stem = stemsearch(locroot, occhere);
+            int state = stemsearch(LocTrie.ROOT, occhere);
             // if yes, search in compound dictionary
-            if (stem != null)
-                locsearch(stem);
+            if (state != LocTrie.NONE)
+                locsearch(state);
         }
-        if (lexer.apply(occhere)) {
+        if (lexer.apply(occhere, window)) {
             // todo correct lem, according to rule
         }
 
@@ -248,45 +440,46 @@ public class Tokenizer {
     }
 
     /**
-     * 
+     * Go from a state of the locution trie with an occurrence, -1 if no
+     * transition.
      */
-    private Stem stemsearch(Stem stem, Occ occ) {
-        Stem tmp;
+    private int stemsearch(int state, Occ occ) {
+        int tmp;
         if (occ.isEmpty()) {
-            return null;
+            return LocTrie.NONE;
         }
         // NAME resolutions
         else if (occ.tag().isName()) {
-            return stem.get("NAME");
+            return loc.next(state, locname);
         }
         // verb, test lem for locution — pb for “mise{mettre} en œuvre”
         else if (occ.tag().isVerb()) {
-            tmp = stem.get(occ.lem());
+            tmp = loc.next(state, occ.lem());
             // n’importe quoi
-            if (tmp == null)
-                tmp = stem.get(occ.orth());
+            if (tmp == LocTrie.NONE)
+                tmp = loc.next(state, occ.orth());
             return tmp;
         }
         // D’alors
         else if (occ.graph().last() == '\'') {
             if (occ.graph().isFirstUpper()) {
                 test = test.copy(occ.graph()).toLower();
-                tmp = stem.get(test);
+                tmp = loc.next(state, test);
             } else {
-                tmp = stem.get(occ.graph());
+                tmp = loc.next(state, occ.graph());
             }
-            if (tmp == null)
-                tmp = stem.get(occ.orth());
+            if (tmp == LocTrie.NONE)
+                tmp = loc.next(state, occ.orth());
             return tmp;
         }
         // La Fontaine
         else if (occ.graph().isFirstUpper()) {
-            tmp = stem.get(occ.graph());
-            if (tmp == null)
-                tmp = stem.get(occ.orth());
+            tmp = loc.next(state, occ.graph());
+            if (tmp == LocTrie.NONE)
+                tmp = loc.next(state, occ.orth());
             return tmp;
         } else {
-            return stem.get(occ.orth());
+            return loc.next(state, occ.orth());
         }
     }
 
@@ -294,9 +487,8 @@ public class Tokenizer {
      * Explore tree of locutions, return the longest compound is already set with
      * first word, and position in the buffer is incremented
      */
-    private boolean locsearch(Stem stem) {
+    private boolean locsearch(int state) {
         short tag = 0;
-        Stem child;
         String orth = null;
         Occ scout = occhere; // an occurrence launch to search for compound
         Occ end = null;
@@ -309,9 +501,9 @@ public class Tokenizer {
             }
             scout = scout.next();
 
-            stem = stemsearch(stem, scout);
+            state = stemsearch(state, scout);
 
-            if (stem == null) {
+            if (state == LocTrie.NONE) {
                 // branch end, but nothing found, do nothing, go away
                 if (tag == 0) {
                     return false;
@@ -346,9 +538,9 @@ public class Tokenizer {
                 // occhere.lem().last('e');
                 return true;
             }
-            if (stem.tag() != 0) {
-                tag = stem.tag();
-                orth = stem.orth();
+            if (loc.tag(state) != 0) {
+                tag = loc.tag(state);
+                orth = loc.orth(state);
                 end = scout;
             }
         }
@@ -365,7 +557,6 @@ public class Tokenizer {
      *            occurrence to tag
      */
     public boolean token(Occ occ) {
-        Chain copy = new Chain();
         occ.tag(Tag.UNKNOWN);
         pointer = next(occ, pointer); // parse the text at pointer position
         if (pointer < 0)
@@ -430,17 +621,18 @@ public class Tokenizer {
         // upper case
         else if (Char.isUpperCase(c)) {
             // known as name, get it
-            if (Lexik.name(occ))
+            if (lexicon.name(occ))
                 return true;
             // test to lower, to see if it is a know word
             occ.orth().toLower();
-            if (Lexik.word(occ))
+            if (lexicon.word(occ))
                 return true;
             // Evolution ? > évolution ; TODO FREDERIC > Frédéric
-            String lc = Lexik.CAPS.get(occ.graph());
+            String lc = lexicon.caps(occ.graph());
             if (lc != null) {
-                occ.orth(lc.toLowerCase());
-                Lexik.word(occ);
+                // lower case in place, no String
+                occ.orth(lc).orth().toLower();
+                lexicon.word(occ);
                 return true;
             }
             // seems unknown name
@@ -466,7 +658,7 @@ public class Tokenizer {
             return true;
         }
         // known word, token will be updated
-        else if (Lexik.word(occ)) {
+        else if (lexicon.word(occ)) {
             return true;
         }
         // unknown word
@@ -494,15 +686,14 @@ public class Tokenizer {
         evstruct = EVNUL;
         if (pos < 0)
             return pos;
-        int end = this.end;
         boolean xml = this.xml; // jump xml tags ?
         boolean tagrec = false; // inside an xml tag, record
         boolean namerec = false; // inside an xml element name, record
         char c = 0;
         char lastchar;
-        while (pos < end) {
+        while (pos < this.end) { // end may be found while reading
             lastchar = c;
-            c = text.charAt(pos);
+            c = charAt(pos);
             pos++;
             // not XML, do not enter in tests after
             if (!xml)
@@ -534,7 +725,7 @@ public class Tokenizer {
             }
             // do not create a token on \n, but let \"
             if (c == '\\') {
-                char c2 = text.charAt(pos);
+                char c2 = charAt(pos);
                 if (Char.isLetter(c2))
                     pos++;
                 continue;
@@ -570,11 +761,12 @@ public class Tokenizer {
         Chain graph = occ.graph(); // work with local variables to limit lookups (“avoid getfield opcode”, read in
                                   // String source code)
         int lastpos = pos; // va servir
+        mark = pos; // chars before are not needed
         pos = fw(pos); // go to start of first token
         if (pos < 0)
             return pos; // end of text, finish
         boolean supsc = false; // xml tag inside word like <sup>, <sc>…
-        char c = text.charAt(pos); // should be start of a token
+        char c = charAt(pos); // should be start of a token
 
         if (evstruct != EVNUL) {
             // create a token here
@@ -598,11 +790,12 @@ public class Tokenizer {
         if (c == '.') {
             graph.append(c);
             occ.end(++pos);
-            if (pos >= text.length())
+            c2 = charAt(pos);
+            if (reader == null && pos >= limit)
                 return -1;
-            if (text.charAt(pos) != '.')
+            if (c2 != '.')
                 return pos;
-            while (text.charAt(pos) == '.') {
+            while (charAt(pos) == '.') {
                 pos++;
             }
             graph.copy("…");
@@ -612,7 +805,7 @@ public class Tokenizer {
         // - unicode HYPHEN-MINUS is punctuation & mathematical, and also a token char
         // test if there is a letter after, if not, it could be part of a word
         else if (c == '-') {
-            c2 = text.charAt(pos + 1);
+            c2 = charAt(pos + 1);
             if (c2 != '-') {
                 graph.append(c);
                 occ.end(++pos);
@@ -634,11 +827,11 @@ public class Tokenizer {
         while (true) {
             // xml entity ?
             // if ( c == '&' && Char.isLetter( text.charAt(pointer+1)) ) { }
-            if (c == '&' && xml && !Char.isSpace(text.charAt(pos + 1))) {
+            if (c == '&' && xml && !Char.isSpace(charAt(pos + 1))) {
                 int i = pos;
                 after.reset();
                 while (true) {
-                    c2 = text.charAt(i);
+                    c2 = charAt(i);
                     if (Char.isSpace(c2))
                         break;
                     after.append(c2);
@@ -660,19 +853,19 @@ public class Tokenizer {
             } // unknown char inside XML flow, breaking Excel copy/paste
               // test if there is a number after comma, if not, break here
             else if (c == ',') {
-                c2 = text.charAt(pos + 1);
+                c2 = charAt(pos + 1);
                 if (Char.isDigit(c2))
                     graph.append(c); // 15,5
                 else
                     break; // word,word
             } else if (c == '.') {
-                c2 = text.charAt(pos + 1);
+                c2 = charAt(pos + 1);
                 if (Char.isLetter(c2))
                     graph.append(c); // U.K.N.O.W.N
                 // TODO Fin de Phr. La phrase recommence.
                 else if (!Char.isToken(c2) || c2 == ',') { // end
                     graph.append(c);
-                    s = Lexik.brevidot(graph);
+                    s = lexicon.brevidot(graph);
                     // test if ending dot should be happened
                     if (s != null) {
                         pos++;
@@ -698,7 +891,7 @@ public class Tokenizer {
                 int i = pos + 1;
                 // -t- ? -ci ?
                 while (true) {
-                    c2 = text.charAt(i);
+                    c2 = charAt(i);
                     if (c2 == '-') {
                         after.append(c2);
                         break;
@@ -731,7 +924,7 @@ public class Tokenizer {
             }
             // go to next char
             ++pos;
-            c = text.charAt(pos);
+            c = charAt(pos);
 
             // test if token is finished; handle final dot and comma (',' is a token in
             // 16,5; '.' is token in A.D.N.)
@@ -757,12 +950,12 @@ public class Tokenizer {
     public boolean token(Chain t) {
         t.reset();
         int pos = pointer;
-        int max = end;
+        mark = pos;
         boolean first = true;
         char c;
         boolean intag = false;
-        while (++pos < max) {
-            c = text.charAt(pos);
+        while (++pos < end) {
+            c = charAt(pos);
             // xml ?
             if (!xml)
                 ;
@@ -876,9 +1069,53 @@ public class Tokenizer {
     }
 
     /**
-     * For testing Bugs — François I er
+     * Benchmark of {@link #token(Occ)} on a text file, with a reused
+     * occurrence. After warm-up rounds, give tokens by second, and bytes
+     * allocated by token (counter of the HotSpot thread, 0 expected in steady
+     * state).
+     */
+    static void bench(final String file, final int rounds) throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean alloc = null;
+        if (mx instanceof com.sun.management.ThreadMXBean)
+            alloc = (com.sun.management.ThreadMXBean) mx;
+        final long thread = Thread.currentThread().getId();
+        Occ occ = new Occ();
+        long tokens = 0;
+        long nanos = 0;
+        long bytes = 0;
+        // negative rounds are warm-up
+        for (int round = -rounds; round < rounds; round++) {
+            // text is copied in the tokenizer, not counted
+            Tokenizer toks = new Tokenizer(text);
+            long b = (alloc == null) ? 0 : alloc.getThreadAllocatedBytes(thread);
+            long time = System.nanoTime();
+            long n = 0;
+            while (toks.token(occ))
+                n++;
+            time = System.nanoTime() - time;
+            b = (alloc == null) ? -1 : alloc.getThreadAllocatedBytes(thread) - b;
+            if (round < 0)
+                continue;
+            tokens += n;
+            nanos += time;
+            bytes += b;
+            System.out.println(n + " tokens in " + time / 1000000 + " ms, " + Math.round(n * 1E9 / time)
+                    + " tokens/s, " + String.format("%.3f", (double) b / n) + " bytes/token");
+        }
+        System.out.println("Mean " + Math.round(tokens * 1E9 / nanos) + " tokens/s, "
+                + String.format("%.3f", (double) bytes / tokens) + " bytes/token");
+    }
+
+    /**
+     * For testing Bugs — François I er. Benchmark: bench file.txt [rounds]
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1 && args[0].equals("bench")) {
+            bench(args[1], (args.length > 2) ? Integer.parseInt(args[2]) : 10);
+            return;
+        }
         // maybe useful, the path of the project, but could be not consistent with
         // Path context =
         // Paths.get(Tokenizer.class.getClassLoader().getResource("").getPath()).getParent();
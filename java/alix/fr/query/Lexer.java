@@ -5,29 +5,40 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
 
 import alix.fr.Lexik;
 import alix.fr.dic.Tag;
+import alix.util.CharPack;
+import alix.util.IntList;
 import alix.util.Occ;
 
 /**
  * Rules to correct an occurrence chain according to context. TODO : send an
  * event to get some occurrence more ?
  * 
+ * Rules are compiled at loading. Candidate rules for an occurrence are found
+ * in a decision table by form of the center (an int from a packed dictionary)
+ * and tag prefix, rules by form and rules by tag are merged in rulebook order.
+ * The context of a rule is an array of tests, checked by index against a
+ * window of occurrences around the center, filled once by occurrence. After
+ * loading, a lexer is read only and may be shared by threads, each with its
+ * own window, see {@link #apply(Occ, Occ[])}.
+ * 
  * @author user
  *
  */
 public class Lexer
 {
+  /** Columns of the decision table, tag prefix is code >> 4 */
+  private static final int PREFIXES = 16;
   /** Book of rules, stored in order of reading */
   private Rule[] rulebook = new Rule[0];
-  /** Index of rules by form */
-  private HashMap<String, int[]> byform = new HashMap<String, int[]>();
-  /** Index of rules by tag */
-  private HashMap<Integer, int[]> bytag = new HashMap<Integer, int[]>();
+  /** Forms of centers, form id is entry + 1, 0 for a form without rule */
+  private CharPack forms = new CharPack.Builder().build();
+  /** Candidate rules by (form id, tag prefix), in rulebook order, or null */
+  private int[][] table = new int[PREFIXES + 1][];
   /** max left context needed for rules */
   private int maxleft = 0;
   /** max right context needed for rules */
@@ -68,8 +79,8 @@ public class Lexer
    */
   public void load(BufferedReader buf) throws IOException
   {
-    LinkedList<Rule> rulerec = new LinkedList<Rule>(Arrays.asList(rulebook));
-    int no = rulerec.size();
+    ArrayList<Rule> rulerec = new ArrayList<Rule>(Arrays.asList(rulebook));
+    ArrayList<Test> tests = new ArrayList<Test>();
     String line = null;
     while ((line = buf.readLine()) != null) {
       if (line.trim().isEmpty())
@@ -89,124 +100,158 @@ public class Lexer
       cells[3] = cells[3].trim().replaceAll("[\":]", "");
       tag = Tag.code(cells[3]);
       // tag unknown, continue ?
-      Test current;
-      Test last = null;
-      Test center;
+      tests.clear();
       String[] terms;
       // left context
       if (!cells[0].trim().isEmpty()) {
         terms = cells[0].trim().split(" ");
-        int left = 0;
         for (int i = 0; i < terms.length; i++) {
           if (terms[i].trim().isEmpty())
             continue;
-          current = test(terms[i]);
-          if (last != null) {
-            last.next(current);
-            current.prev(last);
-          }
-          last = current;
-          left++;
+          tests.add(test(terms[i]));
         }
-        if (left > maxleft)
-          maxleft = left;
       }
       // center
-      center = test(cells[1]);
-      if (last != null) {
-        last.next(center);
-        center.prev(last);
-      }
-      last = center;
+      int center = tests.size();
+      tests.add(test(cells[1]));
       // right context
       if (!cells[2].trim().isEmpty()) {
         terms = cells[2].trim().split(" ");
-        int right = 0;
         for (int i = 0; i < terms.length; i++) {
           if (terms[i].trim().isEmpty())
             continue;
-          current = test(terms[i]);
-          last.next(current);
-          current.prev(last);
-          last = current;
-          right++;
+          tests.add(test(terms[i]));
         }
-        if (right > maxright)
-          maxright = right;
       }
-      rulerec.add(new Rule(center, tag));
-      if (center instanceof TestTerm) {
-        String term = ((TestTerm) center).chain.toString();
-        int[] nos = byform.get(term);
-        if (nos == null)
-          byform.put(term, new int[] { no });
-        else {
-          int oldlength = nos.length;
-          nos = Arrays.copyOf(nos, oldlength + 1);
-          nos[oldlength] = no;
-          byform.put(term, nos);
-        }
+      Rule rule = new Rule(tests.toArray(new Test[tests.size()]), center, tag);
+      if (rule.form() == null && rule.prefix() < 0) { // ??
+        System.err.println(" ?? Lexer " + line + " — " + rule.tests[center].getClass());
+        continue;
       }
-      else if (center instanceof TestTag || center instanceof TestTagPrefix) {
-        int key = 0;
-        if (center instanceof TestTag)
-          key = Tag.prefix(((TestTag) center).tag);
-        else if (center instanceof TestTagPrefix)
-          key = ((TestTagPrefix) center).prefix;
-        int[] nos = bytag.get(key);
-        if (nos == null)
-          bytag.put(key, new int[] { no });
-        else {
-          int oldlength = nos.length;
-          nos = Arrays.copyOf(nos, oldlength + 1);
-          nos[oldlength] = no;
-          bytag.put(key, nos);
+      if (center > maxleft)
+        maxleft = center;
+      if (tests.size() - center - 1 > maxright)
+        maxright = tests.size() - center - 1;
+      rulerec.add(rule);
+    }
+    rulebook = rulerec.toArray(new Rule[rulerec.size()]);
+    compile();
+  }
+
+  /**
+   * Build the decision table from the rulebook. A cell (form, prefix) has the
+   * rules for this form, and the rules for this tag prefix, sorted by number.
+   */
+  private void compile()
+  {
+    CharPack.Builder builder = new CharPack.Builder();
+    for (Rule rule : rulebook) {
+      if (rule.form() != null)
+        builder.put(rule.form(), (short) 0, null, false);
+    }
+    CharPack forms = builder.build();
+    final int width = PREFIXES + 1;
+    int[][] table = new int[(forms.size() + 1) * width][];
+    final int length = rulebook.length;
+    for (int form = 0; form <= forms.size(); form++) {
+      for (int prefix = 0; prefix < width; prefix++) {
+        IntList nos = new IntList();
+        for (int no = 0; no < length; no++) {
+          Rule rule = rulebook[no];
+          if (rule.form() != null) {
+            if (form > 0 && forms.find(rule.form()) == form - 1)
+              nos.put(no);
+          }
+          else if (prefix < PREFIXES && rule.prefix() >> 4 == prefix)
+            nos.put(no);
         }
+        if (nos.size() > 0)
+          table[form * width + prefix] = nos.toArray();
       }
-      else { // ??
-        System.err.println(" ?? Lexer " + line + " — " + center.getClass());
-      }
-      no++;
     }
-    rulebook = rulerec.toArray(new Rule[0]);
+    this.forms = forms;
+    this.table = table;
   }
 
   /**
-   * Apply relevant rules to an occurrence
+   * Size of a window of occurrences for {@link #apply(Occ, Occ[])}: max left
+   * context, center, max right context.
+   */
+  public int width()
+  {
+    return maxleft + 1 + maxright;
+  }
+
+  /**
+   * Apply relevant rules to an occurrence, with a new window (not for loops,
+   * see {@link #apply(Occ, Occ[])}).
    * 
    * @param occ
    */
   public boolean apply(Occ occ)
   {
-    int[] rules = null;
-    int[] rules1 = byform.get(occ.orth());
-    int[] rules2 = bytag.get(occ.tag().prefix());
-    if (rules1 == null && rules2 == null)
+    return apply(occ, new Occ[width()]);
+  }
+
+  /**
+   * Apply the first relevant rule to an occurrence, in rulebook order.
+   * 
+   * @param occ
+   *          an occurrence in a chain, with prev and next occurrences
+   * @param window
+   *          an array of {@link #width()} occurrences, owned by the caller,
+   *          filled with the context
+   * @return true if a rule is applied, and tag has been modified
+   */
+  public boolean apply(final Occ occ, final Occ[] window)
+  {
+    final int no = rule(occ, window);
+    if (no < 0)
       return false;
-    else if (rules1 != null)
-      rules = rules1;
-    else if (rules2 != null)
-      rules = rules2;
-    // compact and sort rules
-    else {
-      rules = new int[rules1.length + rules2.length];
-      int i = 0;
-      for (int no : rules1) {
-        rules[i] = no;
-        i++;
-      }
-      for (int no : rules2) {
-        rules[i] = no;
-        i++;
-      }
-      Arrays.sort(rules);
+    occ.tag(rulebook[no].tag);
+    return true;
+  }
+
+  /**
+   * Find the first rule matching an occurrence and its context, in rulebook
+   * order, without modifying the occurrence.
+   * 
+   * @param window
+   *          an array of {@link #width()} occurrences, owned by the caller,
+   *          filled with the context
+   * @return number of the rule, or -1
+   */
+  public int rule(final Occ occ, final Occ[] window)
+  {
+    int prefix = occ.tag().prefix() >> 4;
+    if (prefix < 0 || prefix >= PREFIXES)
+      prefix = PREFIXES;
+    final int form = forms.find(occ.orth()) + 1;
+    final int[] rules = table[form * (PREFIXES + 1) + prefix];
+    if (rules == null)
+      return -1;
+    final int maxleft = this.maxleft;
+    if (window.length < maxleft + 1 + maxright)
+      throw new IllegalArgumentException("Window too small for rules: " + window.length + " < " + width());
+    // fill the window once for all rules
+    window[maxleft] = occ;
+    Occ context = occ;
+    for (int i = maxleft - 1; i >= 0; i--) {
+      if (context != null)
+        context = context.prev();
+      window[i] = context;
+    }
+    context = occ;
+    for (int i = maxleft + 1; i < window.length; i++) {
+      if (context != null)
+        context = context.next();
+      window[i] = context;
     }
     for (int no : rules) {
-      // exit at first success ?
-      if (rulebook[no].apply(occ))
-        return true;
+      if (rulebook[no].match(window, maxleft))
+        return no;
     }
-    return false;
+    return -1;
   }
 
   /**
@@ -247,107 +292,116 @@ public class Lexer
   }
 
   /**
-   * A rule for the lexer, a test chain and a tag for replacement
+   * A rule for the lexer, an array of tests and a tag for replacement
    * 
    * @author glorieux-f
    */
-  private class Rule
+  private static class Rule
   {
-    public Test center;
-    public int tag;
+    /** Tests, left context, center, right context */
+    final Test[] tests;
+    /** Index of center in tests */
+    final int center;
+    /** Tag to set */
+    final int tag;
 
-    public Rule(final Test center, final int tag) {
+    public Rule(final Test[] tests, final int center, final int tag) {
+      this.tests = tests;
       this.center = center;
       this.tag = tag;
     }
 
     /**
-     * Test if rule is relevant to an occurrence and its context TODO: how to get an
-     * occurrence next if needed to test rule?
+     * Form of the center, for rules indexed by form, or null
+     */
+    String form()
+    {
+      Test test = tests[center];
+      if (test instanceof TestTerm)
+        return ((TestTerm) test).chain.toString();
+      return null;
+    }
+
+    /**
+     * Tag prefix of the center, for rules indexed by tag, or -1
+     */
+    int prefix()
+    {
+      Test test = tests[center];
+      if (test instanceof TestTag)
+        return Tag.prefix(((TestTag) test).tag);
+      if (test instanceof TestTagPrefix)
+        return ((TestTagPrefix) test).prefix;
+      return -1;
+    }
+
+    /**
+     * Test if rule is relevant to an occurrence and its context.
      * 
-     * @param center
+     * @param window
+     *          occurrences, center at index maxleft, null out of the chain
      * @return false if rule do not apply
      */
-    public boolean match(final Occ occ)
+    public boolean match(final Occ[] window, final int maxleft)
     {
-      // return false on each fail
-      if (!center.test(occ))
+      final Test[] tests = this.tests;
+      // return false on each fail, center first
+      if (!tests[center].test(window[maxleft]))
         return false;
-      // test left context
-      Occ context = occ;
-      Test test = center;
-      while (test.prev() != null) {
-        test = test.prev();
-        if (context.prev() == null)
+      final int offset = maxleft - center;
+      for (int i = 0; i < tests.length; i++) {
+        if (i == center)
+          continue;
+        Occ context = window[offset + i];
+        if (context == null)
           return false;
-        context = context.prev();
-        if (!test.test(context))
-          return false;
-      }
-      // test right context
-      context = occ;
-      test = center;
-      while (test.next() != null) {
-        test = test.next();
-        if (context.next() == null)
-          return false;
-        context = context.next();
-        if (!test.test(context))
+        if (!tests[i].test(context))
           return false;
       }
       return true;
     }
 
-    /**
-     * If rule is relevant to occurrence and context, apply tag modification
-     * 
-     * @param occ
-     *          An occurrence in chain whith prev and next occurrence
-     * @return true if rule is applied, and tag has been modified
-     */
-    public boolean apply(final Occ occ)
+    @Override
+    public String toString()
     {
-      if (!match(occ))
-        return false;
-      // rule match, apply tag correction
-      occ.tag(tag);
-      return true;
+      return toString(";");
+    }
+
+    public String toString(final String sep)
+    {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < tests.length; i++) {
+        if (i == center)
+          sb.append(sep);
+        else if (i > 0 && i != center + 1)
+          sb.append(' ');
+        sb.append(tests[i].label());
+        if (i == center)
+          sb.append(sep);
+      }
+      sb.append(sep);
+      sb.append(Tag.label(tag));
+      return sb.toString();
     }
   }
 
+  /**
+   * Label of a rule, as in the rulebook
+   */
+  public String rule(final int no)
+  {
+    return rulebook[no].toString(sep);
+  }
+
   /**
    * Default String display
    */
   @Override
   public String toString()
   {
-    StringBuffer sb = new StringBuffer();
-    int length = rulebook.length;
-    boolean first;
-    for (int i = 0; i < length; i++) {
-      Rule rule = rulebook[i];
-      Test test = rule.center;
-      // get the first occ from chain
-      while (test.prev() != null)
-        test = test.prev();
-      // print the chain from start
-      first = true;
-      while (test != null) {
-        if (test == rule.center)
-          sb.append(sep);
-        else if (first)
-          first = false;
-        else
-          sb.append(' ');
-        sb.append(test.label());
-        if (test == rule.center) {
-          sb.append(sep);
-          first = true;
-        }
-        test = test.next();
-      }
-      sb.append(sep);
-      sb.append(Tag.label(rule.tag));
+    StringBuilder sb = new StringBuilder();
+    for (Rule rule : rulebook) {
+      sb.append(rule.toString(sep));
       sb.append("\n");
     }
     return sb.toString();
@@ -380,27 +434,58 @@ public class Lexer
   {
     Lexer lexer = new Lexer();
     lexer.loadRes("/alix/fr/dic/rules.csv");
-    String text = "Tu:PRO le:DET prends:VERB bien:ADV ?:PUN";
-    Occ first = new Occ();
-    Occ occ = first;
-    Occ last = null;
-    for (String w : text.split(" ")) {
-      String[] cells = w.split(":");
-      occ.orth(cells[0]);
-      occ.tag(Tag.code(cells[1]));
-      if (last != null) {
-        last.next(occ);
-        occ.prev(last);
+    // orth:TAG, rules by form (le, la, leur, si) and by tag (DET, VERBppass)
+    String[] corpus = {
+        "Tu:PRO le:DET prends:VERB bien:ADV ?:PUN",
+        "Il:PRO la:DET leur:DET donne:VERB .:PUNsent",
+        "Les:DET blessés:VERBppass sont:VERB là:ADV .:PUNsent",
+        "Un:DET homme:SUB aimé:VERBppass .:PUNsent",
+        "C':PRO est:VERB si:CONJ beau:ADJ !:PUNsent",
+        "le:DET même:ADJ jour:SUB .:PUNsent", };
+    Occ[] window = new Occ[lexer.width()];
+    int byform = 0;
+    int bytag = 0;
+    for (String text : corpus) {
+      Occ first = null;
+      Occ last = null;
+      for (String w : text.split(" ")) {
+        String[] cells = w.split(":");
+        Occ occ = new Occ();
+        occ.orth(cells[0]);
+        occ.tag(Tag.code(cells[1]));
+        if (last != null) {
+          last.next(occ);
+          occ.prev(last);
+        }
+        else
+          first = occ;
+        last = occ;
       }
-      last = occ;
-      occ = new Occ();
-    }
-    occ = first;
-    while (occ != null) {
-      lexer.apply(occ);
-      System.out.println(occ);
-      occ = occ.next();
+      for (Occ occ = first; occ != null; occ = occ.next()) {
+        String before = occ.tag().label();
+        int no = lexer.rule(occ, window);
+        if (no < 0) {
+          System.out.println(occ);
+          continue;
+        }
+        lexer.apply(occ, window);
+        String kind;
+        if (lexer.rulebook[no].form() != null) {
+          byform++;
+          kind = "form";
+        }
+        else {
+          bytag++;
+          kind = "tag";
+          // before, a form index hid the rules by tag
+          if (lexer.forms.find(occ.orth()) != CharPack.NOT_FOUND)
+            kind += ", behind a form index";
+        }
+        System.out.println(occ + "\t" + before + " > " + occ.tag().label() + "\t#" + no + " " + kind + " " + lexer.rule(no));
+      }
+      System.out.println();
     }
+    System.out.println("Rules fired, by form: " + byform + ", by tag: " + bytag);
     System.out.println("maxleft=" + lexer.maxleft + " maxright=" + lexer.maxright);
     System.out.println(lexer);
   }
@@ -5,9 +5,10 @@ import alix.util.Occ;
 import alix.util.OccList;
 
 /**
- * A query builder of Occ events TODO document query syntax
- * 
- * Possible backtracking silences "A A B B", "A * B" => will not fire 2x
+ * A query builder of Occ events, see {@link QuerySet} for the syntax. The
+ * query is compiled in an automaton, all matches are found, overlapping or
+ * not. To run many queries on the same stream, prefer one {@link QuerySet} to
+ * many queries.
  * 
  * Idea, the shortest path size (**=0, OR=shortest)
  * 
@@ -15,10 +16,10 @@ import alix.util.OccList;
  */
 public class Query
 {
-  /** The root test, go back to root after a fail */
+  /** The root test */
   private final Test first;
-  /** The current test to apply in sequence order */
-  private Test current;
+  /** The compiled automaton, created on first test */
+  private QuerySet automaton;
   /** The pattern found */
   OccList found = new OccList();
   /** position in the query parser */
@@ -33,114 +34,30 @@ public class Query
    */
   public Query(String q) {
     first = parse(q);
-    current = first;
   }
 
   /**
-   * Test an Occurrence, return true if current test succeed and if it is the last
-   * one. This method is bottleneck to optimize.
+   * Test an Occurrence, return true if a match of the query ends on it. If
+   * more than one, found() is the longest.
    * 
    * @return
    */
   public boolean test(Occ occ)
   {
-    // something found after a restart of the test chain, reset the found buffer
-    if (current == first && found.size() > 0)
-      found.reset();
-    // ## operator, zero or more stopwords
-    if (current instanceof TestGap) {
-      // no next, works like a stopword suffix
-      if (current.next() == null) {
-        // end of stop sequence, return true if at least one word found
-        if (!current.test(occ)) {
-          current = first;
-          return (found.size() > 0);
-        }
-        // stopword, add it to found chain
-        found.add(occ);
-        // query sequence may continue
-        return false;
-      }
-      // next test success, jump the gap, and works like a test success
-      if (current.next().test(occ)) {
-        found.add(occ);
-        // end of chain
-        if (current.next().next() == null) {
-          current = first;
-          return true;
-        }
-        else {
-          current = current.next().next();
-          return false;
-        }
-      }
-      // not yet end of gap, continue
-      if (((TestGap) current).dec() > 0) {
-        System.out.println(occ);
-        return false;
-      }
-      // end of gap, restart
-      current = first;
-      found.reset();
+    if (automaton == null)
+      automaton = new QuerySet(this);
+    found.reset();
+    if (automaton.test(occ) == 0)
       return false;
-    }
-    // ** operator
-    else if (current instanceof TestGap) {
-      found.add(occ);
-      // no next, works like a simple joker
-      if (current.next() == null) {
-        current = first;
-        return true;
-      }
-      // next test success, jump the gap, and works like a test success
-      if (current.next().test(occ)) {
-        // end of chain
-        if (current.next().next() == null) {
-          current = first;
-          return true;
-        }
-        else {
-          current = current.next().next();
-          return false;
-        }
-      }
-      // not yet end of gap, continue
-      if (((TestGap) current).dec() > 0) {
-        System.out.println(occ);
-        return false;
-      }
-      // end of gap, restart
-      current = first;
-      found.reset();
-      return false;
-    }
-    // unary tests
-    else {
-      // test success, set next
-      if (current.test(occ)) {
-        found.add(occ);
-        current = current.next();
-        if (current == null) {
-          current = first;
-          return true;
-        }
-        return false;
-      }
-      // first fail, go away
-      if (current == first)
-        return false;
-      // fail in the chain, A B C found in A B A B C
-      if (first.test(occ)) {
-        found.reset();
-        found.add(occ);
-        current = first.next();
-        return false;
-      }
-      // restart
-      current = first;
-      found.reset();
-      return false;
-    }
+    // matches are ordered by start, first is longest
+    automaton.found(0, found);
+    return true;
+  }
+
+  /** The root test, for compilation */
+  Test first()
+  {
+    return first;
   }
 
   /**
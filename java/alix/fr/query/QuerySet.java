@@ -0,0 +1,472 @@
+package alix.fr.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import alix.fr.dic.Tag;
+import alix.util.Occ;
+import alix.util.OccList;
+
+/**
+ * Many queries, compiled in one automaton (an NFA over tests of occurrences),
+ * run together in one pass over a stream of occurrences. A state of the
+ * automaton consumes one occurrence if its test succeed (orth, lem, tag, tag
+ * prefix, *), the transitions to the next states are resolved at compilation
+ * (OR, groups, gaps, end of query), so that a step is a test and a copy of ints.
+ *
+ * <ul>
+ * <li>A B : sequence</li>
+ * <li>A, B : OR, (A B, C) for groups</li>
+ * <li>* : one occurrence</li>
+ * <li>** : zero to {@link TestGap#DEFAULT} occurrences, except sentence
+ * punctuation</li>
+ * <li>## : zero or more stop words</li>
+ * </ul>
+ *
+ * A thread is a state with the position of the occurrence where the match
+ * began. All the threads are followed, no backtracking, so that overlapping
+ * matches are all reported, "A * B" fires 2x in "A A B B", and "A ** C" fires 2x
+ * in "A A C" (starts 0 and 1). A thread is never duplicated (same state, same
+ * start), the cost of an occurrence is one test by living thread, and the tests
+ * of the first states: those with an exact orth are found in a hash, without a
+ * loop on queries.
+ *
+ * <pre>
+ * QuerySet set = new QuerySet("A ** C", "ADV");
+ * while ((occ = toks.word()) != null) {
+ *   for (int i = 0, n = set.test(occ); i &lt; n; i++) System.out.println(set.query(i) + " " + set.found(i));
+ * }
+ * </pre>
+ *
+ * The occurrences of the current matches are copied in a ring buffer, without
+ * allocation after warming. A set is not thread safe, one by stream.
+ *
+ * @author glorieux-f
+ */
+public class QuerySet
+{
+  /** Any occurrence, except sentence punctuation, for ** */
+  private static final Test GAP = new Test()
+  {
+    @Override
+    public boolean test(Occ occ)
+    {
+      return (occ.tag().code() != Tag.PUNsent);
+    }
+
+    @Override
+    public String label()
+    {
+      return "**";
+    }
+  };
+  /** The queries, a query is identified by its index */
+  private final Query[] queries;
+  /** Test by state */
+  private final Test[] tests;
+  /** Next states by state, after a successful test */
+  private final int[][] next;
+  /** The query by state */
+  private final int[] owner;
+  /** States ending a query after a successful test */
+  private final boolean[] accept;
+  /** First states with an exact orth, by orth */
+  private final HashMap<String, int[]> index = new HashMap<String, int[]>();
+  /** Other first states, tested on each occurrence */
+  private final int[] scan;
+  /** Living threads, states */
+  private int[] states = new int[16];
+  /** Living threads, starts */
+  private int[] starts = new int[16];
+  /** Count of living threads */
+  private int size;
+  /** Next threads, states */
+  private int[] nextStates = new int[16];
+  /** Next threads, starts */
+  private int[] nextStarts = new int[16];
+  /** Count of next threads */
+  private int nextSize;
+  /** Last thread added by state, position and start, to not duplicate it */
+  private final int[] markPos;
+  private final int[] markStart;
+  /** Last match by query, position and start, to not duplicate it */
+  private final int[] lastPos;
+  private final int[] lastStart;
+  /** Matches ending on the current occurrence, queries */
+  private int[] matchQuery = new int[8];
+  /** Matches ending on the current occurrence, starts */
+  private int[] matchStart = new int[8];
+  /** Count of matches on the current occurrence */
+  private int matches;
+  /** Position of the current occurrence */
+  private int pos = -1;
+  /** Copies of the last occurrences, by position & mask */
+  private Occ[] ring = new Occ[16];
+  /** Mask of a position in ring, ring.length - 1 */
+  private int mask = ring.length - 1;
+  /** List of occurrences for a match */
+  private final OccList found = new OccList();
+
+  /**
+   * Parse and compile queries
+   */
+  public QuerySet(final String... queries) {
+    this(parse(queries));
+  }
+
+  /**
+   * Compile queries, a query is identified by its index in the array.
+   */
+  public QuerySet(final Query... queries) {
+    this.queries = queries.clone();
+    final ArrayList<Test> tests = new ArrayList<Test>();
+    final ArrayList<int[]> next = new ArrayList<int[]>();
+    final ArrayList<Integer> owner = new ArrayList<Integer>();
+    final ArrayList<Boolean> accept = new ArrayList<Boolean>();
+    final ArrayList<Integer> scan = new ArrayList<Integer>();
+    for (int q = 0; q < queries.length; q++) {
+      Compiler compiler = new Compiler(q, tests, next, owner, accept);
+      // an empty match is never reported
+      for (int s : compiler.chain(queries[q].first(), new Follow()).states) {
+        Test test = tests.get(s);
+        if (test instanceof TestOrth && !glob(test.label())) {
+          int[] list = index.get(test.label());
+          if (list == null)
+            list = new int[0];
+          list = Arrays.copyOf(list, list.length + 1);
+          list[list.length - 1] = s;
+          index.put(test.label(), list);
+        }
+        else
+          scan.add(s);
+      }
+    }
+    final int count = tests.size();
+    this.tests = tests.toArray(new Test[count]);
+    this.next = next.toArray(new int[count][]);
+    this.owner = new int[count];
+    this.accept = new boolean[count];
+    for (int s = 0; s < count; s++) {
+      this.owner[s] = owner.get(s);
+      this.accept[s] = accept.get(s);
+    }
+    this.scan = new int[scan.size()];
+    for (int i = 0; i < this.scan.length; i++)
+      this.scan[i] = scan.get(i);
+    markPos = new int[count];
+    Arrays.fill(markPos, -1);
+    markStart = new int[count];
+    lastPos = new int[queries.length];
+    Arrays.fill(lastPos, -1);
+    lastStart = new int[queries.length];
+    for (int i = 0; i < ring.length; i++)
+      ring[i] = new Occ();
+  }
+
+  private static Query[] parse(final String[] queries)
+  {
+    Query[] parsed = new Query[queries.length];
+    for (int i = 0; i < queries.length; i++)
+      parsed[i] = new Query(queries[i]);
+    return parsed;
+  }
+
+  /** Has a term some glob chars ? */
+  private static boolean glob(final String term)
+  {
+    return term.indexOf('*') >= 0 || term.indexOf('?') >= 0;
+  }
+
+  /**
+   * States following a position in a query, and if the query may end there.
+   */
+  private static class Follow
+  {
+    final int[] states;
+    final boolean end;
+
+    /** End of query */
+    Follow() {
+      this(new int[0], true);
+    }
+
+    Follow(final int[] states, final boolean end) {
+      this.states = states;
+      this.end = end;
+    }
+
+    /** Union with a state before */
+    Follow with(final int state)
+    {
+      int[] union = Arrays.copyOf(states, states.length + 1);
+      union[states.length] = state;
+      return new Follow(union, end);
+    }
+
+    /** Union of alternatives */
+    Follow or(final Follow follow)
+    {
+      int[] union = Arrays.copyOf(states, states.length + follow.states.length);
+      System.arraycopy(follow.states, 0, union, states.length, follow.states.length);
+      return new Follow(union, end || follow.end);
+    }
+  }
+
+  /**
+   * Compile a chain of tests from the end, a test is a state, or some states
+   * for the gaps, the operators are resolved in the sets of next states.
+   */
+  private static class Compiler
+  {
+    final int query;
+    final ArrayList<Test> tests;
+    final ArrayList<int[]> next;
+    final ArrayList<Integer> owner;
+    final ArrayList<Boolean> accept;
+
+    Compiler(final int query, final ArrayList<Test> tests, final ArrayList<int[]> next,
+        final ArrayList<Integer> owner, final ArrayList<Boolean> accept) {
+      this.query = query;
+      this.tests = tests;
+      this.next = next;
+      this.owner = owner;
+      this.accept = accept;
+    }
+
+    /** A new state, consuming an occurrence, before follow */
+    int state(final Test test, final Follow follow)
+    {
+      tests.add(test);
+      next.add(follow.states);
+      owner.add(query);
+      accept.add(follow.end);
+      return tests.size() - 1;
+    }
+
+    /** States entering a chain of tests, before follow */
+    Follow chain(final Test test, final Follow follow)
+    {
+      if (test == null)
+        return follow;
+      return one(test, chain(test.next(), follow));
+    }
+
+    /** States entering a test, before follow */
+    Follow one(final Test test, final Follow follow)
+    {
+      if (test instanceof TestOr) {
+        Follow entry = new Follow(new int[0], false);
+        for (Test alt : ((TestOr) test).list)
+          entry = entry.or(chain(alt, follow));
+        return entry;
+      }
+      // zero to n occurrences, the last one goes to follow
+      if (test instanceof TestGap) {
+        Follow entry = follow;
+        for (int i = ((TestGap) test).initial; i > 0; i--)
+          entry = follow.with(state(GAP, entry));
+        return entry;
+      }
+      // zero or more stop words, a loop
+      if (test instanceof TestStop) {
+        int s = state(test, follow);
+        next.set(s, follow.with(s).states);
+        return follow.with(s);
+      }
+      return new Follow(new int[] { state(test, follow) }, false);
+    }
+  }
+
+  /**
+   * Test an occurrence, after the previous ones of the stream.
+   *
+   * @return count of matches ending on this occurrence, see {@link #query(int)},
+   *         {@link #start(int)}, {@link #found(int)}
+   */
+  public int test(final Occ occ)
+  {
+    pos++;
+    // keep occurrences from the oldest thread
+    final int span = pos - ((size > 0) ? starts[0] : pos) + 1;
+    if (span > ring.length)
+      grow(span);
+    ring[pos & mask].set(occ);
+    nextSize = 0;
+    matches = 0;
+    // living threads, ordered by start
+    for (int i = 0; i < size; i++) {
+      final int s = states[i];
+      if (tests[s].test(occ))
+        fire(s, starts[i]);
+    }
+    // new threads, exact orth tested by hash
+    final int[] first = index.get(occ.orth());
+    if (first != null) {
+      for (int s : first)
+        fire(s, pos);
+    }
+    for (int s : scan) {
+      if (tests[s].test(occ))
+        fire(s, pos);
+    }
+    int[] swap = states;
+    states = nextStates;
+    nextStates = swap;
+    swap = starts;
+    starts = nextStarts;
+    nextStarts = swap;
+    size = nextSize;
+    return matches;
+  }
+
+  /**
+   * A successful test of a state, record the match and the next threads.
+   * Threads come ordered by start, a duplicate is the last one added.
+   */
+  private void fire(final int s, final int start)
+  {
+    if (accept[s]) {
+      final int q = owner[s];
+      if (lastPos[q] != pos || lastStart[q] != start) {
+        lastPos[q] = pos;
+        lastStart[q] = start;
+        if (matches >= matchQuery.length) {
+          matchQuery = Arrays.copyOf(matchQuery, matches * 2);
+          matchStart = Arrays.copyOf(matchStart, matches * 2);
+        }
+        matchQuery[matches] = q;
+        matchStart[matches] = start;
+        matches++;
+      }
+    }
+    for (int t : next[s]) {
+      if (markPos[t] == pos && markStart[t] == start)
+        continue;
+      markPos[t] = pos;
+      markStart[t] = start;
+      if (nextSize >= nextStates.length) {
+        nextStates = Arrays.copyOf(nextStates, nextSize * 2);
+        nextStarts = Arrays.copyOf(nextStarts, nextSize * 2);
+      }
+      nextStates[nextSize] = t;
+      nextStarts[nextSize] = start;
+      nextSize++;
+    }
+  }
+
+  /** Grow the ring buffer, keeping the occurrences by position */
+  private void grow(final int span)
+  {
+    int length = ring.length;
+    while (length < span)
+      length <<= 1;
+    Occ[] old = ring;
+    ring = new Occ[length];
+    for (int p = pos - old.length; p < pos; p++)
+      ring[p & (length - 1)] = old[p & mask];
+    for (int i = 0; i < length; i++)
+      if (ring[i] == null)
+        ring[i] = new Occ();
+    mask = length - 1;
+  }
+
+  /**
+   * Forget the threads, for a new stream of occurrences.
+   */
+  public void reset()
+  {
+    size = 0;
+    matches = 0;
+  }
+
+  /** Count of queries */
+  public int size()
+  {
+    return queries.length;
+  }
+
+  /** Count of states of the automaton */
+  public int states()
+  {
+    return tests.length;
+  }
+
+  /** A query by index */
+  public Query get(final int q)
+  {
+    return queries[q];
+  }
+
+  /** Count of matches ending on the last occurrence tested */
+  public int matches()
+  {
+    return matches;
+  }
+
+  /** Index of the query of a match, ordered by start */
+  public int query(final int match)
+  {
+    return matchQuery[match];
+  }
+
+  /** Position of the first occurrence of a match, from the first one tested */
+  public int start(final int match)
+  {
+    return matchStart[match];
+  }
+
+  /** Position of the last occurrence tested, end of the matches */
+  public int pos()
+  {
+    return pos;
+  }
+
+  /**
+   * Occurrences of a match, in a list reused on each call.
+   */
+  public OccList found(final int match)
+  {
+    return found(match, found.reset());
+  }
+
+  /**
+   * Append the occurrences of a match to a list.
+   */
+  public OccList found(final int match, final OccList list)
+  {
+    for (int p = matchStart[match]; p <= pos; p++)
+      list.add(ring[p & mask]);
+    return list;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuffer sb = new StringBuffer();
+    for (int q = 0; q < queries.length; q++) {
+      if (q > 0)
+        sb.append("\n");
+      sb.append(q).append(": ").append(queries[q]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * No reason to use in cli, for testing only
+   */
+  public static void main(String[] args)
+  {
+    String text = "A B A B C A B C C A C A D D D C A A B B";
+    QuerySet set = new QuerySet("A B(A ,C)", "A * C", "A ** C", "C", "A B C", "A * B", "A A, A B B");
+    System.out.println(set);
+    System.out.println(set.states() + " states");
+    System.out.println(text);
+    Occ occ = new Occ();
+    for (String tok : text.split(" ")) {
+      occ.orth(tok);
+      for (int i = 0, n = set.test(occ); i < n; i++)
+        System.out.println(set.start(i) + "-" + set.pos() + "\t" + set.get(set.query(i)) + " FOUND: " + set.found(i));
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
@@ -21,11 +22,17 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import alix.fr.Lexik;
 import alix.util.Char;
 import alix.util.IntPair;
 import alix.util.IntRoller;
+import alix.util.LongDoubleMap;
+import alix.util.MappedText;
 import alix.util.SparseMat;
 import alix.util.Chain;
 import alix.util.Top;
@@ -47,6 +54,8 @@ public class PPMI {
     final int stoplimit = 500;
     HashMap<String, WCounter> freqs = new HashMap<String, WCounter>(32768);
     SparseMat mat = new SparseMat();
+    /** Size of the char buffer to read text */
+    static final int BUFSIZE = 1 << 16;
     
     public PPMI(final int left, final int right)
     {
@@ -81,6 +90,16 @@ public class PPMI {
     }
     
     public long freqs(String textFile) throws FileNotFoundException, IOException
+    {
+        try (MappedText text = new MappedText(textFile)) {
+            return freqs(text);
+        }
+    }
+
+    /**
+     * Count words, from a mapped text, which may be shared with {@link #coocs(MappedText)}.
+     */
+    public long freqs(MappedText text) throws IOException
     {
         Chain chain = new Chain();
         HashMap<String, WCounter> freqs = this.freqs; // direct handler for perfs
@@ -90,11 +109,11 @@ public class PPMI {
         char c;
         int i;
         int chars;
-        int bufsize = 1024*1024*64;
-        char[] buf = new char[bufsize];
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(textFile), StandardCharsets.UTF_8)) {
+        long reads = 0;
+        char[] buf = new char[BUFSIZE];
+        try (Reader reader = text.reader()) {
             while((chars = reader.read(buf)) > 0) {
-                System.out.print('.');
+                if ((++reads & 0x3FF) == 0) System.out.print('.');
                 for (i = 0; i < chars; i++) {
                     c = buf[i];
                     if (Char.isLetter(c) || c == '_') {
@@ -161,57 +180,162 @@ public class PPMI {
     }
     public void coocs(String textFile) throws IOException
     {
-        IntRoller slider = new IntRoller(left, right);
-        int size = slider.size();
-        for (int i=0; i < size; i++) slider.push(-1);
-        Chain chain = new Chain();
-        String l;
-        char c;
-        Integer code;
-        IntPair pair = new IntPair();
-        HashMap<IntPair, SparseMat.Counter> coocs = mat.hash;
-        SparseMat.Counter counter;
-        int stoplimit = this.stoplimit;
-        int chars;
-        int bufsize = 1024*1024*64;
-        char[] buf = new char[bufsize];
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(textFile), StandardCharsets.UTF_8)) {
-            while((chars = reader.read(buf)) > 0) {
-                System.out.print(".");
-                for (int i = 0; i < chars; i++) {
-                    c = buf[i];
-                    if (Char.isLetter(c) || c == '_') {
-                        chain.append(c);
-                        continue;
-                    }
-                    if (chain.isEmpty()) continue;
-                    code = byString.get(chain);
-                    chain.reset();
-                    if (code == null) slider.push(-1);
-                    else slider.push(code);
-                    int word = slider.get(0);
-                    if (word < 0) continue;
-                    // if (word < stoplimit && stop[word] > 0) continue; 
-                    pair.x(word);
-                    int context;
-                    for (int pos = left; pos <= right; pos++) {
-                        if (pos == 0) continue;
-                        context = slider.get(pos);
-                        if (context < 0) continue;
-                        pair.y(context);
-                        counter = coocs.get(pair);
-                        if (counter != null) {
-                            counter.inc();
+        try (MappedText text = new MappedText(textFile)) {
+            coocs(text);
+        }
+    }
+
+    /**
+     * Count co-occurrences, from a mapped text, pages are still in memory after
+     * {@link #freqs(MappedText)}.
+     */
+    public void coocs(MappedText text) throws IOException
+    {
+        coocs(text, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Count co-occurrences in parallel. The text is split on word boundaries,
+     * each thread counts the cells of its part in its own map (no object by
+     * cell), maps are merged in the sorted arrays of the matrix. Words around a
+     * split are read by the 2 threads as context, so that counts are the same
+     * as in one pass.
+     */
+    public void coocs(MappedText text, int threads) throws IOException
+    {
+        long[][] splits = text.splits(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(splits.length);
+        List<Future<LongDoubleMap>> futures = new ArrayList<Future<LongDoubleMap>>();
+        for (long[] split : splits) {
+            futures.add(pool.submit(() -> new Cooc(text).count(split[0], split[1])));
+        }
+        pool.shutdown();
+        LongDoubleMap[] maps = new LongDoubleMap[futures.size()];
+        try {
+            for (int i = 0; i < maps.length; i++) {
+                maps[i] = futures.get(i).get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+        System.out.println();
+        mat.sortData(maps);
+    }
+
+    /**
+     * Co-occurrences counter for a part of the text, one by thread.
+     */
+    private class Cooc
+    {
+        /** Read the text before a part, as left context */
+        static final int LEAD = 0;
+        /** Read the part, words are counted */
+        static final int OWN = 1;
+        /** Read the text after a part, as right context */
+        static final int TAIL = 2;
+        final MappedText text;
+        final IntRoller slider = new IntRoller(left, right);
+        final Chain chain = new Chain();
+        final char[] buf = new char[BUFSIZE];
+        final LongDoubleMap cells = new LongDoubleMap(1 << 16, 0.75f);
+        /** Words pushed from the part */
+        int own;
+        /** Words pushed after the part */
+        int tail;
+
+        Cooc(MappedText text)
+        {
+            this.text = text;
+        }
+
+        LongDoubleMap count(long start, long end) throws IOException
+        {
+            clear();
+            // left context, enough words before start
+            long span = 256L * (1 - left);
+            while (start > 0 && left < 0) {
+                long from = (start <= span) ? 0 : text.boundary(start - span);
+                clear();
+                if (read(text.reader(from, start), LEAD) >= -left || from == 0) break;
+                span *= 2;
+            }
+            own = 0;
+            read(text.reader(start, end), OWN);
+            // right context, the pivots of the last words of the part
+            tail = 0;
+            if (end < text.size() && right > 0) read(text.reader(end, text.size()), TAIL);
+            return cells;
+        }
+
+        private void clear()
+        {
+            for (int i = slider.size(); i > 0; i--) slider.push(-1);
+            chain.reset();
+        }
+
+        /**
+         * Read words, return the count of words pushed.
+         */
+        private int read(Reader reader, int phase) throws IOException
+        {
+            HashMap<String, Integer> byString = PPMI.this.byString;
+            int words = 0;
+            int chars;
+            long reads = 0;
+            char c;
+            Integer code;
+            try {
+                while ((chars = reader.read(buf)) > 0) {
+                    if (phase == OWN && (++reads & 0x3FF) == 0) System.out.print(".");
+                    for (int i = 0; i < chars; i++) {
+                        c = buf[i];
+                        if (Char.isLetter(c) || c == '_') {
+                            chain.append(c);
+                            continue;
                         }
-                        else {
-                            coocs.put(new IntPair(word, context), new SparseMat.Counter(1));
+                        if (chain.isEmpty()) continue;
+                        code = byString.get(chain);
+                        chain.reset();
+                        if (code == null) slider.push(-1);
+                        else slider.push(code);
+                        words++;
+                        // is the pivot, pushed right words before, in the part ?
+                        if (phase == OWN) {
+                            if (++own > right) count();
+                        }
+                        else if (phase == TAIL) {
+                            ++tail;
+                            if (own + tail > right) count();
+                            if (tail >= right) return words;
                         }
                     }
                 }
             }
-            reader.close();
+            finally {
+                reader.close();
+            }
+            return words;
+        }
+
+        /**
+         * Count the cells of the pivot with its context.
+         */
+        private void count()
+        {
+            int word = slider.get(0);
+            if (word < 0) return;
+            // if (word < stoplimit && stop[word] > 0) return;
+            int context;
+            for (int pos = left; pos <= right; pos++) {
+                if (pos == 0) continue;
+                context = slider.get(pos);
+                if (context < 0) continue;
+                cells.inc(LongDoubleMap.key(word, context));
+            }
         }
     }
+
     public static void main(String[] args) throws Exception
     {
         long time;
@@ -225,13 +349,16 @@ public class PPMI {
         // build from text
         if (args.length == 4) {
             System.out.println("Extract dic from "+args[0]+" to "+args[1]);
-            long wc = mat1.freqs(args[0]);
-            System.out.println(" -- in " + ((System.nanoTime() - time) / 1000000) + " ms wc="+wc+" dicSize="+mat1.freqs.size());
-            mat1.dicSave(args[1]);
-            mat1.dicLoad(args[1]);
-            time = System.nanoTime();
-            System.out.println("Build cooccurence matrix from "+args[0]+", save to "+args[2]);
-            mat1.coocs(args[0]);
+            // text mapped once for the 2 passes
+            try (MappedText text = new MappedText(args[0])) {
+                long wc = mat1.freqs(text);
+                System.out.println(" -- in " + ((System.nanoTime() - time) / 1000000) + " ms wc="+wc+" dicSize="+mat1.freqs.size());
+                mat1.dicSave(args[1]);
+                mat1.dicLoad(args[1]);
+                time = System.nanoTime();
+                System.out.println("Build cooccurence matrix from "+args[0]+", save to "+args[2]);
+                mat1.coocs(text);
+            }
             mat1.mat.compile();
             mat1.mat.save(args[2]);
             System.out.println(" in " + ((System.nanoTime() - time) / 1000000) + " ms");
@@ -244,7 +371,8 @@ public class PPMI {
             System.out.println(" in " + ((System.nanoTime() - time) / 1000000) + " ms");
             time = System.nanoTime();
             System.out.print("Load natrix from "+args[1]);
-            mat1.mat.load(args[1]);
+            // mapped, no copy
+            mat1.mat = SparseMat.open(args[1]);
             System.out.println(" in " + ((System.nanoTime() - time) / 1000000) + " ms");
             laplace = Double.parseDouble(args[2]);
         }
@@ -5,6 +5,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -140,7 +141,7 @@ public class Text2pix {
     ImageIO.write(img, "png", new File(dst));
   }
   
-  static void cats(String text)
+  static void cats(Reader text)
   {
     DicFreq dic = new DicFreq();
     Tokenizer toks = new Tokenizer(text);
@@ -178,9 +179,10 @@ public class Text2pix {
   {
     String src = "/home/fred/code/ngram_letters/sade_justine-1791.xml";
     String dst = "/home/fred/code/pix/text.png";
-    String text = new String(Files.readAllBytes(Paths.get(src)), StandardCharsets.UTF_8);
-    // Text2pix writer = new Text2pix(text, dst);
-    cats(text);
+    // Text2pix writer = new Text2pix(new String(Files.readAllBytes(Paths.get(src)), StandardCharsets.UTF_8), dst);
+    try (Reader text = new InputStreamReader(Files.newInputStream(Paths.get(src)), StandardCharsets.UTF_8)) {
+      cats(text);
+    }
   }
     
 }
@@ -11,6 +11,7 @@ import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -24,6 +25,7 @@ import alix.util.Char;
 import alix.util.IntOMap;
 import alix.util.IntRoller;
 import alix.util.IntVek;
+import alix.util.MappedText;
 import alix.util.Chain;
 import alix.util.Top;
 import alix.util.DicFreq.Entry;
@@ -49,28 +51,47 @@ public class Vex
     double[] magnitudes;
     int left;
     int right;
+    /** Size of the char buffer to read text */
+    static final int BUFSIZE = 1 << 16;
     public Vex(int left, int right) {
         this.left = left;
         this.right = right;
     }
     
     public long freqs(String srcFile) throws FileNotFoundException, IOException
+    {
+        try (MappedText text = new MappedText(srcFile)) {
+            return freqs(text);
+        }
+    }
+
+    /**
+     * Count words from a mapped text, may be shared with {@link #fill(MappedText)}.
+     */
+    public long freqs(MappedText text) throws IOException
     {
         int minFreq = 5;
-        String l;
+        int chars;
+        char[] buf = new char[BUFSIZE];
         char c;
         Chain chain = new Chain();
         HashMap<String, Entry> freqs = this.freqs; // perf
         Entry entry;
         String label;
         long wc = this.wc;
-        try (BufferedReader br = Files.newBufferedReader(Paths.get(srcFile), StandardCharsets.UTF_8)) {
-            while ((l = br.readLine()) != null) {
+        try (Reader reader = text.reader()) {
+            boolean eof = false;
+            while (!eof) {
+                chars = reader.read(buf);
+                // end of text, a last space to close last word
+                if (chars < 0) {
+                    buf[0] = ' ';
+                    chars = 1;
+                    eof = true;
+                }
                 // loop on all chars and build words
-                int length = l.length();
-                for(int i=0; i <= length ; i++) {
-                    if (i == length) c = ' ';
-                    else c = l.charAt(i);
+                for(int i=0; i < chars ; i++) {
+                    c = buf[i];
                     if (Char.isLetter(c) || c == '_') {
                         chain.append(c);
                         continue;
@@ -108,6 +129,16 @@ public class Vex
         return wc;
     }
     public void fill(String srcFile) throws IOException
+    {
+        try (MappedText text = new MappedText(srcFile)) {
+            fill(text);
+        }
+    }
+
+    /**
+     * Fill the co-occurrence vectors from a mapped text.
+     */
+    public void fill(MappedText text) throws IOException
     {
         int rows = byIndex.length;
         mat = new IntVek[rows];
@@ -118,16 +149,22 @@ public class Vex
         int size = slider.size();
         for (int i=0; i < size; i++) slider.push(-1);
         Chain chain = new Chain();
-        String l;
+        int chars;
+        char[] buf = new char[BUFSIZE];
         char c;
         Integer key;
-        int length;
-        try (BufferedReader br = Files.newBufferedReader(Paths.get(srcFile), StandardCharsets.UTF_8)) {
-            while ((l = br.readLine()) != null) {
-                length = l.length();
-                for(int i=0; i <= length ; i++) {
-                    if (i == length) c = ' ';
-                    else c = l.charAt(i);
+        try (Reader reader = text.reader()) {
+            boolean eof = false;
+            while (!eof) {
+                chars = reader.read(buf);
+                // end of text, a last space to close last word
+                if (chars < 0) {
+                    buf[0] = ' ';
+                    chars = 1;
+                    eof = true;
+                }
+                for(int i=0; i < chars ; i++) {
+                    c = buf[i];
                     if (Char.isLetter(c)) {
                         chain.append(c);
                         continue;
@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -160,28 +162,29 @@ public class Queries
       pathSB.append(chosenPath);
       pathSB.append(fileName);
       Path path = Paths.get(pathSB.toString());
-      String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
-      Tokenizer toks = new Tokenizer(text);
       long occs = 0;
-      Occ occ = new Occ();
+      try (Reader reader = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)) {
+        Tokenizer toks = new Tokenizer(reader);
+        Occ occ = new Occ();
 
-      while (toks.token(occ)) {
-        if (occ.tag().isPun())
-          continue;
-        Chain chain = null;
-        if (form.contains("l")) {
-          chain = occ.lem();
-        }
-        else {
-          chain = occ.graph();
-        }
-        occs++;
+        while (toks.token(occ)) {
+          if (occ.tag().isPun())
+            continue;
+          Chain chain = null;
+          if (form.contains("l")) {
+            chain = occ.lem();
+          }
+          else {
+            chain = occ.graph();
+          }
+          occs++;
 
-        Pattern p = Pattern.compile(query, caseSensitivity);
-        Matcher m = p.matcher(chain.toString());
+          Pattern p = Pattern.compile(query, caseSensitivity);
+          Matcher m = p.matcher(chain.toString());
 
-        if (m.matches()) {
-          countOccurrences++;
+          if (m.matches()) {
+            countOccurrences++;
+          }
         }
       }
 
@@ -227,47 +230,48 @@ public class Queries
       pathSB.append(chosenPath);
       pathSB.append(fileName);
       Path path = Paths.get(pathSB.toString());
-      String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
-      Tokenizer toks = new Tokenizer(text);
-      Occ occ = new Occ();
       long occs = 0;
+      try (Reader reader = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)) {
+        Tokenizer toks = new Tokenizer(reader);
+        Occ occ = new Occ();
 
-      int innerWin = -1;
-      while (toks.token(occ)) {
-        if (occ.tag().isPun())
-          continue;
-        occs++;
-        Chain chain = null;
-        if (form.contains("l")) {
-          chain = occ.lem();
-        }
-        else {
-          chain = occ.graph();
-        }
-        WordFlag test = listToCheck.get(chain);
+        int innerWin = -1;
+        while (toks.token(occ)) {
+          if (occ.tag().isPun())
+            continue;
+          occs++;
+          Chain chain = null;
+          if (form.contains("l")) {
+            chain = occ.lem();
+          }
+          else {
+            chain = occ.graph();
+          }
+          WordFlag test = listToCheck.get(chain);
 
-        if (test != null) {
-          test.value = true;
-          if (innerWin < 0)
-            innerWin = 0;
-        }
+          if (test != null) {
+            test.value = true;
+            if (innerWin < 0)
+              innerWin = 0;
+          }
 
-        if (innerWin == window) {
-          int nbTrue = 0;
-          for (Entry<String, WordFlag> entry : listToCheck.entrySet()) {
-            if (entry.getValue().value == true) {
-              nbTrue++;
-              entry.getValue().value = false;
+          if (innerWin == window) {
+            int nbTrue = 0;
+            for (Entry<String, WordFlag> entry : listToCheck.entrySet()) {
+              if (entry.getValue().value == true) {
+                nbTrue++;
+                entry.getValue().value = false;
+              }
+            }
+            if (nbTrue == listToCheck.keySet().size()) {
+              countOccurrences++;
+              innerWin = -1;
             }
           }
-          if (nbTrue == listToCheck.keySet().size()) {
-            countOccurrences++;
-            innerWin = -1;
-          }
-        }
 
-        if (innerWin > -1) {
-          innerWin++;
+          if (innerWin > -1) {
+            innerWin++;
+          }
         }
       }
 
@@ -307,22 +311,23 @@ public class Queries
       pathSB.append(fileName);
       Path path = Paths.get(pathSB.toString());
 
-      String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
-      Tokenizer toks = new Tokenizer(text);
-      Query q1 = new Query(query);
-      Occ occ = new Occ();
       List<String> nbFound = new ArrayList<String>();
-      while (toks.token(occ)) {
-        if (q1.test(occ)) {
-          StringBuilder sb = new StringBuilder();
+      try (Reader reader = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)) {
+        Tokenizer toks = new Tokenizer(reader);
+        Query q1 = new Query(query);
+        Occ occ = new Occ();
+        while (toks.token(occ)) {
+          if (q1.test(occ)) {
+            StringBuilder sb = new StringBuilder();
 
-          for (int indexOcc = 0; indexOcc < q1.found().size(); indexOcc++) {
-            sb.append(q1.found().get(indexOcc).lem().toString().toLowerCase() + " ");
-          }
+            for (int indexOcc = 0; indexOcc < q1.found().size(); indexOcc++) {
+              sb.append(q1.found().get(indexOcc).lem().toString().toLowerCase() + " ");
+            }
 
-          nbFound.add(sb.toString());
+            nbFound.add(sb.toString());
+          }
+          occurrences++;
         }
-        occurrences++;
       }
 
       countFound += nbFound.size();
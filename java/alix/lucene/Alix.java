@@ -47,7 +47,19 @@ import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
@@ -106,7 +118,7 @@ public class Alix
 {
     /** Mandatory field, XML file name, maybe used for update */
     public static final String FILENAME = "FILENAME";
-    /** Mandatory field, XML file name, maybe used for update */
+    /** Suffix of the stored field with the offsets of tokens in a text field, see {@link Offsets} */
     public static final String OFFSETS = "OFFSETS";
     /** Current filename proceded */
     public static final FieldType ftypeText = new FieldType();
@@ -124,15 +136,12 @@ public class Alix
         ftypeText.setOmitNorms(true);
         ftypeText.freeze();
     }
-    private static String filename;
-    /** Current lucene index writer, filled by XSL */
+    /** Current lucene index writer, shared by all workers, filled by XSL */
     static IndexWriter lucwriter = null;
-    /** Current lucene Document, build by static XSL calls */
-    static Document doc;
-    /** The XSL transformer to parse XML files */
-    static Transformer parser;
-    /** A garbage collector for XSL parser */
-    static Result outNull = new StreamResult(new NullOutputStream());
+    /** Throughput counters of the current indexation */
+    static Meter meter = new Meter();
+    /** In incremental mode, part of files changed or removed needed to force a merge */
+    static public float mergeRatio = 0.1f;
 
     public static class SaxHello implements ExtensionFunction
     {
@@ -166,6 +175,13 @@ public class Alix
 
     public static class SaxDocNew implements ExtensionFunction
     {
+        /** The worker owning the document in construction */
+        private final Worker worker;
+
+        public SaxDocNew(final Worker worker)
+        {
+            this.worker = worker;
+        }
 
         @Override
         public QName getName()
@@ -188,16 +204,23 @@ public class Alix
         @Override
         public XdmValue call(XdmValue[] arguments) throws SaxonApiException
         {
-            if (doc != null) throw new SaxonApiException("docNew() : current document not yet written, call docWrite() before.");            
-            doc = new Document();
+            if (worker.doc != null) throw new SaxonApiException("docNew() : current document not yet written, call docWrite() before.");            
+            worker.doc = new Document();
             // key to delete
-            doc.add(new StringField(FILENAME, filename, Store.YES));
-            return new XdmAtomicValue("docNew() "+filename);
+            worker.doc.add(new StringField(FILENAME, worker.filename, Store.YES));
+            return new XdmAtomicValue("docNew() "+worker.filename);
         }
     }
 
     public static class SaxDocWrite implements ExtensionFunction
     {
+        /** The worker owning the document in construction */
+        private final Worker worker;
+
+        public SaxDocWrite(final Worker worker)
+        {
+            this.worker = worker;
+        }
 
         @Override
         public QName getName()
@@ -220,21 +243,33 @@ public class Alix
         @Override
         public XdmValue call(XdmValue[] arguments) throws SaxonApiException
         {
-            if (doc == null) throw new SaxonApiException("docWrite() : no document to write. Call docNew() before docWrite().");
+            if (worker.doc == null) throw new SaxonApiException("docWrite() : no document to write. Call docNew() before docWrite().");
+            long time = System.nanoTime();
             try {
-                lucwriter.addDocument(doc);
+                lucwriter.addDocument(worker.doc);
             }
             catch (IOException e) {
                 throw new SaxonApiException(e);
             }
-            doc = null;
-            return new XdmAtomicValue("docWrite() "+filename);
+            time = System.nanoTime() - time;
+            worker.writeNanos += time;
+            meter.write.add(1, time);
+            worker.doc = null;
+            return new XdmAtomicValue("docWrite() "+worker.filename);
         }
 
     }
 
     public static class SaxField implements ExtensionFunction
     {
+        /** The worker owning the document in construction */
+        private final Worker worker;
+
+        public SaxField(final Worker worker)
+        {
+            this.worker = worker;
+        }
+
         @Override
         public QName getName()
         {
@@ -273,10 +308,9 @@ public class Alix
         {
             String name = args[0].itemAt(0).getStringValue();
             String type = args[2].toString();
+            Document doc = worker.doc;
             if (doc == null) throw new SaxonApiException("field("+name+", ...) no document to write. Call docNew().");
             if (name == Alix.FILENAME) throw new SaxonApiException("field(\""+name+"\", ...) "+name+" is a reserved name.");
-            System.out.println(args[1].itemAt(0).getClass());
-            Field field = null;
             // test if value empty ?
             // if (value.trim().isEmpty()) return new XdmAtomicValue("field(\""+name+"\", \"\") not indexed.");
             if (type.equals("xml")) {
@@ -285,7 +319,13 @@ public class Alix
                 String xml = args[1].toString();
                 doc.add(new Field(name, xml, ftypeText));
                 // store offsets, for efficient concordance
-                doc.add(field);
+                try {
+                    BytesRef offsets = ((AlixAnalyzer) lucwriter.getAnalyzer()).getOffsets(xml);
+                    doc.add(new StoredField(offsets(name), offsets));
+                }
+                catch (IOException e) {
+                    throw new SaxonApiException(e);
+                }
             } 
             else if (type.equals("sort")) {
                 String value = args[1].toString();
@@ -304,51 +344,106 @@ public class Alix
     }
 
     /**
-     * Start to scan the glob of xml files
-     * 
-     * @param indexDir
-     *            where the lucene indexes are generated
-     * @param anAnalyzer
-     *            Analyzer to use for analyzed fields
-     * @param similarity
-     *            instance of Similarity to work with the writer
-     * @throws TransformerConfigurationException
+     * An indexing thread, with its own compiled XSL transformer and its own
+     * document in construction. Workers take files in a shared queue and send
+     * documents to the shared index writer.
      */
-    static public void walk(String xslFile, String indexDir, String xmlGlob)
-            throws IOException, TransformerConfigurationException
+    public static class Worker implements Runnable
     {
+        /** The XSL transformer to parse XML files, with extensions bound to this worker */
+        private final Transformer parser;
+        /** A garbage collector for XSL parser */
+        private final Result outNull = new StreamResult(new NullOutputStream());
+        /** Files to index, shared between workers */
+        private final Queue<Path> queue;
+        /** Files on which the transformation has failed */
+        final List<Path> failures = new ArrayList<Path>();
+        /** Current filename proceded */
+        String filename;
+        /** Current lucene Document, build by XSL calls */
+        Document doc;
+        /** Time spent in addDocument() during the current transformation */
+        long writeNanos;
+
+        public Worker(final String xslFile, final Queue<Path> queue) throws TransformerConfigurationException
+        {
+            this.queue = queue;
+            this.parser = transformer(xslFile, this);
+        }
 
-        info("Lucene, parser:" + xslFile + ", index:" + indexDir + ", src:" + xmlGlob);
-
-        Path srcDir = Paths.get(xmlGlob);
-        PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:*.xml");
-        if (!Files.isDirectory(srcDir)) {
-            String pattern = srcDir.getFileName().toString();
-            glob = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
-            srcDir = srcDir.getParent();
+        @Override
+        public void run()
+        {
+            Path path;
+            while ((path = queue.poll()) != null) {
+                if (!parse(path)) failures.add(path);
+            }
         }
-        if (!Files.isDirectory(srcDir)) {
-            fatal("FATAL " + srcDir + " NOT FOUND");
+
+        /**
+         * Indexes one XML document
+         * 
+         * @return false if the transformation has failed
+         */
+        public boolean parse(Path xmlPath)
+        {
+            filename = filename(xmlPath);
+            info(filename + "                        ".substring(Math.min(22, filename.length())) + xmlPath.getParent());
+            doc = null;
+            writeNanos = 0;
+            long time = System.nanoTime();
+            try {
+                lucwriter.deleteDocuments(new Term(FILENAME, filename));
+                // A file to work on
+                Source xml = new StreamSource(xmlPath.toFile());
+                parser.setParameter("filename", filename);
+                parser.transform(xml, outNull);
+            }
+            catch (IOException e) {
+                fatal(e);
+            }
+            catch (TransformerException e) {
+                error(e);
+                return false;
+            }
+            finally {
+                // documents are written during the transformation, not a parse time
+                meter.parse.add(1, System.nanoTime() - time - writeNanos);
+            }
+            return true;
         }
+    }
 
-        Path indexPath = Paths.get(indexDir);
-        Files.createDirectories(indexPath);
-        Directory dir = FSDirectory.open(indexPath);
+    /**
+     * Value of the field {@link #FILENAME} for a file, file name without
+     * extension.
+     */
+    static String filename(Path xmlPath)
+    {
+        String filename = xmlPath.getFileName().toString();
+        int pos = filename.lastIndexOf('.');
+        if (pos > 0) filename = filename.substring(0, pos);
+        return filename;
+    }
 
-        // TODO configure analyzers
-        Analyzer analyzer = new AlixAnalyzer();
-        IndexWriterConfig conf = new IndexWriterConfig(analyzer);
-        conf.setOpenMode(OpenMode.CREATE_OR_APPEND);
-        conf.setSimilarity(new BM25Similarity());
-        System.out.println(conf.getCodec());
-        // Optional: for better indexing performance, if you
-        // are indexing many documents, increase the RAM
-        // buffer. But if you do this, increase the max heap
-        // size to the JVM (eg add -Xmx512m or -Xmx1g):
-        //
-        // conf.setRAMBufferSizeMB(256.0);
-        lucwriter = new IndexWriter(dir, conf);
+    /**
+     * Name of the stored field with the offsets of tokens of a text field.
+     */
+    public static String offsets(String field)
+    {
+        return field + "_" + OFFSETS;
+    }
 
+    /**
+     * Compile an XSL transformer with the Alix extension functions bound to a
+     * worker. Each worker needs its own Saxon processor, extension functions are
+     * registered by processor.
+     * 
+     * @throws TransformerConfigurationException
+     */
+    static Transformer transformer(final String xslFile, final Worker worker)
+            throws TransformerConfigurationException
+    {
         System.setProperty("javax.xml.transform.TransformerFactory", "net.sf.saxon.TransformerFactoryImpl");
         TransformerFactory tf = TransformerFactory.newInstance();
         // Grab the handle of Transformer factory and cast it to TransformerFactoryImpl
@@ -362,20 +457,108 @@ public class Alix
         Processor processor = (Processor) saxonConfig.getProcessor();
 
         processor.registerExtensionFunction(new SaxHello());
-        processor.registerExtensionFunction(new SaxDocNew());
-        processor.registerExtensionFunction(new SaxDocWrite());
-        processor.registerExtensionFunction(new SaxField());
-        parser = tf.newTransformer(new StreamSource(xslFile));
+        processor.registerExtensionFunction(new SaxDocNew(worker));
+        processor.registerExtensionFunction(new SaxDocWrite(worker));
+        processor.registerExtensionFunction(new SaxField(worker));
+        return tf.newTransformer(new StreamSource(xslFile));
+    }
+
+    /**
+     * Start to scan the glob of xml files, with one thread.
+     * 
+     * @throws TransformerConfigurationException
+     * @throws InterruptedException
+     */
+    static public void walk(String xslFile, String indexDir, String xmlGlob)
+            throws IOException, TransformerConfigurationException, InterruptedException
+    {
+        walk(xslFile, indexDir, xmlGlob, 1);
+    }
+
+    /**
+     * Start to scan the glob of xml files
+     * 
+     * @param xslFile
+     *            XSL transformation calling the Alix extension functions
+     * @param indexDir
+     *            where the lucene indexes are generated
+     * @param xmlGlob
+     *            a directory or a glob of XML files to index
+     * @param threads
+     *            number of workers, each with its own XSL transformer
+     * @throws TransformerConfigurationException
+     * @throws InterruptedException
+     */
+    static public void walk(String xslFile, String indexDir, String xmlGlob, int threads)
+            throws IOException, TransformerConfigurationException, InterruptedException
+    {
+        walk(xslFile, indexDir, xmlGlob, threads, false);
+    }
+
+    /**
+     * Start to scan the glob of xml files
+     * 
+     * @param xslFile
+     *            XSL transformation calling the Alix extension functions
+     * @param indexDir
+     *            where the lucene indexes are generated
+     * @param xmlGlob
+     *            a directory or a glob of XML files to index
+     * @param threads
+     *            number of workers, each with its own XSL transformer
+     * @param incremental
+     *            only transform files added or changed since last walk (see
+     *            {@link Manifest}), delete documents of removed files
+     * @throws TransformerConfigurationException
+     * @throws InterruptedException
+     */
+    static public void walk(String xslFile, String indexDir, String xmlGlob, int threads, final boolean incremental)
+            throws IOException, TransformerConfigurationException, InterruptedException
+    {
+
+        info("Lucene, parser:" + xslFile + ", index:" + indexDir + ", src:" + xmlGlob + ", threads:" + threads
+                + (incremental ? ", incremental" : ""));
 
+        Path srcDir = Paths.get(xmlGlob);
+        PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:*.xml");
+        if (!Files.isDirectory(srcDir)) {
+            String pattern = srcDir.getFileName().toString();
+            glob = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            srcDir = srcDir.getParent();
+        }
+        if (!Files.isDirectory(srcDir)) {
+            fatal("FATAL " + srcDir + " NOT FOUND");
+        }
+        Path indexPath = Paths.get(indexDir);
+        Files.createDirectories(indexPath);
+        final Manifest manifest = Manifest.load(indexPath);
+        // files seen, to find the removed ones
+        final Set<String> seen = new HashSet<String>();
+        // new records for the manifest, if transformation succeed
+        final Map<Path, Manifest.Entry> updates = new HashMap<Path, Manifest.Entry>();
+        // list files before parsing, the queue is shared by workers
+        final Queue<Path> queue = new ConcurrentLinkedQueue<Path>();
         final PathMatcher matcher = glob; // transmit the matcher by a final variable to the anonymous class
         Files.walkFileTree(srcDir, new SimpleFileVisitor<Path>()
         {
             @Override
-            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException
             {
                 if (path.getFileName().toString().startsWith(".")) return FileVisitResult.CONTINUE;
                 if (!matcher.matches(path.getFileName())) return FileVisitResult.CONTINUE;
-                parse(path);
+                String filename = filename(path);
+                seen.add(filename);
+                Manifest.Entry entry;
+                if (incremental) {
+                    entry = manifest.changed(filename, path, attrs);
+                    if (entry == null) return FileVisitResult.CONTINUE; // unchanged
+                }
+                else {
+                    // no hash, the content is read once, by the indexation
+                    entry = new Manifest.Entry(path.toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+                }
+                updates.put(path, entry);
+                queue.add(path);
                 return FileVisitResult.CONTINUE;
             }
 
@@ -388,6 +571,62 @@ public class Alix
             }
         });
 
+        final int changes = queue.size();
+        Directory dir = FSDirectory.open(indexPath);
+
+        meter = new Meter();
+        // TODO configure analyzers
+        Analyzer analyzer = new AlixAnalyzer(meter);
+        IndexWriterConfig conf = new IndexWriterConfig(analyzer);
+        conf.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        conf.setSimilarity(new BM25Similarity());
+        System.out.println(conf.getCodec());
+        // Optional: for better indexing performance, if you
+        // are indexing many documents, increase the RAM
+        // buffer. But if you do this, increase the max heap
+        // size to the JVM (eg add -Xmx512m or -Xmx1g):
+        //
+        // conf.setRAMBufferSizeMB(256.0);
+        lucwriter = new IndexWriter(dir, conf);
+
+        Worker[] workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(xslFile, queue);
+        }
+        if (workers.length == 1) {
+            workers[0].run();
+        }
+        else {
+            // IndexWriter is thread safe, documents are added concurrently
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (Worker worker : workers) {
+                pool.execute(worker);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        info(meter);
+        // failed files are not recorded, to be tried again next time
+        for (Worker worker : workers) {
+            for (Path path : worker.failures) updates.remove(path);
+        }
+        for (Map.Entry<Path, Manifest.Entry> e : updates.entrySet()) {
+            manifest.put(filename(e.getKey()), e.getValue());
+        }
+        // delete documents of files recorded from this source but not found
+        int removed = 0;
+        if (incremental) {
+            for (Map.Entry<String, Manifest.Entry> e : manifest.entries().entrySet()) {
+                if (seen.contains(e.getKey())) continue;
+                Path path = Paths.get(e.getValue().path);
+                if (!path.startsWith(srcDir) || !matcher.matches(path.getFileName())) continue;
+                info("- " + e.getKey());
+                lucwriter.deleteDocuments(new Term(FILENAME, e.getKey()));
+                manifest.remove(e.getKey());
+                removed++;
+            }
+        }
+
         lucwriter.commit();
         // NOTE: if you want to maximize search performance,
         // you can optionally call forceMerge here. This can be
@@ -395,35 +634,14 @@ public class Alix
         // worth it when your index is relatively static (ie
         // you're done adding documents to it):
         //
-        lucwriter.forceMerge(1);
-        lucwriter.close();
-    }
-
-    /**
-     * Indexes one or more XML documents or documents directory
-     * 
-     * @throws TransformerException
-     * @throws TransformerConfigurationException
-     */
-    static public void parse(Path xmlPath)
-    {
-        // get file name without extension
-        filename = xmlPath.getFileName().toString();
-        filename = filename.substring(0, filename.lastIndexOf('.'));
-        info(filename + "                        ".substring(Math.min(22, filename.length())) + xmlPath.getParent());
-        try {
-            lucwriter.deleteDocuments(new Term(FILENAME, filename));
-            // A file to work on
-            Source xml = new StreamSource(xmlPath.toFile());
-            parser.setParameter("filename", filename);
-            parser.transform(xml, outNull);
-        }
-        catch (IOException e) {
-            fatal(e);
+        if (incremental && (changes + removed) < manifest.size() * mergeRatio) {
+            info("forceMerge skipped, " + changes + " changed, " + removed + " removed, " + manifest.size() + " files");
         }
-        catch (TransformerException e) {
-            error(e);
+        else {
+            lucwriter.forceMerge(1);
         }
+        lucwriter.close();
+        manifest.save(indexPath);
     }
 
     /**
@@ -505,15 +723,23 @@ public class Alix
      */
     public static void main(String args[]) throws Exception
     {
-        String usage = "java alix.lucene.Alix parser.xsl lucene-index corpus/*.xml\n\n"
-                + "Parse the files in corpus, with xsl parser, to be indexed in lucene index directory";
+        String usage = "java alix.lucene.Alix (-i)? parser.xsl lucene-index corpus/*.xml threads?\n\n"
+                + "Parse the files in corpus, with xsl parser, to be indexed in lucene index directory\n"
+                + "-i incremental, only files added or changed since last run";
+        boolean incremental = false;
+        if (args.length > 0 && args[0].equals("-i")) {
+            incremental = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         if (args.length < 3) {
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
 
         Date start = new Date();
-        Alix.walk(args[0], args[1], args[2]);
+        int threads = 1;
+        if (args.length > 3) threads = Integer.parseInt(args[3]);
+        Alix.walk(args[0], args[1], args[2], threads, incremental);
         Date end = new Date();
         info(end.getTime() - start.getTime() + " total ms.");
     }
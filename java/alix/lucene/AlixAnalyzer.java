@@ -1,10 +1,10 @@
 package alix.lucene;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Arrays;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -14,24 +14,46 @@ import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.util.BytesRef;
 
 /**
- * Analyzer for french. The method getOffsets is not thread safe (for
- * performance).
+ * Analyzer for french. The method getOffsets is thread safe, with an offsets
+ * encoder by thread.
  * 
  * @author fred
  *
  */
 public class AlixAnalyzer extends Analyzer
 {
-    /** Store offsets of the tokenizer, not thread safe */
-    private OffsetList offsets = new OffsetList();
+    /** Encoder of offsets, one by thread */
+    private final ThreadLocal<Offsets.Encoder> encoders = new ThreadLocal<Offsets.Encoder>()
+    {
+        @Override
+        protected Offsets.Encoder initialValue()
+        {
+            return new Offsets.Encoder();
+        }
+    };
+    /** Optional throughput counters for the analysis stage */
+    private final Meter meter;
 
     public AlixAnalyzer()
     {
+        this(null);
+    }
 
+    /**
+     * Analyzer recording the time spent to consume its token streams.
+     *
+     * @param meter
+     *            counters shared by all indexing threads, may be null
+     */
+    public AlixAnalyzer(Meter meter)
+    {
+        this.meter = meter;
     }
 
     /**
-     * Process a text to get offsets of tokens. Not thread safe.
+     * Process a text to get offsets of tokens, encoded as a compact immutable
+     * array of bytes, see {@link Offsets}. Thread safe, token streams and
+     * encoders are reused by thread.
      * 
      * @param text
      * @return
@@ -39,8 +61,10 @@ public class AlixAnalyzer extends Analyzer
      */
     public BytesRef getOffsets(String text) throws IOException
     {
+        Offsets.Encoder offsets = encoders.get();
         offsets.reset();
-        TokenStream ts = this.tokenStream(Alix.OFFSETS, new StringReader(text));
+        // tokenStream(String, String) reuses a string reader by thread
+        TokenStream ts = this.tokenStream(Alix.OFFSETS, text);
         // listen to offsets
         OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
         try {
@@ -62,10 +86,52 @@ public class AlixAnalyzer extends Analyzer
         final Tokenizer source = new FrTokenizer();
         // for offsets, no filters needed
         if (fieldName.equals(Alix.OFFSETS)) {
-            return new TokenStreamComponents(new FrTokenizer());
+            return new TokenStreamComponents(source);
+        }
+        if (meter != null) {
+            return new TokenStreamComponents(source, new MeterFilter(source, meter.analyze));
         }
-        return new TokenStreamComponents(new FrTokenizer());
+        return new TokenStreamComponents(source);
     }
 
+    /**
+     * Count tokens and time between reset() and end() of a stream. Lucene reuse
+     * components by thread, so there is no concurrency on the fields.
+     */
+    private static final class MeterFilter extends TokenFilter
+    {
+        private final Meter.Stage stage;
+        private long start;
+        private long tokens;
+
+        MeterFilter(TokenStream input, Meter.Stage stage)
+        {
+            super(input);
+            this.stage = stage;
+        }
+
+        @Override
+        public void reset() throws IOException
+        {
+            super.reset();
+            start = System.nanoTime();
+            tokens = 0;
+        }
+
+        @Override
+        public final boolean incrementToken() throws IOException
+        {
+            if (!input.incrementToken()) return false;
+            tokens++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException
+        {
+            super.end();
+            stage.add(tokens, System.nanoTime() - start);
+        }
+    }
 
 }
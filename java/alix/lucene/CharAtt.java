@@ -241,6 +241,17 @@ public class CharAtt extends AttributeImpl
     return this;
   }
 
+  /**
+   * Append a slice of a char array, no allocation if enough room.
+   */
+  public final CharTermAttribute append(final char[] buf, final int offset, final int length)
+  {
+    System.arraycopy(buf, offset, resizeBuffer(this.len + length), this.len, length);
+    this.len += length;
+    hash = 0;
+    return this;
+  }
+
   private CharTermAttribute appendNull()
   {
     resizeBuffer(len + 4);
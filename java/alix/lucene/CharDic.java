@@ -1,6 +1,7 @@
 package alix.lucene;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
@@ -10,16 +11,22 @@ import java.io.Reader;
 import java.io.Serializable;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import alix.fr.dic.Tag;
 import alix.lucene.CharDic.LexEntry;
 import alix.util.Chain;
+import alix.util.CharPack;
 import alix.util.CsvReader;
+import alix.util.Snapshot;
 import alix.util.Occ;
 import alix.util.StemTrie;
 
@@ -34,20 +41,63 @@ public class CharDic
 {
   /** French stopwords */
   public final static HashSet<CharAtt> STOP = new HashSet<CharAtt>((int) (700 * 0.75));
-  /** 130 000 types French lexicon seems not too bad for memory */
-  public final static HashMap<CharAtt, LexEntry> WORD = new HashMap<CharAtt, LexEntry>((int) (150000 * 0.75));
-  /** French names on which keep Capitalization */
-  public final static HashMap<CharAtt, NameEntry> NAME = new HashMap<CharAtt, NameEntry>((int) (50000 * 0.75));
-  /** Graphic normalization (replacement) */
-  public final static HashMap<CharAtt, CharAtt> NORM = new HashMap<CharAtt, CharAtt>((int) (100 * 0.75));
+  /** 130 000 types French lexicon, packed, tag is the grammatical category, value is the lemma */
+  public final static CharPack WORD;
+  /** French names on which keep Capitalization, packed, tag is the name category, value is a normalized form */
+  public final static CharPack NAME;
+  /** Graphic normalization (replacement), packed, value is the replacement */
+  public final static CharPack NORM;
   /** Ellisions, for tokenization and normalisation */
   public final static HashMap<CharAtt, CharAtt> ELLISION = new HashMap<CharAtt, CharAtt>((int) (30 * 0.75));
   /** Abbreviations with a final dot */
   // protected static HashMap<String, String> BREVIDOT = new HashMap<String, String>((int) (100 * 0.75));
-  /* Load dictionaries */
+  /** Csv resources of the dictionaries, relative to the Tag class */
+  static final String[] RESOURCES = { "stop.csv", "word.csv", "commune.csv", "france.csv", "forename.csv",
+      "place.csv", "author.csv", "name.csv", "caps.csv", "orth.csv", "ellision.csv" };
+  /** File name of the binary snapshot of the dictionaries */
+  public static final String SNAPSHOT = "chardic.bin";
+  /** Header of the snapshot, change it with format */
+  private static final String MAGIC = "alix.lucene.CharDic 1";
+  /* Load dictionaries, from snapshot if fresh, or from csv */
   static {
+    CharPack[] packs = null;
+    ByteBuffer buf = Snapshot.open(Snapshot.path(CharDic.class, SNAPSHOT), MAGIC, stamp());
+    if (buf != null) {
+      try {
+        packs = read(buf);
+      }
+      catch (RuntimeException e) {
+        STOP.clear();
+        ELLISION.clear();
+        packs = null;
+      }
+    }
+    if (packs == null) packs = csv();
+    WORD = packs[0];
+    NAME = packs[1];
+    NORM = packs[2];
+  }
+
+  /**
+   * Stamp of the csv resources, to test if snapshot is fresh.
+   */
+  static long stamp()
+  {
+    return Snapshot.stamp(Tag.class, RESOURCES);
+  }
+
+  /**
+   * Load tables from csv resources
+   * 
+   * @return WORD, NAME, NORM
+   */
+  private static CharPack[] csv()
+  {
     String file = null;
     CsvReader csv = null;
+    CharPack.Builder word = new CharPack.Builder();
+    CharPack.Builder name = new CharPack.Builder();
+    CharPack.Builder norm = new CharPack.Builder();
     try {
       Reader reader;
       // unmodifiable map with jdk10 Map.copyOf is not faster
@@ -69,9 +119,8 @@ public class CharDic
       while (csv.readRow()) {
         Chain orth = csv.row().get(0);
         if (orth.isEmpty() || orth.charAt(0) == '#') continue;
-        if (WORD.containsKey(orth)) continue;
-        CharAtt key = new CharAtt(orth);
-        WORD.put(key, new LexEntry(csv.row().get(1), csv.row().get(2)));
+        // first win
+        word.put(orth, Tag.code(csv.row().get(1)), lem(csv.row().get(2)), false);
       }
       // nouns, put persons after places (Molière is also a village, but not very common)
       String[] files = {"commune.csv", "france.csv", "forename.csv", "place.csv", "author.csv", "name.csv"};
@@ -84,7 +133,9 @@ public class CharDic
         while (csv.readRow()) {
           Chain cell = csv.row().get(0);
           if (cell.isEmpty() || cell.charAt(0) == '#') continue;
-          NAME.put(new CharAtt(cell), new NameEntry(csv.row().get(1), csv.row().get(2)));
+          short tag = Tag.code(csv.row().get(1));
+          if (tag == 0) tag = Tag.NAME;
+          name.put(cell, tag, lem(csv.row().get(2)), true);
         }
       }
       String[] list = {"caps.csv", "orth.csv"};
@@ -96,7 +147,7 @@ public class CharDic
         while (csv.readRow()) {
           Chain cell = csv.row().get(0);
           if (cell.isEmpty() || cell.charAt(0) == '#') continue;
-          NORM.put(new CharAtt(cell), new CharAtt(csv.row().get(1)));
+          norm.put(cell, (short) 0, csv.row().get(1), true);
         }
       }
       file = "ellision.csv";
@@ -111,17 +162,77 @@ public class CharDic
     }
     // output errors at start
     catch (Exception e) {
-      System.out.println("Dictionary parse error in file "+file+" line "+csv.line());
+      System.out.println("Dictionary parse error in file "+file+" line "+((csv == null)?-1:csv.line()));
       e.printStackTrace();
     }
+    return new CharPack[] { word.build(), name.build(), norm.build() };
+  }
+
+  /**
+   * Load tables from a snapshot
+   * 
+   * @return WORD, NAME, NORM
+   */
+  private static CharPack[] read(ByteBuffer buf)
+  {
+    for (int i = buf.getInt(); i > 0; i--) {
+      STOP.add(new CharAtt(Snapshot.getString(buf)));
+    }
+    for (int i = buf.getInt(); i > 0; i--) {
+      ELLISION.put(new CharAtt(Snapshot.getString(buf)), new CharAtt(Snapshot.getString(buf)));
+    }
+    return new CharPack[] { CharPack.read(buf), CharPack.read(buf), CharPack.read(buf) };
+  }
+
+  /**
+   * Write a snapshot of the dictionaries loaded, to be mapped at next start.
+   * 
+   * @throws IOException
+   */
+  public static void snapshot(Path file) throws IOException
+  {
+    try (DataOutputStream out = Snapshot.create(file, MAGIC, stamp())) {
+      out.writeInt(STOP.size());
+      for (CharAtt stop : STOP) Snapshot.putString(out, stop.toString());
+      out.writeInt(ELLISION.size());
+      for (Map.Entry<CharAtt, CharAtt> e : ELLISION.entrySet()) {
+        Snapshot.putString(out, e.getKey().toString());
+        Snapshot.putString(out, e.getValue().toString());
+      }
+      WORD.write(out);
+      NAME.write(out);
+      NORM.write(out);
+    }
+    Snapshot.commit(file);
   }
-  public static LexEntry word(CharAtt att)
+
+  /**
+   * An empty cell is no value.
+   */
+  private static Chain lem(Chain cell)
+  {
+    if (cell == null || cell.isEmpty()) return null;
+    return cell;
+  }
+
+  /**
+   * Entry of a word in {@link #WORD}, no allocation.
+   * 
+   * @return entry index or CharPack.NOT_FOUND
+   */
+  public static int word(CharAtt att)
   {
-    return WORD.get(att);
+    return WORD.find(att.buffer(), 0, att.length());
   }
-  public static NameEntry name(CharAtt att)
+
+  /**
+   * Entry of a name in {@link #NAME}, no allocation.
+   * 
+   * @return entry index or CharPack.NOT_FOUND
+   */
+  public static int name(CharAtt att)
   {
-    return NAME.get(att);
+    return NAME.find(att.buffer(), 0, att.length());
   }
 
   /*
@@ -189,6 +300,46 @@ public class CharDic
    */
   public static void main(String[] args) throws IOException, ParseException, URISyntaxException
   {
-    // Load wor dic
+    if (args.length > 0 && args[0].equals("snapshot")) {
+      long time = System.nanoTime();
+      Path file = (args.length > 1) ? Paths.get(args[1]) : Snapshot.path(CharDic.class, SNAPSHOT);
+      snapshot(file);
+      System.out.println(file + " written in " + ((System.nanoTime() - time) / 1000000) + " ms.");
+      return;
+    }
+    // compare packed dictionary with a HashMap of the same entries
+    CharPack dic = (WORD.size() > NAME.size()) ? WORD : NAME;
+    int size = dic.size();
+    HashMap<CharAtt, NameEntry> map = new HashMap<CharAtt, NameEntry>((int) (size / 0.75));
+    CharAtt[] keys = new CharAtt[size * 2];
+    for (int e = 0; e < size; e++) {
+      map.put(new CharAtt(dic.key(e)), new NameEntry(new Chain(Tag.label(dic.tag(e))), new Chain(dic.key(e))));
+      // not the same object, as a term attribute
+      keys[2 * e] = new CharAtt(dic.key(e));
+      // a missing key
+      keys[2 * e + 1] = new CharAtt(dic.key(e) + "z");
+    }
+    System.out.println(size + " entries, pool " + dic.pool().length + " chars");
+    int ops = 10000000;
+    java.util.Random rand = new java.util.Random(1);
+    int[] picks = new int[ops];
+    for (int i = 0; i < ops; i++) picks[i] = rand.nextInt(keys.length);
+    for (int loop = 0; loop < 5; loop++) {
+      long time = System.nanoTime();
+      int found = 0;
+      for (int i = 0; i < ops; i++) {
+        CharAtt key = keys[picks[i]];
+        key.setLength(key.length()); // reset cached hash, as a new token
+        if (map.get(key) != null) found++;
+      }
+      System.out.println("HashMap  " + ((System.nanoTime() - time) / 1000000) + " ms. " + found);
+      time = System.nanoTime();
+      found = 0;
+      for (int i = 0; i < ops; i++) {
+        CharAtt key = keys[picks[i]];
+        if (dic.find(key.buffer(), 0, key.length()) != CharPack.NOT_FOUND) found++;
+      }
+      System.out.println("CharPack " + ((System.nanoTime() - time) / 1000000) + " ms. " + found);
+    }
   }
 }
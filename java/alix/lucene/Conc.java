@@ -1,156 +1,416 @@
 package alix.lucene;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.List;
+import java.util.Set;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StoredField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
-import org.apache.lucene.search.spans.SpanQuery;
-import org.apache.lucene.search.spans.SpanTermQuery;
-import org.apache.lucene.search.spans.SpanWeight;
-import org.apache.lucene.search.spans.SpanWeight.Postings;
-import org.apache.lucene.search.spans.Spans;
-import org.apache.lucene.search.spans.TermSpans;
-import org.apache.lucene.store.Directory;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 
 /**
- * 
+ * Concordance (Key Word In Context) of a term or a phrase in a text field of
+ * an index. Hits are found by the positions in the postings, stored fields are
+ * only loaded for the documents of the requested page. Left and right contexts
+ * are cut from the stored text with the offsets of the binary field
+ * {@link Alix#offsets(String)}, or, for older indexes, with the offsets of the
+ * term vector of the pivot.
+ *
  * @author fred
  *
  */
 public class Conc
 {
-    static String spaces;
-    static {
-        char[] cs = new char[200];
-        Arrays.fill(cs, ' ');
-        spaces = new String(cs);
+    /** The index to search */
+    private final IndexReader reader;
+    /** Text field to search */
+    private final String field;
+    /** Stored fields to load for a line */
+    private final Set<String> fields;
+    /** Width of contexts in chars */
+    private int width = 50;
+
+    /**
+     * A line of concordance.
+     */
+    public static class Line
+    {
+        /** Lucene internal docId */
+        public final int docId;
+        /** Value of the field FILENAME */
+        public final String filename;
+        /** Position of the pivot in the field */
+        public final int position;
+        /** Left context */
+        public final String left;
+        /** The term or the phrase found */
+        public final String pivot;
+        /** Right context */
+        public final String right;
+        /** Width of contexts, left context is padded to it in {@link #toString()} */
+        public final int width;
+
+        public Line(int docId, String filename, int position, String left, String pivot, String right)
+        {
+            this(docId, filename, position, left, pivot, right, 50);
+        }
+
+        public Line(int docId, String filename, int position, String left, String pivot, String right, int width)
+        {
+            this.docId = docId;
+            this.filename = filename;
+            this.position = position;
+            this.left = left;
+            this.pivot = pivot;
+            this.right = right;
+            this.width = width;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = left.length(); i < width; i++) sb.append(' ');
+            sb.append(left).append(" | ").append(pivot).append(" | ").append(right);
+            sb.append("  (").append(filename).append(")");
+            return sb.toString();
+        }
     }
-    public static void main(String args[]) throws Exception
+
+    public Conc(IndexReader reader, String field)
     {
-        Analyzer analyzer = new AlixAnalyzer();
-        Directory directory = new RAMDirectory();
-        IndexWriterConfig config = new IndexWriterConfig(analyzer);
-        IndexWriter indexWriter = new IndexWriter(directory, config);
-        Document doc = new Document();
-        String name = "text";
-        String text = "Lucene is an Information Retrieval library written in Java";
-        doc.add(new Field(name, text, Alix.ftypeText));
-        text = "Lucene est une librairie d'indexation plein texte en Java.";
-        doc.add(new Field(name, text, Alix.ftypeText));
-        indexWriter.addDocument(doc);
-        indexWriter.addDocument(doc);
-        IndexReader ir=DirectoryReader.open(indexWriter);
-        IndexSearcher is = new IndexSearcher(ir);
-        doc = ir.document(1);
-        Terms vector = ir.getTermVector(0, name);
-        System.out.println(vector.getStats());
-        vector.
-        TermsEnum termit = vector.iterator();
-        while(termit.next() != null) {
-            System.out.println(termit.term().utf8ToString()+" "+termit.totalTermFreq()+" "+termit.docFreq());
+        this.reader = reader;
+        this.field = field;
+        this.fields = new HashSet<String>(Arrays.asList(field, Alix.offsets(field), Alix.FILENAME));
+    }
+
+    /**
+     * Set the width of the contexts, in chars.
+     */
+    public Conc width(int width)
+    {
+        this.width = width;
+        return this;
+    }
+
+    /**
+     * Count the occurrences of a term or a phrase, from the postings only.
+     *
+     * @param phrase
+     *            one term or more, as indexed
+     * @param filenames
+     *            restrict to documents with these values of FILENAME, or all
+     *            documents if null
+     * @throws IOException
+     */
+    public int count(String[] phrase, String[] filenames) throws IOException
+    {
+        return collect(phrase, filenames, 0, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Get a page of concordance. Postings are walked until the last line of the
+     * page, stored fields are only loaded for the documents of the page.
+     *
+     * @param phrase
+     *            one term or more, as indexed
+     * @param filenames
+     *            restrict to documents with these values of FILENAME, or all
+     *            documents if null
+     * @param from
+     *            index of the first hit of the page
+     * @param limit
+     *            max number of lines
+     * @throws IOException
+     */
+    public List<Line> kwic(String[] phrase, String[] filenames, int from, int limit) throws IOException
+    {
+        List<Line> lines = new ArrayList<Line>(Math.min(limit, 1000));
+        collect(phrase, filenames, from, limit, lines);
+        return lines;
+    }
+
+    /**
+     * Walk the hits, append lines from the hit number from, stop after limit
+     * lines.
+     *
+     * @return number of hits seen.
+     */
+    private int collect(String[] phrase, String[] filenames, int from, int limit, List<Line> lines)
+            throws IOException
+    {
+        if (phrase == null || phrase.length == 0) return 0;
+        BytesRef[] terms = new BytesRef[phrase.length];
+        for (int i = 0; i < phrase.length; i++) {
+            terms[i] = new BytesRef(phrase[i]);
         }
-        System.out.println(termit.seekCeil(new BytesRef("ple")));
-        System.out.println(termit.term().utf8ToString());
-        
-        // offsets = new OffsetList(doc.getField("offsets").binaryValue());
+        int hits = 0;
+        final int end = (limit == Integer.MAX_VALUE) ? limit : from + limit;
+        int[][] positions = new int[terms.length][16];
+        int[] freqs = new int[terms.length];
+        int[] matches = new int[16];
+        for (LeafReaderContext context : reader.leaves()) {
+            LeafReader leaf = context.reader();
+            Terms fieldTerms = leaf.terms(field);
+            if (fieldTerms == null) continue;
+            // postings of each term of the phrase, positions needed for a phrase
+            PostingsEnum[] postings = new PostingsEnum[terms.length];
+            boolean found = true;
+            TermsEnum tenum = fieldTerms.iterator();
+            for (int i = 0; i < terms.length; i++) {
+                if (!tenum.seekExact(terms[i])) {
+                    found = false;
+                    break;
+                }
+                int flags = (terms.length == 1 && lines == null) ? PostingsEnum.FREQS : PostingsEnum.POSITIONS;
+                postings[i] = tenum.postings(null, flags);
+            }
+            if (!found) continue;
+            FixedBitSet filter = null;
+            if (filenames != null) {
+                filter = filter(leaf, filenames);
+                if (filter == null) continue;
+            }
+            Bits live = leaf.getLiveDocs();
+            int doc = -1;
+            while ((doc = next(postings, filter, doc + 1)) != DocIdSetIterator.NO_MORE_DOCS) {
+                if (live != null && !live.get(doc)) continue;
+                // count of hits in this doc
+                int count;
+                if (terms.length == 1 && (lines == null || hits + postings[0].freq() <= from)) {
+                    count = postings[0].freq();
+                    if (hits + count > end) count = end - hits;
+                    hits += count;
+                    if (hits >= end) return hits;
+                    continue;
+                }
+                for (int i = 0; i < terms.length; i++) {
+                    int freq = postings[i].freq();
+                    if (positions[i].length < freq) positions[i] = new int[freq];
+                    for (int j = 0; j < freq; j++) positions[i][j] = postings[i].nextPosition();
+                    freqs[i] = freq;
+                }
+                if (matches.length < freqs[0]) matches = new int[freqs[0]];
+                count = match(positions, freqs, matches);
+                if (lines == null || hits + count <= from) {
+                    if (hits + count > end) count = end - hits;
+                    hits += count;
+                    if (hits >= end) return hits;
+                    continue;
+                }
+                // this doc has lines for the page, load it
+                Document document = leaf.document(doc, fields);
+                String text = document.get(field);
+                if (text == null) throw new IllegalArgumentException("Field " + field + " is not stored");
+                BytesRef bytes = document.getBinaryValue(Alix.offsets(field));
+                Offsets offsets = null;
+                int[] starts = null;
+                int[] ends = null;
+                if (bytes != null) offsets = new Offsets(bytes);
+                else {
+                    // older index, offsets of the pivot from the term vector
+                    starts = new int[count];
+                    ends = new int[count];
+                    vector(leaf, doc, terms, matches, count, starts, ends);
+                }
+                String filename = document.get(Alix.FILENAME);
+                for (int j = 0; j < count; j++, hits++) {
+                    if (hits < from) continue;
+                    if (hits >= end) return hits;
+                    int pos = matches[j];
+                    int start;
+                    int stop;
+                    int left;
+                    int right;
+                    if (offsets != null) {
+                        start = offsets.start(pos);
+                        stop = offsets.end(pos + terms.length - 1);
+                        // extend contexts to full tokens
+                        int p = pos;
+                        while (p > 0 && start - offsets.start(p - 1) <= width) p--;
+                        left = (p == pos) ? Math.max(0, start - width) : offsets.start(p);
+                        p = pos + terms.length - 1;
+                        while (p < offsets.size() - 1 && offsets.end(p + 1) - stop <= width) p++;
+                        right = (p == pos + terms.length - 1) ? Math.min(text.length(), stop + width) : offsets.end(p);
+                    }
+                    else {
+                        start = starts[j];
+                        stop = ends[j];
+                        left = Math.max(0, start - width);
+                        right = Math.min(text.length(), stop + width);
+                    }
+                    lines.add(new Line(context.docBase + doc, filename, pos, detag(text, left, start),
+                            detag(text, start, stop), detag(text, stop, right), width));
+                }
+                if (hits >= end) return hits;
+            }
+        }
+        return hits;
+    }
 
-        /*
-        String usage = "java alix.lucene.Conc lucene-index field\n\n";
+    /**
+     * Next doc common to all postings and the filter, from target.
+     */
+    private static int next(PostingsEnum[] postings, FixedBitSet filter, int target) throws IOException
+    {
+        while (true) {
+            if (filter != null) {
+                if (target >= filter.length()) return DocIdSetIterator.NO_MORE_DOCS;
+                target = filter.nextSetBit(target);
+                if (target == DocIdSetIterator.NO_MORE_DOCS) return target;
+            }
+            boolean agree = true;
+            for (PostingsEnum it : postings) {
+                int doc = it.docID();
+                if (doc < target) doc = it.advance(target);
+                if (doc == DocIdSetIterator.NO_MORE_DOCS) return doc;
+                if (doc > target) {
+                    target = doc;
+                    agree = false;
+                    break;
+                }
+            }
+            if (agree) return target;
+        }
+    }
+
+    /**
+     * Documents of a leaf with one of the filenames, null if none.
+     */
+    private static FixedBitSet filter(LeafReader leaf, String[] filenames) throws IOException
+    {
+        Terms names = leaf.terms(Alix.FILENAME);
+        if (names == null) return null;
+        TermsEnum tenum = names.iterator();
+        FixedBitSet bits = null;
+        PostingsEnum docs = null;
+        for (String filename : filenames) {
+            if (!tenum.seekExact(new BytesRef(filename))) continue;
+            if (bits == null) bits = new FixedBitSet(leaf.maxDoc());
+            docs = tenum.postings(docs, PostingsEnum.NONE);
+            bits.or(docs);
+        }
+        return bits;
+    }
+
+    /**
+     * Positions of term 0 followed by the other terms of the phrase.
+     *
+     * @return count of matches
+     */
+    private static int match(int[][] positions, int[] freqs, int[] matches)
+    {
+        int count = 0;
+        int[] cursors = new int[positions.length];
+        candidates: for (int j = 0; j < freqs[0]; j++) {
+            int pos = positions[0][j];
+            for (int i = 1; i < positions.length; i++) {
+                int[] list = positions[i];
+                int c = cursors[i];
+                while (c < freqs[i] && list[c] < pos + i) c++;
+                cursors[i] = c;
+                if (c >= freqs[i]) break candidates;
+                if (list[c] != pos + i) continue candidates;
+            }
+            matches[count++] = pos;
+        }
+        return count;
+    }
+
+    /**
+     * Offsets of the matches from the term vector, only the terms of the phrase
+     * are read.
+     */
+    private void vector(LeafReader leaf, int doc, BytesRef[] terms, int[] matches, int count, int[] starts,
+            int[] ends) throws IOException
+    {
+        Terms vector = leaf.getTermVector(doc, field);
+        if (vector == null || !vector.hasOffsets())
+            throw new IllegalArgumentException("No offsets for field " + field + ", doc " + doc);
+        TermsEnum tenum = vector.iterator();
+        int[] ends2 = (terms.length == 1) ? new int[] { 0 } : new int[] { 0, terms.length - 1 };
+        for (int t : ends2) {
+            tenum.seekExact(terms[t]);
+            PostingsEnum postings = tenum.postings(null, PostingsEnum.OFFSETS);
+            postings.nextDoc();
+            int freq = postings.freq();
+            int j = 0;
+            for (int k = 0; k < freq && j < count; k++) {
+                int pos = postings.nextPosition();
+                if (pos != matches[j] + t) continue;
+                if (t == 0) starts[j] = postings.startOffset();
+                if (t == terms.length - 1) ends[j] = postings.endOffset();
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Get a segment of text without xml tags, or broken tags at the limits.
+     */
+    static String detag(String text, int start, int end)
+    {
+        StringBuilder sb = new StringBuilder(end - start);
+        // a broken tag at start ?
+        int gt = text.indexOf('>', start);
+        int lt = text.indexOf('<', start);
+        if (gt >= 0 && gt < end && (lt < 0 || gt < lt)) start = gt + 1;
+        boolean intag = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '<') intag = true;
+            else if (c == '>') intag = false;
+            else if (intag) continue;
+            else if (c == '\n' || c == '\r' || c == '\t') sb.append(' ');
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public static void main(String args[]) throws Exception
+    {
+        String usage = "java alix.lucene.Conc lucene-index field filename?\n\n";
+        if (args.length < 2) {
+            System.err.println("Usage: " + usage);
+            System.exit(1);
+        }
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
-        String index = args[0];
-        String field = args[1];
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
-        IndexSearcher searcher = new IndexSearcher(reader);
-        // Analyzer analyzer = new StandardAnalyzer();
-        // SimpleQueryParser parser = new SimpleQueryParser(analyzer, field);
-        
-        TermQuery filter = new TermQuery(new Term(Alix.FILENAME, "bergson_evolution"));
-       
-        BooleanClause clause1 = new BooleanClause(filter, BooleanClause.Occur.FILTER);
-
-        int lwidth = 50;
-        int rwidth = 50;
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(args[0])));
+        Conc conc = new Conc(reader, args[1]);
+        String[] filenames = null;
+        if (args.length > 2) filenames = Arrays.copyOfRange(args, 2, args.length);
+        int limit = 100;
         while (true) {
             System.out.println("Enter query: ");
             String line = in.readLine();
             if (line == null || line.trim().isEmpty()) break;
-            // Query query = parser.parse(line);
-            SpanQuery pivot = new SpanTermQuery(new Term(field, line));
-            BooleanQuery bq = new BooleanQuery.Builder().add(filter, BooleanClause.Occur.FILTER).add(pivot, BooleanClause.Occur.MUST).build();
-            
-            
-            int count = searcher.count(bq);
-            System.out.println(count+" documents");
-            SpanWeight spanWeight = bq.createWeight(searcher, false, 1);
-            LeafReaderContext context = searcher.getIndexReader().leaves().iterator().next();
-            System.out.println(spanWeight.getSpans(context, Postings.OFFSETS).getClass());
-            TermSpans spans = (TermSpans) spanWeight.getSpans(context, Postings.OFFSETS);
-            int docid = 0;
-
-            while((docid = spans.nextDoc()) != Spans.NO_MORE_DOCS){
-              System.out.println(spans.toString());
-              System.out.println("docid="+docid);
-              Document doc = reader.document(docid);
-              String text = doc.get(field);
-              Terms vector = reader.getTermVector(docid, field);
-              System.out.println("Terms size="+vector.size());
-              final TermsEnum termsEnum = vector.iterator();
-              BytesRef termBytesRef;
-              while ((termBytesRef = termsEnum.next()) != null) {
-                  System.out.print(termBytesRef.utf8ToString());
-                  System.out.print(" ");
-              }
-              while(spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
-                  PostingsEnum postings = spans.getPostings();
-                  int start = postings.startOffset();
-                  int end = postings.endOffset();
-                  int lstart = start - lwidth;
-                  if (lstart < 0) {
-                      System.out.print(spaces.substring(0, -lstart));
-                      lstart = 0;
-                  }
-                  System.out.print(text.substring(lstart, start));
-                  System.out.print(" | ");
-                  System.out.print(text.substring(start, end));
-                  System.out.print(" | ");
-                  int rend = Math.min(end+rwidth+1, text.length());
-                  System.out.println(text.substring(end+1, rend));
-              }
-            }
-               // Date end = new Date();
-        // info(end.getTime() - start.getTime() + " total ms.");
+            String[] phrase = line.trim().split("\\s+");
+            long time = System.nanoTime();
+            List<Line> lines = conc.kwic(phrase, filenames, 0, limit);
+            for (Line l : lines) System.out.println(l);
+            System.out.println(lines.size() + " lines in " + ((System.nanoTime() - time) / 1000000) + " ms.");
+            time = System.nanoTime();
+            System.out.println(conc.count(phrase, filenames) + " occurrences in "
+                    + ((System.nanoTime() - time) / 1000000) + " ms.");
         }
-        */
+        reader.close();
     }
 
 }
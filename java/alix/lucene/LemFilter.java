@@ -23,10 +23,9 @@ import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 
 import alix.fr.dic.Tag;
-import alix.lucene.CharDic.LexEntry;
-import alix.lucene.CharDic.NameEntry;
 import alix.util.Chain;
 import alix.util.Char;
+import alix.util.CharPack;
 
 
 /**
@@ -94,13 +93,13 @@ public final class LemFilter extends TokenFilter
     // a tag do not affect the prev flags
     if (c1 == '<') return true;
     this.waspun = false;
-    LexEntry word;
-    NameEntry name;
+    int word;
+    int name;
     // norm case
     if (Char.isUpperCase(c1)) {
       name = CharDic.name(term);
-      if (name != null) {
-        flagsAtt.setFlags(name.tag);
+      if (name != CharPack.NOT_FOUND) {
+        flagsAtt.setFlags(CharDic.NAME.tag(name));
         return true;
       }
       // if not after pun, say it's a name
@@ -111,7 +110,7 @@ public final class LemFilter extends TokenFilter
       // test if it is a known word 
       term.setCharAt(0, Char.toLower(c1));
       word = CharDic.word(term);
-      if (word == null) { 
+      if (word == CharPack.NOT_FOUND) { 
         // unknown, restore cap, let other filters say better
         term.setCharAt(0, Char.toUpper(c1));
         return true;
@@ -119,12 +118,12 @@ public final class LemFilter extends TokenFilter
     }
     else {
       word = CharDic.word(term);
-      if (word == null) return true;
+      if (word == CharPack.NOT_FOUND) return true;
     }
     // known word
-    flagsAtt.setFlags(word.tag);
-    if (word.lem != null) {
-      lem.append(word.lem);
+    flagsAtt.setFlags(CharDic.WORD.tag(word));
+    if (CharDic.WORD.hasValue(word)) {
+      lem.append(CharDic.WORD.pool(), CharDic.WORD.valueOffset(word), CharDic.WORD.valueLength(word));
     }
     return true;
   }
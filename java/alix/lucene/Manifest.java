@@ -0,0 +1,191 @@
+package alix.lucene;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * List of the files indexed, with size, modification time and a content hash,
+ * recorded as a sidecar file in the lucene index directory. Used to re-index
+ * only the files added or changed since last commit. Keys are the value of the
+ * field {@link Alix#FILENAME}. The hash is computed only when needed, by
+ * {@link #changed(String, Path, BasicFileAttributes)}, a full indexation
+ * records it as unknown ({@link #NOHASH}).
+ *
+ * @author glorieux-f
+ */
+public class Manifest
+{
+    /** Name of the sidecar file in index directory */
+    public static final String FILE = "alix.manifest";
+    /** Hash of an entry not yet computed */
+    public static final String NOHASH = "-";
+    /** Entries by filename */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * A file as recorded in the manifest.
+     */
+    public static class Entry
+    {
+        public final String path;
+        public final long size;
+        public final long mtime;
+        public final String hash;
+
+        /**
+         * An entry with size and time only, content hash unknown.
+         */
+        public Entry(final String path, final long size, final long mtime)
+        {
+            this(path, size, mtime, NOHASH);
+        }
+
+        public Entry(final String path, final long size, final long mtime, final String hash)
+        {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        @Override
+        public String toString()
+        {
+            return path + "\t" + size + "\t" + mtime + "\t" + hash;
+        }
+    }
+
+    /**
+     * Load the manifest of an index directory, empty if not found.
+     *
+     * @throws IOException
+     */
+    public static Manifest load(final Path indexDir) throws IOException
+    {
+        Manifest manifest = new Manifest();
+        Path file = indexDir.resolve(FILE);
+        if (!Files.exists(file)) return manifest;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String l;
+            while ((l = reader.readLine()) != null) {
+                String[] cells = l.split("\t");
+                if (cells.length < 5) continue;
+                manifest.entries.put(cells[0],
+                        new Entry(cells[1], Long.parseLong(cells[2]), Long.parseLong(cells[3]), cells[4]));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest in an index directory, after the commit of the index.
+     * Written to a temp file then moved, a crash keeps the old manifest, and
+     * the files will be indexed again.
+     *
+     * @throws IOException
+     */
+    public void save(final Path indexDir) throws IOException
+    {
+        Path tmp = indexDir.resolve(FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                writer.write(e.getKey());
+                writer.write('\t');
+                writer.write(e.getValue().toString());
+                writer.write('\n');
+            }
+        }
+        Files.move(tmp, indexDir.resolve(FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Entry get(final String filename)
+    {
+        return entries.get(filename);
+    }
+
+    public void put(final String filename, final Entry entry)
+    {
+        entries.put(filename, entry);
+    }
+
+    public Entry remove(final String filename)
+    {
+        return entries.remove(filename);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Filenames recorded, a copy, safe to modify the manifest while iterating.
+     */
+    public Map<String, Entry> entries()
+    {
+        return new HashMap<String, Entry>(entries);
+    }
+
+    /**
+     * Compare a file with its record. Size and modification time are tried
+     * first, the content is hashed only if they differ (ex: a touched file). A
+     * record without hash (full indexation) can't be compared by content, the
+     * file is changed.
+     *
+     * @return a new entry if the file is new or changed, or null if unchanged.
+     * @throws IOException
+     */
+    public Entry changed(final String filename, final Path path, final BasicFileAttributes attrs) throws IOException
+    {
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        Entry old = entries.get(filename);
+        if (old != null && old.size == size && old.mtime == mtime && old.path.equals(path.toString())) return null;
+        Entry entry = new Entry(path.toString(), size, mtime, hash(path));
+        if (old != null && !NOHASH.equals(old.hash) && old.hash.equals(entry.hash) && old.path.equals(entry.path)) {
+            // same content, record the new time
+            entries.put(filename, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * MD5 of a file content, as an hexadecimal String.
+     *
+     * @throws IOException
+     */
+    public static String hash(final Path path) throws IOException
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buf = new byte[8192];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+        }
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package alix.lucene;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput counters for the stages of an indexation (XSL parsing, analysis,
+ * addDocument). Counters are thread safe, each worker adds its own times.
+ *
+ * @author glorieux-f
+ */
+public class Meter
+{
+    /** Files transformed by XSL */
+    public final Stage parse = new Stage("parse");
+    /** Token streams consumed by the analyzer */
+    public final Stage analyze = new Stage("analyze");
+    /** Documents sent to the index writer, analysis included */
+    public final Stage write = new Stage("addDocument");
+    /** Start time of the meter */
+    private final long start = System.nanoTime();
+
+    /**
+     * One stage of the pipeline: count of events, some quantity (ex: tokens),
+     * cumulated time in nanoseconds.
+     */
+    public static class Stage
+    {
+        /** Name of the stage */
+        public final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder quantity = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        public Stage(final String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Record one event.
+         *
+         * @param quantity
+         *            things processed during the event (files, tokens, docs)
+         * @param nanos
+         *            time spent
+         */
+        public void add(final long quantity, final long nanos)
+        {
+            this.count.increment();
+            this.quantity.add(quantity);
+            this.nanos.add(nanos);
+        }
+
+        public long count()
+        {
+            return count.sum();
+        }
+
+        public long quantity()
+        {
+            return quantity.sum();
+        }
+
+        /**
+         * Cumulated time of all threads in this stage, in milliseconds.
+         */
+        public long ms()
+        {
+            return nanos.sum() / 1000000;
+        }
+
+        /**
+         * Quantity processed by second of thread time.
+         */
+        public double rate()
+        {
+            long nanos = this.nanos.sum();
+            if (nanos == 0) return 0;
+            return quantity.sum() * 1000000000.0 / nanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%-12s %8d events %12d items %10d ms %12.1f items/s", name, count(), quantity(), ms(),
+                    rate());
+        }
+    }
+
+    /**
+     * Wall clock time since creation, in milliseconds.
+     */
+    public long elapsed()
+    {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Override
+    public String toString()
+    {
+        return parse + "\n" + analyze + "\n" + write + "\n" + elapsed() + " ms. (wall)";
+    }
+}
@@ -0,0 +1,284 @@
+package alix.lucene;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Compact and immutable encoding of the offsets of tokens (start and end index
+ * of each position in a text), to be stored as a binary field. Ints are
+ * written as variable length bytes, start as the delta from the end of
+ * previous token, end as the length of the token. Positions are grouped by
+ * blocks of 64, with a table of pointers to the blocks, so that the offsets of
+ * a position are found by decoding 64 couples at most.
+ *
+ * <pre>
+ * vint     size (count of positions)
+ * int[]    pointers to the blocks 1..n, relative to data (big endian)
+ * data     for each position: zigzag vint (start - previous end), vint (end - start)
+ * </pre>
+ *
+ * A decoder is cheap to create on a {@link BytesRef}, but keeps a cursor, and
+ * should not be shared between threads.
+ *
+ * @author glorieux-f
+ */
+public class Offsets
+{
+    /** Positions by block, as a power of 2 */
+    static final int SHIFT = 6;
+    /** Positions by block */
+    static final int BLOCK = 1 << SHIFT;
+    /** Encoded bytes */
+    private final byte[] bytes;
+    /** Start index of data in bytes */
+    private final int data;
+    /** Start index of pointers table in bytes */
+    private final int table;
+    /** Count of positions */
+    private final int size;
+    /** Cursor, last position decoded */
+    private int pos = -1;
+    /** Cursor, byte index after last position decoded */
+    private int pointer;
+    /** Start offset of last position decoded */
+    private int start;
+    /** End offset of last position decoded */
+    private int end;
+
+    /**
+     * Decoder on encoded bytes, no copy.
+     */
+    public Offsets(final BytesRef ref)
+    {
+        this.bytes = ref.bytes;
+        int i = ref.offset;
+        int b = bytes[i++];
+        int size = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = bytes[i++];
+            size |= (b & 0x7F) << shift;
+        }
+        this.size = size;
+        this.table = i;
+        int blocks = (size + BLOCK - 1) >> SHIFT;
+        this.data = table + (Math.max(blocks, 1) - 1) * 4;
+    }
+
+    /**
+     * Count of positions.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Start offset of a position.
+     */
+    public int start(final int pos)
+    {
+        seek(pos);
+        return start;
+    }
+
+    /**
+     * End offset of a position.
+     */
+    public int end(final int pos)
+    {
+        seek(pos);
+        return end;
+    }
+
+    /**
+     * Move cursor to a position, forward from cursor if possible, or from the
+     * start of the block.
+     */
+    private void seek(final int pos)
+    {
+        if (pos == this.pos) return;
+        if (pos < 0 || pos >= size) throw new ArrayIndexOutOfBoundsException(pos);
+        int block = pos >> SHIFT;
+        // cursor is not in the same block, or after, jump to the block
+        if (this.pos < 0 || this.pos > pos || (this.pos >> SHIFT) != block) {
+            if (block == 0) pointer = data;
+            else {
+                int i = table + ((block - 1) << 2);
+                pointer = data + (((bytes[i]) << 24) | ((bytes[i + 1] & 0xff) << 16) | ((bytes[i + 2] & 0xff) << 8)
+                        | ((bytes[i + 3] & 0xff)));
+            }
+            this.pos = (block << SHIFT) - 1;
+            end = 0;
+        }
+        byte[] bytes = this.bytes;
+        int i = pointer;
+        int start = this.start;
+        int end = this.end;
+        while (this.pos < pos) {
+            int b = bytes[i++];
+            int delta = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = bytes[i++];
+                delta |= (b & 0x7F) << shift;
+            }
+            b = bytes[i++];
+            int length = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = bytes[i++];
+                length |= (b & 0x7F) << shift;
+            }
+            start = end + ((delta >>> 1) ^ -(delta & 1));
+            end = start + length;
+            this.pos++;
+        }
+        pointer = i;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * A reusable buffer to encode offsets. Not thread safe, one encoder by
+     * thread.
+     */
+    public static class Encoder
+    {
+        /** Data bytes */
+        private byte[] data = new byte[1024];
+        /** Length of data */
+        private int length;
+        /** Pointers to blocks */
+        private int[] blocks = new int[64];
+        /** Count of positions */
+        private int size;
+        /** End of last token */
+        private int last;
+
+        /**
+         * Light reset, no erase.
+         */
+        public void reset()
+        {
+            length = 0;
+            size = 0;
+            last = 0;
+        }
+
+        /**
+         * Add a couple start-end index.
+         */
+        public void put(final int start, final int end)
+        {
+            if (size > 0 && (size & (BLOCK - 1)) == 0) {
+                int block = size >> SHIFT;
+                if (block >= blocks.length) blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                blocks[block] = length;
+                last = 0; // blocks are independent
+            }
+            int delta = start - last;
+            // 2 vints of 5 bytes max
+            if (length + 10 > data.length) data = Arrays.copyOf(data, data.length * 2);
+            length = vint(data, length, (delta << 1) ^ (delta >> 31));
+            length = vint(data, length, end - start);
+            last = end;
+            size++;
+        }
+
+        /**
+         * Count of couples
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Get the encoded offsets, as a new array with no shared buffer.
+         */
+        public BytesRef getBytesRef()
+        {
+            int blockCount = (size + BLOCK - 1) >> SHIFT;
+            int tableLength = (Math.max(blockCount, 1) - 1) * 4;
+            byte[] bytes = new byte[5 + tableLength + length];
+            int i = vint(bytes, 0, size);
+            for (int block = 1; block < blockCount; block++) {
+                int x = blocks[block];
+                bytes[i++] = (byte) (x >> 24);
+                bytes[i++] = (byte) (x >> 16);
+                bytes[i++] = (byte) (x >> 8);
+                bytes[i++] = (byte) x;
+            }
+            System.arraycopy(data, 0, bytes, i, length);
+            return new BytesRef(bytes, 0, i + length);
+        }
+
+        /**
+         * Write a variable length int, return the new index.
+         */
+        private static int vint(final byte[] bytes, int i, int value)
+        {
+            while ((value & ~0x7F) != 0) {
+                bytes[i++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[i++] = (byte) value;
+            return i;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(start(i)).append('-').append(end(i));
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    /**
+     * Test performances and compare with fixed width offsets
+     */
+    public static void main(String[] args)
+    {
+        int size = 1000000;
+        Encoder encoder = new Encoder();
+        OffsetList list = new OffsetList();
+        int start = 0;
+        java.util.Random rand = new java.util.Random(1);
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        for (int i = 0; i < size; i++) {
+            start += 1 + rand.nextInt(3);
+            int end = start + 1 + rand.nextInt(12);
+            starts[i] = start;
+            ends[i] = end;
+            encoder.put(start, end);
+            list.put(start, end);
+            start = end;
+        }
+        BytesRef ref = encoder.getBytesRef();
+        System.out.println("varint: " + ref.length + " bytes, fixed: " + list.length() + " bytes");
+        Offsets offsets = new Offsets(ref);
+        for (int loop = 0; loop < 5; loop++) {
+            long time = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                int pos = rand.nextInt(size);
+                if (offsets.start(pos) != starts[pos] || offsets.end(pos) != ends[pos])
+                    throw new IllegalStateException("pos=" + pos);
+                sum += offsets.end(pos);
+            }
+            System.out.println("random " + ((System.nanoTime() - time) / 1000000) + " ms. " + sum);
+            time = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += offsets.start(i);
+            }
+            System.out.println("sequential " + ((System.nanoTime() - time) / 1000000) + " ms. " + sum);
+        }
+    }
+}
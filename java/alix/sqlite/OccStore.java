@@ -0,0 +1,690 @@
+package alix.sqlite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A columnar binary store of occurrences, alternative to the occ table of an
+ * index base (see alix.sql), same rows (doc, orth, tag, lem, start, end), same
+ * order (rowid). Rows are written by segments of {@link #SEGMENT} rows, each
+ * segment is memory mapped at open, and contains:
+ *
+ * <ul>
+ * <li>a column of bytes by field, ints are varints, doc and start are deltas
+ * (start from previous start in same doc), signed values in zigzag;</li>
+ * <li>a skip index every {@link #BLOCK} rows, offsets in columns and delta
+ * bases, for random access to a row;</li>
+ * <li>a posting list by lemma, rows of the lemma with their doc, start and
+ * end, encoded the same way, read sequentially for a concordance.</li>
+ * </ul>
+ *
+ * <pre>
+ * Format, little-endian
+ * byte[8]  magic "ALIXOCCS"
+ * int      version
+ * long     count of rows
+ * int      count of segments
+ * long     offset of segment table
+ * segments, aligned on 8 bytes:
+ *   int rows, int lems (max lem + 1), int[SECTIONS] length of each section
+ *   int[blocks * 8] skip index, byte[] columns doc, orth, tag, lem, start, len
+ *   int[lems + 1] offsets of posting lists, byte[] posting lists
+ * long[segments] offset of each segment
+ * </pre>
+ *
+ * @author glorieux-f
+ */
+public class OccStore implements Closeable
+{
+    static final byte[] MAGIC = "ALIXOCCS".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_LEN = 8 + 4 + 8 + 4 + 8;
+    /** Max count of rows by segment, a segment is far less than 2 Go */
+    public static final int SEGMENT = 1 << 22;
+    /** Count of rows between two skip points */
+    public static final int BLOCK = 128;
+    /** Columns */
+    static final int DOC = 0, ORTH = 1, TAG = 2, LEM = 3, START = 4, LEN = 5, COLS = 6;
+    /** Sections of a segment, after the columns */
+    static final int SEC_BLOCKS = COLS, SEC_POSTINDEX = COLS + 1, SEC_POSTINGS = COLS + 2, SECTIONS = COLS + 3;
+    /** Ints by skip point: an offset by column, doc and start before the block */
+    static final int SKIP = COLS + 2;
+    /** Length of a segment header */
+    static final int SEGMENT_HEAD = (int) align(4 + 4 + 4 * SECTIONS);
+    /** Segments, in row order */
+    private final Segment[] segments;
+    /** Count of rows */
+    private final long rows;
+    /** Max lem + 1 */
+    private final int lems;
+    /** File channel, mappings are valid after close */
+    private final FileChannel channel;
+
+    private OccStore(final FileChannel channel, final Segment[] segments, final long rows)
+    {
+        this.channel = channel;
+        this.segments = segments;
+        this.rows = rows;
+        int lems = 0;
+        for (Segment seg : segments) lems = Math.max(lems, seg.lems);
+        this.lems = lems;
+    }
+
+    /**
+     * Open a store written by a {@link Writer}, read only, segments are mapped.
+     *
+     * @throws IOException
+     */
+    public static OccStore open(final String file) throws IOException
+    {
+        return open(Paths.get(file));
+    }
+
+    public static OccStore open(final Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            if (size < HEADER_LEN) throw new IOException("Not an occurrences file: " + file);
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LEN);
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            head.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not an occurrences file: " + file);
+            int version = head.getInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException("Occurrences file version " + version + " not supported: " + file);
+            final long rows = head.getLong();
+            final int count = head.getInt();
+            final long tableOffset = head.getLong();
+            if (tableOffset + 8L * count > size) throw new IOException("Occurrences file truncated: " + file);
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, 8L * count);
+            table.order(ByteOrder.LITTLE_ENDIAN);
+            Segment[] segments = new Segment[count];
+            long base = 0;
+            for (int i = 0; i < count; i++) {
+                final long offset = table.getLong();
+                final long end = (i + 1 < count) ? table.getLong((i + 1) * 8) : tableOffset;
+                if (offset < HEADER_LEN || end > size || end - offset > Integer.MAX_VALUE)
+                    throw new IOException("Bad segment " + i + " in occurrences file: " + file);
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, end - offset);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                segments[i] = new Segment(buf, base);
+                base += segments[i].rows;
+            }
+            if (base != rows) throw new IOException("Occurrences file truncated: " + file);
+            return new OccStore(channel, segments, rows);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Count of rows (occurrences)
+     */
+    public long rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Max lem code + 1
+     */
+    public int lems()
+    {
+        return lems;
+    }
+
+    /**
+     * Read a row by number (from 0, rowid - 1 of the occ table).
+     *
+     * @param cols
+     *            int[6] filled with doc, orth, tag, lem, start, end
+     * @return cols
+     */
+    public int[] row(final long row, final int[] cols)
+    {
+        if (row < 0 || row >= rows) throw new IndexOutOfBoundsException("Row " + row + " out of [0, " + rows + "[");
+        int lo = 0;
+        int hi = segments.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (segments[mid].base <= row) lo = mid;
+            else hi = mid - 1;
+        }
+        segments[lo].row((int) (row - segments[lo].base), cols);
+        return cols;
+    }
+
+    /**
+     * Occurrences of a lemma, in row order, like
+     * <code>SELECT * FROM occ WHERE lem = ?</code>.
+     */
+    public Postings postings(final int lem)
+    {
+        return new Postings(lem);
+    }
+
+    /**
+     * Count of occurrences by lemma, for the docs of a set, like
+     * <code>SELECT COUNT(*), lem FROM occ WHERE doc IN (…) GROUP BY lem</code>.
+     * Columns doc and lem are read sequentially. Rows with no lemma (lem &lt; 0)
+     * are not counted.
+     *
+     * @param docs
+     *            a set of docs, or null for all
+     * @return counts, indexed by lem
+     */
+    public long[] freqs(final BitSet docs)
+    {
+        final long[] counts = new long[lems];
+        final Varints docCol = new Varints();
+        final Varints lemCol = new Varints();
+        for (Segment seg : segments) {
+            docCol.set(seg.cols[DOC], 0);
+            lemCol.set(seg.cols[LEM], 0);
+            int doc = 0;
+            for (int r = 0, n = seg.rows; r < n; r++) {
+                doc += docCol.zigzag();
+                final int lem = lemCol.zigzag();
+                if (lem < 0) continue;
+                if (docs != null && !docs.get(doc)) continue;
+                counts[lem]++;
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * A cursor on the occurrences of a lemma, through segments.
+     */
+    public class Postings
+    {
+        private final int lem;
+        private final Varints in = new Varints();
+        private int seg = -1;
+        private int left;
+        private long base;
+        private int row;
+        private int doc;
+        private int start;
+        private int end;
+
+        Postings(final int lem)
+        {
+            this.lem = lem;
+        }
+
+        /**
+         * Go to next occurrence, false at the end.
+         */
+        public boolean next()
+        {
+            while (left == 0) {
+                if (++seg >= segments.length) return false;
+                final Segment segment = segments[seg];
+                if (lem < 0 || lem >= segment.lems) continue;
+                in.set(segment.postings, segment.postIndex.get(lem));
+                left = in.varint();
+                base = segment.base;
+                row = 0;
+                doc = 0;
+                start = 0;
+            }
+            left--;
+            row += in.varint();
+            final int d = doc + in.zigzag();
+            if (d != doc) start = 0;
+            doc = d;
+            start += in.zigzag();
+            end = start + in.zigzag();
+            return true;
+        }
+
+        /** Row number, from 0 */
+        public long row()
+        {
+            return base + row;
+        }
+
+        public int doc()
+        {
+            return doc;
+        }
+
+        public int start()
+        {
+            return start;
+        }
+
+        public int end()
+        {
+            return end;
+        }
+    }
+
+    /**
+     * A mapped segment.
+     */
+    static class Segment
+    {
+        /** First row of segment in store */
+        final long base;
+        final int rows;
+        final int lems;
+        final IntBuffer blocks;
+        final ByteBuffer[] cols = new ByteBuffer[COLS];
+        final IntBuffer postIndex;
+        final ByteBuffer postings;
+
+        Segment(final ByteBuffer buf, final long base)
+        {
+            this.base = base;
+            rows = buf.getInt(0);
+            lems = buf.getInt(4);
+            int offset = SEGMENT_HEAD;
+            ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+            // sections in file order
+            final int[] order = { SEC_BLOCKS, DOC, ORTH, TAG, LEM, START, LEN, SEC_POSTINDEX, SEC_POSTINGS };
+            for (int sec : order) {
+                final int len = buf.getInt(8 + 4 * sec);
+                ByteBuffer dup = buf.duplicate();
+                dup.position(offset).limit(offset + len);
+                sections[sec] = dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+                offset = (int) align(offset + len);
+            }
+            blocks = sections[SEC_BLOCKS].asIntBuffer();
+            for (int col = 0; col < COLS; col++) cols[col] = sections[col];
+            postIndex = sections[SEC_POSTINDEX].asIntBuffer();
+            postings = sections[SEC_POSTINGS];
+        }
+
+        /**
+         * Decode a row from the skip point before it.
+         */
+        void row(final int row, final int[] values)
+        {
+            final int block = row / BLOCK;
+            final int skip = block * SKIP;
+            final Varints[] ins = new Varints[COLS];
+            for (int col = 0; col < COLS; col++) {
+                ins[col] = new Varints();
+                ins[col].set(cols[col], blocks.get(skip + col));
+            }
+            int doc = blocks.get(skip + COLS);
+            int start = blocks.get(skip + COLS + 1);
+            for (int r = block * BLOCK; r <= row; r++) {
+                final int d = doc + ins[DOC].zigzag();
+                if (d != doc) start = 0;
+                doc = d;
+                start += ins[START].zigzag();
+                values[DOC] = doc;
+                values[ORTH] = ins[ORTH].varint();
+                values[TAG] = ins[TAG].varint();
+                values[LEM] = ins[LEM].zigzag();
+                values[START] = start;
+                values[LEN] = start + ins[LEN].zigzag();
+            }
+        }
+    }
+
+    /**
+     * Reader of varints in a buffer, from a position.
+     */
+    static final class Varints
+    {
+        private ByteBuffer buf;
+        private int pos;
+
+        void set(final ByteBuffer buf, final int pos)
+        {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        int varint()
+        {
+            int b = buf.get(pos++);
+            if (b >= 0) return b;
+            int value = b & 0x7F;
+            int shift = 7;
+            while ((b = buf.get(pos++)) < 0) {
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            return value | (b << shift);
+        }
+
+        int zigzag()
+        {
+            final int v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    /**
+     * A growable array of bytes, to encode varints.
+     */
+    static final class Bytes
+    {
+        byte[] data = new byte[1024];
+        int length;
+
+        void varint(int value)
+        {
+            if (length + 5 > data.length) data = Arrays.copyOf(data, data.length * 2);
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void zigzag(final int value)
+        {
+            varint((value << 1) ^ (value >> 31));
+        }
+    }
+
+    static long align(final long offset)
+    {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Write a store, rows in order, a segment is encoded and written when full.
+     * Not thread safe, should be fed by one thread (ex: the writer thread of
+     * {@link OccWriter}, to get the same order as the occ table).
+     */
+    public static class Writer implements Closeable
+    {
+        private final FileChannel channel;
+        private final ArrayList<Long> offsets = new ArrayList<Long>();
+        private long position;
+        private long rows;
+        private int[][] cols = new int[COLS][1024];
+        private int size;
+
+        public Writer(final String file) throws IOException
+        {
+            this(Paths.get(file));
+        }
+
+        public Writer(final Path file) throws IOException
+        {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            // header written at close
+            position = align(HEADER_LEN);
+        }
+
+        /**
+         * Append an occurrence.
+         *
+         * @throws IOException
+         */
+        public void add(final int doc, final int orth, final int tag, final int lem, final int start, final int end)
+                throws IOException
+        {
+            if (size == cols[0].length) {
+                for (int col = 0; col < COLS; col++) cols[col] = Arrays.copyOf(cols[col], size * 2);
+            }
+            cols[DOC][size] = doc;
+            cols[ORTH][size] = orth;
+            cols[TAG][size] = tag;
+            cols[LEM][size] = lem;
+            cols[START][size] = start;
+            cols[LEN][size] = end;
+            size++;
+            if (size == SEGMENT) flush();
+        }
+
+        /**
+         * Encode and write the current segment.
+         */
+        private void flush() throws IOException
+        {
+            if (size == 0) return;
+            final int n = size;
+            final int[] docs = cols[DOC];
+            final int[] starts = cols[START];
+            final int[] ends = cols[LEN];
+            final int[] lems = cols[LEM];
+            Bytes[] out = new Bytes[COLS];
+            for (int col = 0; col < COLS; col++) out[col] = new Bytes();
+            int[] blocks = new int[((n + BLOCK - 1) / BLOCK) * SKIP];
+            int prevDoc = 0;
+            int prevStart = 0;
+            int maxLem = -1;
+            for (int r = 0; r < n; r++) {
+                if (r % BLOCK == 0) {
+                    final int skip = (r / BLOCK) * SKIP;
+                    for (int col = 0; col < COLS; col++) blocks[skip + col] = out[col].length;
+                    blocks[skip + COLS] = prevDoc;
+                    blocks[skip + COLS + 1] = prevStart;
+                }
+                final int doc = docs[r];
+                out[DOC].zigzag(doc - prevDoc);
+                if (doc != prevDoc) prevStart = 0;
+                prevDoc = doc;
+                out[ORTH].varint(cols[ORTH][r]);
+                out[TAG].varint(cols[TAG][r]);
+                out[LEM].zigzag(lems[r]);
+                out[START].zigzag(starts[r] - prevStart);
+                prevStart = starts[r];
+                out[LEN].zigzag(ends[r] - starts[r]);
+                if (lems[r] > maxLem) maxLem = lems[r];
+            }
+            // postings, rows sorted by lem (counting sort, stable)
+            final int lemCount = maxLem + 1;
+            int[] postIndex = new int[lemCount + 1];
+            int[] counts = new int[lemCount + 1];
+            for (int r = 0; r < n; r++) if (lems[r] >= 0) counts[lems[r] + 1]++;
+            for (int l = 0; l < lemCount; l++) counts[l + 1] += counts[l];
+            int[] order = new int[counts[lemCount]];
+            int[] fill = Arrays.copyOf(counts, lemCount);
+            for (int r = 0; r < n; r++) if (lems[r] >= 0) order[fill[lems[r]]++] = r;
+            Bytes postings = new Bytes();
+            for (int l = 0; l < lemCount; l++) {
+                postIndex[l] = postings.length;
+                postings.varint(counts[l + 1] - counts[l]);
+                int prevRow = 0;
+                prevDoc = 0;
+                prevStart = 0;
+                for (int i = counts[l]; i < counts[l + 1]; i++) {
+                    final int r = order[i];
+                    postings.varint(r - prevRow);
+                    prevRow = r;
+                    postings.zigzag(docs[r] - prevDoc);
+                    if (docs[r] != prevDoc) prevStart = 0;
+                    prevDoc = docs[r];
+                    postings.zigzag(starts[r] - prevStart);
+                    prevStart = starts[r];
+                    postings.zigzag(ends[r] - starts[r]);
+                }
+            }
+            postIndex[lemCount] = postings.length;
+            // write the segment
+            ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+            sections[SEC_BLOCKS] = ints(blocks);
+            for (int col = 0; col < COLS; col++) sections[col] = ByteBuffer.wrap(out[col].data, 0, out[col].length);
+            sections[SEC_POSTINDEX] = ints(postIndex);
+            sections[SEC_POSTINGS] = ByteBuffer.wrap(postings.data, 0, postings.length);
+            ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEAD).order(ByteOrder.LITTLE_ENDIAN);
+            head.putInt(n).putInt(lemCount);
+            for (int sec = 0; sec < SECTIONS; sec++) head.putInt(sections[sec].remaining());
+            head.clear();
+            offsets.add(position);
+            write(head);
+            final int[] order2 = { SEC_BLOCKS, DOC, ORTH, TAG, LEM, START, LEN, SEC_POSTINDEX, SEC_POSTINGS };
+            for (int sec : order2) write(sections[sec]);
+            rows += n;
+            size = 0;
+        }
+
+        private static ByteBuffer ints(final int[] ints)
+        {
+            ByteBuffer buf = ByteBuffer.allocate(ints.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asIntBuffer().put(ints);
+            return buf;
+        }
+
+        /**
+         * Write a buffer at current position, then pad to 8 bytes.
+         */
+        private void write(final ByteBuffer buf) throws IOException
+        {
+            while (buf.hasRemaining()) position += channel.write(buf, position);
+            position = align(position);
+        }
+
+        /**
+         * Count of rows added
+         */
+        public long rows()
+        {
+            return rows + size;
+        }
+
+        /**
+         * Write last segment, segment table and header.
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                flush();
+                final long tableOffset = position;
+                ByteBuffer table = ByteBuffer.allocate(8 * offsets.size()).order(ByteOrder.LITTLE_ENDIAN);
+                for (long offset : offsets) table.putLong(offset);
+                table.flip();
+                while (table.hasRemaining()) position += channel.write(table, position);
+                ByteBuffer head = ByteBuffer.allocate(HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+                head.put(MAGIC).putInt(VERSION).putLong(rows).putInt(offsets.size()).putLong(tableOffset);
+                head.flip();
+                long pos = 0;
+                while (head.hasRemaining()) pos += channel.write(head, pos);
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Build a store from the occ table of an index base, in rowid order.
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long build(final Connection index, final String file) throws SQLException, IOException
+    {
+        try (
+            Writer writer = new Writer(file);
+            Statement stmt = index.createStatement();
+            ResultSet res = stmt.executeQuery("SELECT doc, orth, tag, lem, start, end FROM occ ORDER BY id");
+        ) {
+            while (res.next()) {
+                writer.add(res.getInt(1), res.getInt(2), res.getInt(3), res.getInt(4), res.getInt(5), res.getInt(6));
+            }
+            return writer.rows();
+        }
+    }
+
+    /**
+     * Test on random rows: write, open, compare rows, postings and counts.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        final int n = 10000000;
+        final int[][] rows = new int[COLS][n];
+        java.util.Random random = new java.util.Random(1);
+        int doc = 0;
+        int start = 0;
+        for (int r = 0; r < n; r++) {
+            // docs mostly in order, sometimes back (concurrent writers)
+            if (random.nextInt(500) == 0) {
+                doc = Math.max(0, doc + random.nextInt(20) - 5);
+                start = 0;
+            }
+            start += 1 + random.nextInt(12);
+            rows[DOC][r] = doc;
+            rows[ORTH][r] = (int) (Math.pow(random.nextDouble(), 3) * 200000);
+            rows[TAG][r] = random.nextInt(120);
+            rows[LEM][r] = (random.nextInt(10) == 0) ? -1 : (int) (Math.pow(random.nextDouble(), 3) * 50000);
+            rows[START][r] = start;
+            rows[LEN][r] = start + 1 + random.nextInt(10);
+        }
+        java.io.File file = java.io.File.createTempFile("alix", ".occs");
+        file.deleteOnExit();
+        long time = System.nanoTime();
+        try (Writer writer = new Writer(file.toPath())) {
+            for (int r = 0; r < n; r++) {
+                writer.add(rows[DOC][r], rows[ORTH][r], rows[TAG][r], rows[LEM][r], rows[START][r], rows[LEN][r]);
+            }
+        }
+        System.out.println("Write " + n + " rows in " + ((System.nanoTime() - time) / 1000000) + " ms, "
+                + file.length() + " bytes (" + (n * 24L) + " bytes as ints)");
+        try (OccStore store = OccStore.open(file.toPath())) {
+            int[] cols = new int[COLS];
+            for (int i = 0; i < 100000; i++) {
+                int r = random.nextInt(n);
+                store.row(r, cols);
+                for (int col = 0; col < COLS; col++) {
+                    if (cols[col] != rows[col][r]) throw new AssertionError("row " + r + " col " + col);
+                }
+            }
+            final int lem = 12;
+            time = System.nanoTime();
+            Postings postings = store.postings(lem);
+            int count = 0;
+            int r = 0;
+            while (postings.next()) {
+                while (rows[LEM][r] != lem) r++;
+                if (postings.row() != r || postings.doc() != rows[DOC][r] || postings.start() != rows[START][r]
+                        || postings.end() != rows[LEN][r])
+                    throw new AssertionError("posting " + count + " row " + r);
+                r++;
+                count++;
+            }
+            System.out.println("Postings of lem " + lem + ": " + count + " in "
+                    + ((System.nanoTime() - time) / 1000) + " µs");
+            BitSet docs = new BitSet();
+            for (int d = 0; d < doc; d += 3) docs.set(d);
+            time = System.nanoTime();
+            long[] counts = store.freqs(docs);
+            System.out.println("Freqs in " + ((System.nanoTime() - time) / 1000000) + " ms");
+            long[] expected = new long[counts.length];
+            for (r = 0; r < n; r++) {
+                if (rows[LEM][r] >= 0 && docs.get(rows[DOC][r])) expected[rows[LEM][r]]++;
+            }
+            if (!Arrays.equals(counts, expected)) throw new AssertionError("freqs");
+            System.out.println("OK");
+        }
+    }
+}
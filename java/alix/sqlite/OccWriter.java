@@ -0,0 +1,404 @@
+package alix.sqlite;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writer of occurrences in the occ table of an index base (see alix.sql), in
+ * its own thread. SQLite allows one writer at a time, so parser threads do not
+ * touch the index connection, they encode their occurrences in a {@link Batch}
+ * of ints, and put it in a bounded queue. The writer thread owns the
+ * connection while started, it takes the batches and sends rows by addBatch()
+ * and executeBatch(), in explicit transactions of many batches.
+ *
+ * The queue is the backpressure: when SQLite is slower than the parsers, a
+ * full queue blocks them in {@link #write(Batch)}; when the parsers are
+ * slower, the writer waits on an empty queue. Both waiting times are measured,
+ * see {@link #toString()}.
+ *
+ * The same rows may be written in the same order to a columnar
+ * {@link OccStore}, see {@link #store(OccStore.Writer)}.
+ *
+ * <pre>
+ * OccWriter writer = new OccWriter(index, 10000, 1000000, 64);
+ * writer.start();
+ * // in each parser thread
+ * OccWriter.Batch batch = new OccWriter.Batch(writer.batchSize());
+ * batch.add(doc, orth, tag, lem, start, end);
+ * if (batch.size() &gt;= writer.batchSize()) { writer.write(batch); batch = new OccWriter.Batch(writer.batchSize()); }
+ * // at the end
+ * writer.write(batch);
+ * // when all parsers are finished
+ * writer.close();
+ * </pre>
+ *
+ * @author glorieux-f
+ */
+public class OccWriter implements Runnable
+{
+    /** Ints by occurrence: doc, orth, tag, lem, start, end */
+    public static final int COLS = 6;
+    /** Default count of rows by executeBatch() */
+    public static final int BATCH = 10000;
+    /** Default count of rows by transaction */
+    public static final int COMMIT = 1000000;
+    /** Default count of batches in queue */
+    public static final int QUEUE = 64;
+    /** Marker of the end of queue */
+    private static final Batch END = new Batch(1);
+    /** The index connection, autocommit is off */
+    private final Connection conn;
+    /** Insert statement, rows are added to its batch */
+    private final PreparedStatement ins;
+    /** Count of rows by executeBatch() */
+    private final int batchSize;
+    /** Count of rows by transaction */
+    private final int commitSize;
+    /** Batches waiting to be written */
+    private final ArrayBlockingQueue<Batch> queue;
+    /** Optional columnar copy of the rows */
+    private OccStore.Writer store;
+    /** The writer thread */
+    private Thread thread;
+    /** Error of the writer thread, given to parsers and to close() */
+    private volatile SQLException error;
+    /** Rows added to the statement, not yet executed */
+    private int pending;
+    /** Rows executed, not yet committed */
+    private int uncommitted;
+    /** Rows written */
+    private volatile long rows;
+    /** Count of executeBatch() */
+    private volatile long executes;
+    /** Count of commits */
+    private volatile long commits;
+    /** Max count of batches seen in queue */
+    private volatile int highWater;
+    /** Time of parsers blocked on a full queue, nanoseconds */
+    private final AtomicLong blocked = new AtomicLong();
+    /** Time of the writer waiting on an empty queue, nanoseconds */
+    private volatile long idle;
+    /** Start time of the writer thread */
+    private volatile long startTime;
+
+    public OccWriter(final Connection conn) throws SQLException
+    {
+        this(conn, BATCH, COMMIT, QUEUE);
+    }
+
+    /**
+     * Prepare the connection ({@link #pragmas(Connection)}, autocommit off) and
+     * the insert statement.
+     *
+     * @param batchSize
+     *            rows by executeBatch()
+     * @param commitSize
+     *            rows by transaction
+     * @param queueSize
+     *            max count of batches waiting for the writer
+     * @throws SQLException
+     */
+    public OccWriter(final Connection conn, final int batchSize, final int commitSize, final int queueSize)
+            throws SQLException
+    {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size should be positive: " + batchSize);
+        this.conn = conn;
+        this.batchSize = batchSize;
+        this.commitSize = Math.max(batchSize, commitSize);
+        this.queue = new ArrayBlockingQueue<Batch>(Math.max(1, queueSize));
+        // pragmas before a transaction is open
+        if (!conn.getAutoCommit()) conn.commit();
+        conn.setAutoCommit(true);
+        pragmas(conn);
+        conn.setAutoCommit(false);
+        ins = conn.prepareStatement("INSERT INTO occ (doc, orth, tag, lem, start, end) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    /**
+     * Tune a connection for bulk loading. The index can be rebuilt from the
+     * texts, it is not worth fsyncs, but the rollback journal is kept in
+     * memory: transactions (the occ batches, the rewrite of the dictionaries
+     * by {@link ParseBlob#close()}) must still be able to roll back.
+     *
+     * @throws SQLException
+     */
+    public static void pragmas(final Connection conn) throws SQLException
+    {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = MEMORY");
+            stmt.execute("PRAGMA synchronous = OFF");
+            // negative is in KiB, 256 Mo of page cache for the indexes of occ
+            stmt.execute("PRAGMA cache_size = -262144");
+            stmt.execute("PRAGMA temp_store = MEMORY");
+        }
+    }
+
+    /**
+     * Count of rows by executeBatch(), a good size for the batches of threads.
+     */
+    public int batchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Write also the rows to a columnar store, in the order of the occ table.
+     * Should be set before {@link #start()}, the store is not closed by the
+     * writer.
+     */
+    public synchronized void store(final OccStore.Writer store)
+    {
+        if (thread != null) throw new IllegalStateException("Writer already started");
+        this.store = store;
+    }
+
+    /**
+     * Start the writer thread, the connection should not be used by others
+     * till {@link #close()}.
+     */
+    public synchronized void start()
+    {
+        if (thread != null) throw new IllegalStateException("Writer already started");
+        startTime = System.nanoTime();
+        thread = new Thread(this, "occ-writer");
+        thread.start();
+    }
+
+    /**
+     * Give a batch of occurrences to write, the batch should not be modified
+     * after. Blocks while the queue is full (backpressure).
+     *
+     * @throws SQLException
+     *             if the writer has failed
+     * @throws InterruptedException
+     */
+    public void write(final Batch batch) throws SQLException, InterruptedException
+    {
+        if (error != null) throw new SQLException("Occurrences writer has failed", error);
+        if (batch.size == 0) return;
+        if (thread == null) throw new IllegalStateException("Writer not started");
+        if (queue.offer(batch)) {
+            highWater(queue.size());
+            return;
+        }
+        final long time = System.nanoTime();
+        // wait with a timeout, to not block forever on a dead writer
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (error != null) throw new SQLException("Occurrences writer has failed", error);
+            if (!thread.isAlive()) throw new IllegalStateException("Writer is closed");
+        }
+        blocked.addAndGet(System.nanoTime() - time);
+        highWater(queue.size());
+    }
+
+    private void highWater(final int size)
+    {
+        // approximative, without lock
+        if (size > highWater) highWater = size;
+    }
+
+    /**
+     * Loop of the writer thread, take the batches till the end marker, then
+     * write and commit all.
+     */
+    @Override
+    public void run()
+    {
+        try {
+            while (true) {
+                Batch batch = queue.poll();
+                if (batch == null) {
+                    final long time = System.nanoTime();
+                    batch = queue.take();
+                    idle += System.nanoTime() - time;
+                }
+                if (batch == END) break;
+                insert(batch);
+            }
+            execute();
+            if (uncommitted > 0) commit();
+        }
+        catch (SQLException e) {
+            error = e;
+            // free the parsers blocked on a full queue
+            queue.clear();
+        }
+        catch (IOException e) {
+            error = new SQLException("Occurrences store has failed", e);
+            queue.clear();
+        }
+        catch (RuntimeException e) {
+            // from the driver or the store, should not end the thread silently
+            error = new SQLException("Occurrences writer has failed", e);
+            queue.clear();
+        }
+        catch (InterruptedException e) {
+            // rows of the queue and of the open transaction are not written, say it
+            error = new SQLException("Occurrences writer interrupted", e);
+            queue.clear();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the rows of a batch to the statement, execute and commit by sizes.
+     */
+    private void insert(final Batch batch) throws SQLException, IOException
+    {
+        final PreparedStatement ins = this.ins;
+        final OccStore.Writer store = this.store;
+        final int[] data = batch.data;
+        final int length = batch.size * COLS;
+        for (int i = 0; i < length; i += COLS) {
+            ins.setInt(1, data[i]);
+            ins.setInt(2, data[i + 1]);
+            ins.setInt(3, data[i + 2]);
+            ins.setInt(4, data[i + 3]);
+            ins.setInt(5, data[i + 4]);
+            ins.setInt(6, data[i + 5]);
+            ins.addBatch();
+            if (store != null) store.add(data[i], data[i + 1], data[i + 2], data[i + 3], data[i + 4], data[i + 5]);
+            if (++pending >= batchSize) execute();
+        }
+    }
+
+    /**
+     * Execute the batch of statement, commit if transaction is big enough.
+     */
+    private void execute() throws SQLException
+    {
+        if (pending > 0) {
+            ins.executeBatch();
+            executes++;
+            rows += pending;
+            uncommitted += pending;
+            pending = 0;
+        }
+        if (uncommitted >= commitSize) commit();
+    }
+
+    private void commit() throws SQLException
+    {
+        conn.commit();
+        commits++;
+        uncommitted = 0;
+    }
+
+    /**
+     * Wait for the writer to write all the queue, and commit. The parsers
+     * should be finished. The statement is released, the connection stays
+     * open, usable by the calling thread.
+     *
+     * @throws SQLException
+     *             the error of the writer, if any
+     * @throws InterruptedException
+     */
+    public void close() throws SQLException, InterruptedException
+    {
+        if (thread != null) {
+            while (thread.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS));
+            thread.join();
+        }
+        ins.close();
+        if (error != null) throw error;
+    }
+
+    /**
+     * Count of rows written
+     */
+    public long rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Count of batches waiting in queue
+     */
+    public int queued()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Rows written by second, since start
+     */
+    public double throughput()
+    {
+        final long elapsed = System.nanoTime() - startTime;
+        if (elapsed <= 0) return 0;
+        return rows * 1E9 / elapsed;
+    }
+
+    /**
+     * Time of parsers blocked on a full queue, in ms, sum for all threads
+     */
+    public long blockedMillis()
+    {
+        return blocked.get() / 1000000;
+    }
+
+    /**
+     * Time of the writer waiting for batches, in ms
+     */
+    public long idleMillis()
+    {
+        return idle / 1000000;
+    }
+
+    @Override
+    public String toString()
+    {
+        return rows + " rows (" + Math.round(throughput()) + " rows/s), " + executes + " executeBatch(), " + commits
+                + " commits, queue " + queue.size() + "/" + (queue.size() + queue.remainingCapacity()) + " (max "
+                + highWater + "), parsers blocked " + blockedMillis() + " ms, writer idle " + idleMillis() + " ms";
+    }
+
+    /**
+     * A batch of occurrences, encoded as ints, filled by a thread, given to
+     * {@link OccWriter#write(Batch)}.
+     */
+    public static class Batch
+    {
+        /** Rows of {@link OccWriter#COLS} ints */
+        private int[] data;
+        /** Count of rows */
+        private int size;
+
+        public Batch(final int capacity)
+        {
+            data = new int[Math.max(1, capacity) * COLS];
+        }
+
+        /**
+         * Append an occurrence.
+         */
+        public void add(final int doc, final int orth, final int tag, final int lem, final int start, final int end)
+        {
+            int i = size * COLS;
+            if (i + COLS > data.length) data = Arrays.copyOf(data, data.length * 2);
+            final int[] data = this.data;
+            data[i++] = doc;
+            data[i++] = orth;
+            data[i++] = tag;
+            data[i++] = lem;
+            data[i++] = start;
+            data[i] = end;
+            size++;
+        }
+
+        /**
+         * Count of occurrences
+         */
+        public int size()
+        {
+            return size;
+        }
+    }
+}
@@ -14,45 +14,88 @@ import java.sql.Statement;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import alix.fr.Lexicon;
+import alix.fr.Lexik;
 import alix.fr.Tokenizer;
 import alix.fr.dic.Tag;
 import alix.util.DicFreq;
 import alix.util.DicFreq.Entry;
 import alix.util.Occ;
 
+/**
+ * Parse the texts of a base, store occurrences in an index base. Workers
+ * (tokenizers) take ranges of pages from a shared cursor, each with its own
+ * connection to the texts base. Occurrences are encoded by batches and given to
+ * an {@link OccWriter}, a single thread owning the index connection, through a
+ * bounded queue, so that tokenizers work while SQLite writes.
+ */
 public class ParseBlob implements Runnable
 {
-    /** Sqlite connexion */
-    private static Connection texts;
-    /** Sqlite connexion */
+    /** Path of the texts base, opened by each worker */
+    private static String textBase;
+    /** Sqlite connexion, owned by the writer while parsing */
     private static Connection index;
     /** Dictionary of orthographic form with an index */
     private static DicFreq orthDic; 
     /** Dictionary of orthographic form with an index */
     private static DicFreq lemDic;
+    /** Frozen dictionaries, shared by the tokenizers of workers */
+    private static Lexicon lexicon;
+    /** Writer of occurrences, shared by threads */
+    private static OccWriter writer;
+    /** Optional columnar store of occurrences */
+    private static OccStore.Writer store;
     /** Number of pages */
     private static int pageCount;
-    /** Local cursor on blob to process */
-    private ResultSet pages;
-    /** Start index in document list */
-    private final int start;
-    private final int end;
+    /** Start of next range of pages to parse, shared by workers */
+    private static final AtomicInteger cursor = new AtomicInteger();
+    /** Count of pages parsed */
+    private static final AtomicInteger pagesDone = new AtomicInteger();
+    /** Count of occurrences parsed */
+    private static final AtomicLong occsDone = new AtomicLong();
+    /** Size of a range of pages */
+    private final int limit;
 
     /**
      * Open database before ops, and load dics.
      * 
      * @throws SQLException
      */
-    public static int open(String textBase, String indexBase) throws SQLException 
+    public static int open(String textBase, String indexBase) throws SQLException, IOException
+    {
+        return open(textBase, indexBase, OccWriter.BATCH, OccWriter.QUEUE, null);
+    }
+
+    /**
+     * Open database before ops, load dics, and start the writer.
+     * 
+     * @param batchSize
+     *            count of occurrences by executeBatch()
+     * @param queueSize
+     *            count of batches waiting for the writer before blocking workers
+     * @param storeFile
+     *            a file for a columnar copy of occurrences ({@link OccStore}), or null
+     * @throws SQLException
+     * @throws IOException 
+     */
+    public static int open(String textBase, String indexBase, int batchSize, int queueSize, String storeFile)
+            throws SQLException, IOException
     {
         index = DriverManager.getConnection("jdbc:sqlite:" + indexBase);
         // occs.createStatement().execute("PRAGMA locking_mode = EXCLUSIVE;");
 
-        texts = DriverManager.getConnection("jdbc:sqlite:" + textBase);
+        ParseBlob.textBase = textBase;
+        Connection texts = DriverManager.getConnection("jdbc:sqlite:" + textBase);
         ResultSet res = texts.createStatement().executeQuery("SELECT MAX(id)+1 FROM blob");
         pageCount = res.getInt(1);
         res.close();
+        texts.close();
+        cursor.set(0);
+        pagesDone.set(0);
+        occsDone.set(0);
 
 
         Statement stmt  = index.createStatement();
@@ -70,6 +113,15 @@ public class ParseBlob implements Runnable
         }
 
         res.close();
+        stmt.close();
+        lexicon = Lexik.lexicon();
+        writer = new OccWriter(index, batchSize, OccWriter.COMMIT, queueSize);
+        store = null;
+        if (storeFile != null) {
+            store = new OccStore.Writer(storeFile);
+            writer.store(store);
+        }
+        writer.start();
         return pageCount;
     }
 
@@ -79,36 +131,56 @@ public class ParseBlob implements Runnable
     }
 
     /**
-     * Close database and update dics.
+     * A line of progress: pages, occurrences, writer state.
+     */
+    public static String progress()
+    {
+        return pagesDone.get() + "/" + pageCount + " pages, " + occsDone.get() + " occs parsed, " + writer;
+    }
+
+    /**
+     * Close database and update dics, should be called when workers are finished.
      * @throws SQLException
+     * @throws InterruptedException 
      */
-    public static void close() throws SQLException
+    public static void close() throws SQLException, InterruptedException, IOException
     {
-        texts.close();
+        writer.close();
+        if (store != null) store.close();
+        System.out.println(writer);
+        final int batchSize = writer.batchSize();
         PreparedStatement stmt;
         index.setAutoCommit(false);
         stmt = index.prepareStatement("DELETE FROM orth");
         stmt.execute();
+        stmt.close();
         stmt = index.prepareStatement("INSERT INTO orth(id, form, tag, lem) VALUES (?, ?, ?, ?)");
+        int n = 0;
         for (Entry entry: orthDic.entries()) {
             if (entry == null) break; // last one
             stmt.setInt(1, entry.code());
             stmt.setString(2, entry.label());
             stmt.setInt(3, entry.tag());
             stmt.setInt(4, entry.count());
-            stmt.execute();
+            stmt.addBatch();
+            if (++n % batchSize == 0) stmt.executeBatch();
         }
+        stmt.executeBatch();
         stmt.close();
         stmt = index.prepareStatement("DELETE FROM lem");
         stmt.execute();
+        stmt.close();
         stmt = index.prepareStatement("INSERT INTO lem(id, form, tag) VALUES (?, ?, ?)");
+        n = 0;
         for (Entry entry: lemDic.entries()) {
             if (entry == null ) break; // last one
             stmt.setInt(1, entry.code());
             stmt.setString(2, entry.label());
             stmt.setInt(3, entry.tag());
-            stmt.execute();
+            stmt.addBatch();
+            if (++n % batchSize == 0) stmt.executeBatch();
         }
+        stmt.executeBatch();
         index.commit();
         // stmt.execute("PRAGMA locking_mode = NORMAL;");
         stmt.close();
@@ -116,95 +188,79 @@ public class ParseBlob implements Runnable
     }
 
     /**
-     * Constructor of the thread
-     * @param offset
+     * Constructor of a worker
      * @param limit
-     * @throws SQLException 
+     *            count of pages taken at each step
      */
-    public ParseBlob(final int start, final int end) throws SQLException
+    public ParseBlob(final int limit)
     {
-        this.start = start;
-        this.end = end;
-        PreparedStatement q = texts.prepareStatement("SELECT id, text FROM blob WHERE id >= ? AND id < ?");
-        q.setInt(1, start);
-        q.setInt(2, end);
-        pages = q.executeQuery();
+        this.limit = limit;
     }
 
     /**
-     * Parse record
-     * 
-     * @throws SQLException
+     * Parse ranges of pages till the end, occurrences are given by batches to
+     * the writer.
      */
     public void run()
     {
-        // String table = Thread.currentThread().getName().replaceAll("-", "");
-        String table = "table"+start;
-        try {
-            Statement stmt = index.createStatement();
-            stmt.execute("CREATE TEMP TABLE '"+table+"' (doc, orth, tag, lem, start, end)");
-            stmt.close();
-            PreparedStatement ins = index.prepareStatement(
-                    "INSERT INTO '"+table+"'"
-                            +" (doc, orth, tag, lem, start, end)"
-                            +" VALUES (?, ?, ?, ?, ?, ?)"
-                    );
-            long start = System.nanoTime();
-            Tokenizer toks = new Tokenizer(false);
-            int occs = 0;
-            int page = 0;
+        try (
+            Connection texts = DriverManager.getConnection("jdbc:sqlite:" + textBase);
+            PreparedStatement q = texts.prepareStatement("SELECT id, text FROM blob WHERE id >= ? AND id < ?");
+        ) {
+            final int batchSize = writer.batchSize();
+            OccWriter.Batch batch = new OccWriter.Batch(batchSize);
+            Tokenizer toks = lexicon.tokenizer(false);
             int orth;
             int lem;
-            while (pages.next()) {
-                int doc = pages.getInt(1);
-                ins.setInt(1, doc);
-                toks.text(pages.getString(2));
-                Occ occ;
-                while ((occ = toks.word()) != null) {
-                    if (occ.tag().isPun())
-                        continue;
-                    if (occ.tag().equals(Tag.NULL))
-                        continue; // inconnu
-                    if (occ.tag().isName())
-                        lem = -1;
-                    else
-                        lem = lemDic.put(occ.lem(), occ.tag().code());
-                    orth = orthDic.put(occ.orth(), occ.tag().code(), lem);
-                    ins.setInt(2, orth);
-                    ins.setInt(3, occ.tag().code());
-                    ins.setInt(4, lem);
-                    ins.setInt(5, occ.start());
-                    ins.setInt(6, occ.end());
-                    ins.executeUpdate();
-                    occs++;
+            int start;
+            while ((start = cursor.getAndAdd(limit)) < pageCount) {
+                q.setInt(1, start);
+                q.setInt(2, start + limit);
+                ResultSet pages = q.executeQuery();
+                while (pages.next()) {
+                    int doc = pages.getInt(1);
+                    toks.text(pages.getString(2));
+                    Occ occ;
+                    int occs = 0;
+                    while ((occ = toks.word()) != null) {
+                        if (occ.tag().isPun())
+                            continue;
+                        if (occ.tag().equals(Tag.NULL))
+                            continue; // inconnu
+                        if (occ.tag().isName())
+                            lem = -1;
+                        else
+                            lem = lemDic.put(occ.lem(), occ.tag().code());
+                        orth = orthDic.put(occ.orth(), occ.tag().code(), lem);
+                        batch.add(doc, orth, occ.tag().code(), lem, occ.start(), occ.end());
+                        if (batch.size() >= batchSize) {
+                            // may block if the writer is late
+                            writer.write(batch);
+                            batch = new OccWriter.Batch(batchSize);
+                        }
+                        occs++;
+                    }
+                    occsDone.addAndGet(occs);
+                    pagesDone.incrementAndGet();
                 }
-                page++;
+                pages.close();
             }
-            // System.out.println("Tokenisation "+((System.nanoTime() - start)/1000000.0));
-            start = System.nanoTime();
-            stmt.execute(
-                    "INSERT INTO occ"
-                            + " (doc, orth, tag, lem, start, end)"
-                            + " SELECT doc, orth, tag, lem, start, end"
-                            + " FROM '"+table+"'"
-                    );
-            // optimized, no pb
-            // System.out.println("INSERT in occ "+((System.nanoTime() - start)/1000000.0));
-            stmt.execute("DROP TABLE "+table);
-            stmt.close();
+            writer.write(batch);
         }
         catch (SQLException e) {
             System.out.println(Thread.currentThread().getName());
             e.printStackTrace();
         }
-        System.out.println("Start index: "+start);
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 
     public static void main(String[] args) throws IOException, SQLException, InterruptedException
     {
         if (args.length < 2) {
-            System.out.println("java -Xmx20g -server -cp \"lib/*\" alix.sqlite.ParseBlob textes.sqlite occs.sqlite threads? packSize?");
+            System.out.println("java -Xmx20g -server -cp \"lib/*\" alix.sqlite.ParseBlob textes.sqlite occs.sqlite threads? packSize? batchSize? queueSize? store.occs?");
         }
         String textBase = args[0];
         String indexBase = args[1];
@@ -216,19 +272,26 @@ public class ParseBlob implements Runnable
         if (args.length > 2) threads = Integer.parseInt(args[2]);
         int limit = 1000;
         if (args.length > 3) limit = Integer.parseInt(args[3]);
+        int batchSize = OccWriter.BATCH;
+        if (args.length > 4) batchSize = Integer.parseInt(args[4]);
+        int queueSize = OccWriter.QUEUE;
+        if (args.length > 5) queueSize = Integer.parseInt(args[5]);
+        String storeFile = null;
+        if (args.length > 6) storeFile = args[6];
 
-        int pageCount = ParseBlob.open(textBase, indexBase);
-
+        long start = System.nanoTime();
+        ParseBlob.open(textBase, indexBase, batchSize, queueSize, storeFile);
 
+        // workers take ranges of pages till the end
         ExecutorService pool = Executors.newFixedThreadPool(threads);
-
-        long start = System.nanoTime();
-        int max = pageCount;
-        for (int offset = 0 ; offset < max; offset+=limit) {
-            pool.execute(new ParseBlob(offset, offset+limit));
+        for (int i = 0; i < threads; i++) {
+            pool.execute(new ParseBlob(limit));
         }
         pool.shutdown();
-        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+            System.out.println(ParseBlob.progress());
+        }
+        System.out.println(ParseBlob.progress());
         System.out.println((System.nanoTime() - start)/1000000.0);
         ParseBlob.close();
         System.out.println((System.nanoTime() - start)/1000000.0);
@@ -1,64 +1,189 @@
 package alix.sqlite;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.ParseException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 
 public class Stats {
-    
-    public static void conc(Connection connOccs, Connection connTexts) throws SQLException
+    /** Chars of context for a concordance line */
+    static int left = 100;
+    static int right = 100;
+
+    /**
+     * Get the code of a lemma, -1 if not found
+     */
+    public static int lem(Connection connOccs, String form) throws SQLException
     {
-        // prendre le code du mot
-        PreparedStatement lem = connOccs.prepareStatement("SELECT * FROM lem WHERE form = ?");
-        String form = "connaître";
+        PreparedStatement lem = connOccs.prepareStatement("SELECT id FROM lem WHERE form = ?");
         lem.setString(1, form);
         ResultSet rs = lem.executeQuery();
-        // rs.first();
-        int lemid = rs.getInt(1);
+        int lemid = -1;
+        if (rs.next()) lemid = rs.getInt(1);
+        rs.close();
+        lem.close();
+        return lemid;
+    }
+
+    public static List<String> conc(Connection connOccs, Connection connTexts, int lemid, int limit) throws SQLException
+    {
+        List<String> lines = new ArrayList<String>();
         // boucler sur les occurrences
         PreparedStatement qoccs = connOccs.prepareStatement("SELECT * FROM occ WHERE lem = ?");
         PreparedStatement qtext = connTexts.prepareStatement("SELECT text FROM blob WHERE id = ?");
         qoccs.setInt(1, lemid);
-        rs = qoccs.executeQuery();
+        ResultSet rs = qoccs.executeQuery();
         int docid = -1;
-        int limit = 100;
-        int left = 100;
-        int right = 100;
         String text = "";
         while (rs.next()) {
+            if (lines.size() >= limit) break;
             int newdocid = rs.getInt("doc");
             if (docid != newdocid) {
                 docid = newdocid;
-                qtext.setInt(1, docid);
-                ResultSet res = qtext.executeQuery();
-                text = res.getString(1);
+                text = text(qtext, docid);
+            }
+            lines.add(line(text, rs.getInt("start"), rs.getInt("end")));
+        }
+        rs.close();
+        qoccs.close();
+        qtext.close();
+        return lines;
+    }
+
+    /**
+     * Same concordance as {@link #conc(Connection, Connection, int, int)},
+     * occurrences from the postings of a columnar store.
+     */
+    public static List<String> conc(OccStore store, Connection connTexts, int lemid, int limit) throws SQLException
+    {
+        List<String> lines = new ArrayList<String>();
+        PreparedStatement qtext = connTexts.prepareStatement("SELECT text FROM blob WHERE id = ?");
+        OccStore.Postings postings = store.postings(lemid);
+        int docid = -1;
+        String text = "";
+        while (postings.next()) {
+            if (lines.size() >= limit) break;
+            int newdocid = postings.doc();
+            if (docid != newdocid) {
+                docid = newdocid;
+                text = text(qtext, docid);
             }
-            int start = rs.getInt("start");
-            int end = rs.getInt("end");
-            String line = text.substring(Math.max(start-left, 0), Math.min(end+right, text.length()));
-            line = line.replace('\n', ' ');
-            System.out.println(line);
-            if (--limit < 0) break;
+            lines.add(line(text, postings.start(), postings.end()));
+        }
+        qtext.close();
+        return lines;
+    }
+
+    private static String text(PreparedStatement qtext, int docid) throws SQLException
+    {
+        qtext.setInt(1, docid);
+        ResultSet res = qtext.executeQuery();
+        String text = res.next() ? res.getString(1) : "";
+        res.close();
+        return text;
+    }
+
+    private static String line(String text, int start, int end)
+    {
+        String line = text.substring(Math.max(start-left, 0), Math.min(end+right, text.length()));
+        return line.replace('\n', ' ');
+    }
+
+    /**
+     * Frequency list of lemmas for a year, lines: count, lem, form.
+     */
+    public static List<String> freqlist(Connection connOccs, int year, int limit) throws SQLException
+    {
+        // order by lem for ties, to compare
+        String sql = "SELECT COUNT(*) AS rank, lem, form FROM occ, lem WHERE doc IN (SELECT id FROM doc WHERE year = ?) AND occ.lem = lem.id GROUP BY lem ORDER BY rank DESC, lem LIMIT ?";
+        List<String> lines = new ArrayList<String>();
+        PreparedStatement q = connOccs.prepareStatement(sql);
+        q.setInt(1, year);
+        q.setInt(2, limit);
+        ResultSet rs = q.executeQuery();
+        while (rs.next()) {
+            lines.add(rs.getLong(1) + "\t" + rs.getInt(2) + "\t" + rs.getString(3));
         }
-        
+        rs.close();
+        q.close();
+        return lines;
     }
-    
-    public static void freqlist()
+
+    /**
+     * Same frequency list as {@link #freqlist(Connection, int, int)}, counts
+     * from the columns of a store, docs and forms from the index base.
+     */
+    public static List<String> freqlist(OccStore store, Connection connOccs, int year, int limit) throws SQLException
     {
-        String sql = "SELECT COUNT(*) AS rank, lem, form FROM occ, lem WHERE doc IN (SELECT id FROM doc WHERE year = 1932) AND occ.lem = lem.id GROUP BY lem ORDER BY rank DESC LIMIT 1000; ";
+        BitSet docs = new BitSet();
+        PreparedStatement q = connOccs.prepareStatement("SELECT id FROM doc WHERE year = ?");
+        q.setInt(1, year);
+        ResultSet rs = q.executeQuery();
+        while (rs.next()) docs.set(rs.getInt(1));
+        rs.close();
+        q.close();
+        HashMap<Integer, String> forms = new HashMap<Integer, String>();
+        try (Statement stmt = connOccs.createStatement(); ResultSet lems = stmt.executeQuery("SELECT id, form FROM lem")) {
+            while (lems.next()) forms.put(lems.getInt(1), lems.getString(2));
+        }
+        final long[] counts = store.freqs(docs);
+        // lems of the lem table (like the join), by count desc, then lem
+        List<Integer> lems = new ArrayList<Integer>();
+        for (int lem = 0; lem < counts.length; lem++) {
+            if (counts[lem] > 0 && forms.containsKey(lem)) lems.add(lem);
+        }
+        lems.sort((a, b) -> (counts[a] != counts[b]) ? Long.compare(counts[b], counts[a]) : Integer.compare(a, b));
+        List<String> lines = new ArrayList<String>();
+        for (int lem : lems) {
+            if (lines.size() >= limit) break;
+            lines.add(counts[lem] + "\t" + lem + "\t" + forms.get(lem));
+        }
+        return lines;
     }
-    
-    public static void main(String args[]) throws SQLException
+
+    /**
+     * Compare SQLite and columnar store, results and times.
+     */
+    public static void main(String args[]) throws SQLException, IOException
     {
         String occBase = "/home/fred/code/presse/presse_occs.sqlite";
+        if (args.length > 0) occBase = args[0];
         Connection connOccs = DriverManager.getConnection("jdbc:sqlite:" + occBase);
         String textBase = "/home/fred/code/presse/presse_textes.sqlite";
+        if (args.length > 1) textBase = args[1];
         Connection connTexts = DriverManager.getConnection("jdbc:sqlite:" + textBase);
-        conc(connOccs, connTexts);
+        String storeFile = occBase.replaceFirst("\\.sqlite$", "") + ".occs";
+        if (args.length > 2) storeFile = args[2];
+        if (!new File(storeFile).exists()) {
+            long time = System.nanoTime();
+            long rows = OccStore.build(connOccs, storeFile);
+            System.out.println("Store " + storeFile + " built, " + rows + " rows in " + ((System.nanoTime() - time) / 1000000) + " ms");
+        }
+        try (OccStore store = OccStore.open(storeFile)) {
+            int lemid = lem(connOccs, "connaître");
+            long time = System.nanoTime();
+            List<String> sql = conc(connOccs, connTexts, lemid, 100);
+            System.out.println("conc SQLite " + ((System.nanoTime() - time) / 1000000) + " ms");
+            time = System.nanoTime();
+            List<String> col = conc(store, connTexts, lemid, 100);
+            System.out.println("conc store  " + ((System.nanoTime() - time) / 1000000) + " ms, same=" + sql.equals(col));
+            for (String line: col) System.out.println(line);
+            int year = 1932;
+            time = System.nanoTime();
+            sql = freqlist(connOccs, year, 1000);
+            System.out.println("freqlist SQLite " + ((System.nanoTime() - time) / 1000000) + " ms");
+            time = System.nanoTime();
+            col = freqlist(store, connOccs, year, 1000);
+            System.out.println("freqlist store  " + ((System.nanoTime() - time) / 1000000) + " ms, same=" + sql.equals(col));
+        }
     }
 
 }
@@ -758,8 +758,17 @@ public class Chain implements CharSequence, Comparable<Chain>
       // TODO, char class [éju…]
       else if (globc != textc) return false;
       if (globstart == globend && textstart == textend) return true;
-      // ??? unuseful ?
-      // if ( globstart >= globend || textstart >= textend ) return false;
+      // glob consumed, not text
+      if (globstart == globend) return false;
+      // text consumed, rest of glob should be stars (pat* matches pat)
+      if (textstart == textend) {
+        final int from = (inc > 0) ? globstart + 1 : globstart;
+        final int to = (inc > 0) ? globend : globend - 1;
+        for (int i = from; i <= to; i++) {
+          if (glob.charAt(i) != '*') return false;
+        }
+        return true;
+      }
       if (inc > 0) {
         globc = glob.charAt(++globstart);
         textc = text.charAt(++textstart);
@@ -0,0 +1,382 @@
+package alix.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A compact immutable dictionary of chars sequences, for big lexicons with few
+ * changes. Keys and values are packed in one array of chars, entries are
+ * reached by an open addressing table of ints, tags are a short by entry.
+ * Lookup accepts a slice of a char array (ex: the buffer of a lucene term
+ * attribute), with no allocation. Entries are ints from 0 to size - 1.
+ *
+ * <pre>
+ * pool: for each entry, entry index (2 chars), key length, key chars, value length (or NULL), value chars
+ * slots: couples of ints, key hash, index of entry in pool (or -1)
+ * </pre>
+ *
+ * A lookup reads the slots, then the pool, both are contiguous.
+ *
+ * Build with {@link Builder}.
+ *
+ * @author glorieux-f
+ */
+public final class CharPack
+{
+    /** Returned when a key is not found */
+    public static final int NOT_FOUND = -1;
+    /** Value length for no value */
+    private static final char NULL = '\uFFFF';
+    /** Keys and values */
+    private final char[] pool;
+    /** Index of each entry in pool */
+    private final int[] entries;
+    /** Tag of each entry */
+    private final short[] tags;
+    /** Open addressing table, couples of hash and pool index */
+    private final int[] slots;
+    /** Mask to get a slot from a hash */
+    private final int mask;
+
+    private CharPack(final char[] pool, final int[] entries, final int[] hashes, final short[] tags)
+    {
+        this.pool = pool;
+        this.entries = entries;
+        this.tags = tags;
+        int size = entries.length;
+        // load factor < 0.5
+        int capacity = Calcul.nextSquare(Math.max(4, size * 2 + 1));
+        slots = new int[capacity * 2];
+        mask = capacity - 1;
+        for (int i = 1; i < slots.length; i += 2)
+            slots[i] = -1;
+        for (int e = 0; e < size; e++) {
+            int slot = mix(hashes[e]) & mask;
+            while (slots[2 * slot + 1] != -1)
+                slot = (slot + 1) & mask;
+            slots[2 * slot] = hashes[e];
+            slots[2 * slot + 1] = entries[e];
+        }
+    }
+
+    private CharPack(final char[] pool, final int[] entries, final short[] tags, final int[] slots)
+    {
+        this.pool = pool;
+        this.entries = entries;
+        this.tags = tags;
+        this.slots = slots;
+        this.mask = slots.length / 2 - 1;
+    }
+
+    /**
+     * Write the packed arrays, for a {@link Snapshot}.
+     *
+     * @throws IOException
+     */
+    public void write(final DataOutputStream out) throws IOException
+    {
+        Snapshot.putChars(out, pool);
+        Snapshot.putInts(out, entries);
+        Snapshot.putShorts(out, tags);
+        Snapshot.putInts(out, slots);
+    }
+
+    /**
+     * Read a dictionary written by {@link #write(DataOutputStream)}, bulk copy of
+     * arrays, no hashing.
+     */
+    public static CharPack read(final ByteBuffer buf)
+    {
+        char[] pool = Snapshot.getChars(buf);
+        int[] entries = Snapshot.getInts(buf);
+        short[] tags = Snapshot.getShorts(buf);
+        int[] slots = Snapshot.getInts(buf);
+        return new CharPack(pool, entries, tags, slots);
+    }
+
+    /**
+     * Count of entries
+     */
+    public int size()
+    {
+        return entries.length;
+    }
+
+    /**
+     * Find an entry by a slice of chars.
+     *
+     * @return entry index, or {@link #NOT_FOUND}
+     */
+    public int find(final char[] chars, final int offset, final int len)
+    {
+        int h = 0;
+        final int end = offset + len;
+        for (int i = offset; i < end; i++)
+            h = 31 * h + chars[i];
+        return find(chars, offset, len, h);
+    }
+
+    /**
+     * Find an entry by a Chain, with its hash (same as String, cached by the
+     * chain, so often already computed by other lookups).
+     *
+     * @return entry index, or {@link #NOT_FOUND}
+     */
+    public int find(final Chain chain)
+    {
+        return find(chain.array(), chain.start(), chain.length(), chain.hashCode());
+    }
+
+    private int find(final char[] chars, final int offset, final int len, final int h)
+    {
+        final int end = offset + len;
+        final char[] pool = this.pool;
+        final int[] slots = this.slots;
+        int slot = mix(h) & mask;
+        int p;
+        while ((p = slots[2 * slot + 1]) != -1) {
+            if (slots[2 * slot] == h && pool[p + 2] == len) {
+                int j = p + 3;
+                int i = offset;
+                while (i < end && pool[j] == chars[i]) {
+                    j++;
+                    i++;
+                }
+                if (i == end) return (pool[p] << 16) | pool[p + 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Find an entry by a sequence of chars (String, Chain…).
+     *
+     * @return entry index, or {@link #NOT_FOUND}
+     */
+    public int find(final CharSequence cs)
+    {
+        final int len = cs.length();
+        int h = 0;
+        for (int i = 0; i < len; i++)
+            h = 31 * h + cs.charAt(i);
+        final char[] pool = this.pool;
+        final int[] slots = this.slots;
+        int slot = mix(h) & mask;
+        int p;
+        while ((p = slots[2 * slot + 1]) != -1) {
+            if (slots[2 * slot] == h && pool[p + 2] == len) {
+                int j = p + 3;
+                int i = 0;
+                while (i < len && pool[j] == cs.charAt(i)) {
+                    j++;
+                    i++;
+                }
+                if (i == len) return (pool[p] << 16) | pool[p + 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Is there an entry for this key?
+     */
+    public boolean contains(final CharSequence cs)
+    {
+        return find(cs) != NOT_FOUND;
+    }
+
+    /**
+     * Tag of an entry
+     */
+    public short tag(final int entry)
+    {
+        return tags[entry];
+    }
+
+    /**
+     * The array of chars where keys and values are packed, do not modify.
+     */
+    public char[] pool()
+    {
+        return pool;
+    }
+
+    /**
+     * Has this entry a value?
+     */
+    public boolean hasValue(final int entry)
+    {
+        int p = entries[entry] + 2;
+        return pool[p + 1 + pool[p]] != NULL;
+    }
+
+    /**
+     * Index of the value chars of an entry in {@link #pool()}.
+     */
+    public int valueOffset(final int entry)
+    {
+        int p = entries[entry] + 2;
+        return p + 2 + pool[p];
+    }
+
+    /**
+     * Length of the value of an entry, 0 if no value.
+     */
+    public int valueLength(final int entry)
+    {
+        int p = entries[entry] + 2;
+        char len = pool[p + 1 + pool[p]];
+        if (len == NULL) return 0;
+        return len;
+    }
+
+    /**
+     * Key of an entry as a String, allocation, for display.
+     */
+    public String key(final int entry)
+    {
+        int p = entries[entry] + 2;
+        return new String(pool, p + 1, pool[p]);
+    }
+
+    /**
+     * Value of an entry as a String, allocation, for display.
+     */
+    public String value(final int entry)
+    {
+        if (!hasValue(entry)) return null;
+        return new String(pool, valueOffset(entry), valueLength(entry));
+    }
+
+    /**
+     * Spread bits of a String hash.
+     */
+    private static int mix(final int h)
+    {
+        final int x = h * 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        int max = Math.min(entries.length, 20);
+        for (int e = 0; e < max; e++) {
+            sb.append(key(e)).append(" ").append(tags[e]).append(" ").append(value(e)).append("\n");
+        }
+        if (max < entries.length) sb.append("… ").append(entries.length).append(" entries\n");
+        return sb.toString();
+    }
+
+    /**
+     * Collect entries before packing.
+     */
+    public static class Builder
+    {
+        private char[] pool = new char[1024];
+        private int length;
+        private int[] entries = new int[64];
+        private int[] hashes = new int[64];
+        private short[] tags = new short[64];
+        private int size;
+        /** Temporary index to replace or keep entries */
+        private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+        /**
+         * Add an entry.
+         *
+         * @param key
+         *            chars of the key, less than 65535
+         * @param tag
+         *            a short information
+         * @param value
+         *            optional chars, may be null
+         * @param replace
+         *            if the key is already there, replace the entry (true), or
+         *            keep the first one (false).
+         * @return entry index
+         */
+        public int put(final CharSequence key, final short tag, final CharSequence value, final boolean replace)
+        {
+            String k = key.toString();
+            Integer old = index.get(k);
+            if (old != null && !replace) return old;
+            int klen = k.length();
+            int vlen = (value == null) ? 0 : value.length();
+            if (klen >= NULL || vlen >= NULL) throw new IllegalArgumentException("Key or value too long: " + k);
+            int need = length + 4 + klen + vlen;
+            if (need > pool.length) pool = Arrays.copyOf(pool, Math.max(need, pool.length * 2));
+            int e;
+            if (old != null) e = old;
+            else {
+                e = size++;
+                if (e >= entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                    tags = Arrays.copyOf(tags, tags.length * 2);
+                }
+                index.put(k, e);
+            }
+            // a replaced entry leaves some unused chars in the pool
+            entries[e] = length;
+            hashes[e] = k.hashCode();
+            tags[e] = tag;
+            pool[length++] = (char) (e >>> 16);
+            pool[length++] = (char) e;
+            pool[length++] = (char) klen;
+            k.getChars(0, klen, pool, length);
+            length += klen;
+            if (value == null) pool[length++] = NULL;
+            else {
+                pool[length++] = (char) vlen;
+                for (int i = 0; i < vlen; i++)
+                    pool[length++] = value.charAt(i);
+            }
+            return e;
+        }
+
+        /**
+         * Is this key already put?
+         */
+        public boolean contains(final CharSequence key)
+        {
+            return index.containsKey(key.toString());
+        }
+
+        /**
+         * Count of entries
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Pack the entries in an immutable dictionary.
+         */
+        public CharPack build()
+        {
+            // repack, without the chars of replaced entries
+            char[] packed = new char[length];
+            int[] starts = new int[size];
+            int pos = 0;
+            for (int e = 0; e < size; e++) {
+                int p = entries[e];
+                int end = p + 3 + pool[p + 2];
+                char vlen = pool[end];
+                end += (vlen == NULL) ? 1 : 1 + vlen;
+                starts[e] = pos;
+                System.arraycopy(pool, p, packed, pos, end - p);
+                pos += end - p;
+            }
+            return new CharPack(Arrays.copyOf(packed, pos), starts, Arrays.copyOf(hashes, size),
+                    Arrays.copyOf(tags, size));
+        }
+    }
+}
@@ -12,17 +12,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A specialized table for a dictionary of terms, with an int code, an int
  * counter, and an int tag. Conceived for performances, for linguistic usage,
  * but the object do not requires lexical informations. The int code is a way to
  * optimize complex pattern storage (ex: wordgrams). Access possible by a String
- * chain (internal HashMap), or by an int code (internal array, for optimized
+ * chain (internal hash table), or by an int code (internal array, for optimized
  * vector). There are useful methods to get chain list in inverse frequency
  * order.
  * 
@@ -33,6 +31,14 @@ import java.util.concurrent.atomic.AtomicLong;
  * consistent during all life of Object.
  * 
  * 
+ * The dictionary is thread safe, and may be shared by the threads of a parser.
+ * Lookups and increments take no lock: counters are {@link LongAdder}s, that
+ * do not contend under concurrent increments. A lock is only taken to create a
+ * new entry, so that codes stay contiguous, with no hole in {@link #entries()}.
+ * A lookup by {@link Chain} (a mutable String) is hashed and compared from
+ * the chars of the Chain, with no allocation, a String is created only for a
+ * new entry.
+ * 
  * — TODO implement saving on SQL backend — TODO dictionary merges
  * 
  * code->String->[code, counter, tag], access by code need another jump to get
@@ -54,20 +60,29 @@ import java.util.concurrent.atomic.AtomicLong;
 public class DicFreq
 {
   /**
-   * HashMap to find by String. String is the best object for key (most common,
-   * not mutable). A custom object (like Chain) will not match against String. The
-   * int array contains an int key and a count
+   * Open addressing table of entries, to find by String or by Chain. A Chain
+   * has the same hashCode() as a String with the same chars, the hash is kept
+   * in the entry, chars are compared only when hashes are equal. Read with no
+   * lock, written by {@link #create(String, int)} only, a table is never
+   * modified after resize, the new one is published by the volatile field. A
+   * reader may miss an entry in creation, and will then look again with the
+   * lock.
+   */
+  private volatile Entry[] byTerm = new Entry[64];
+  /** Count of entries in the table, to resize it, under lock */
+  private int filled;
+  /**
+   * List of terms, kept in index order, to get a chain by int code. Array is
+   * replaced when grown, volatile to be seen by other threads.
    */
-  private HashMap<String, Entry> byTerm = new HashMap<String, Entry>();
-  /** List of terms, kept in index order, to get a chain by int code */
-  private Entry[] byCode = new Entry[32];
+  private volatile Entry[] byCode = new Entry[32];
   /**
    * Pointer in the array of terms, only growing when terms are added, used as
    * code
    */
-  private int pointer;
+  private volatile int pointer;
   /** Count of all occurrences for this dico */
-  private AtomicLong occs = new AtomicLong();
+  private final LongAdder occs = new LongAdder();
   /** The separator for CSV export and import */
   private static char SEP = ';';
 
@@ -80,18 +95,21 @@ public class DicFreq
   {
     /** The String form of Chain */
     private final String label;
+    /** Hash of label, same as String.hashCode() */
+    private final int hash;
     /** Internal code for the chain */
     private final int code;
     /** A tag ex gram cat */
     private final int tag;
     /** A counter */
-    private AtomicInteger count = new AtomicInteger();
+    private final LongAdder count = new LongAdder();
     /** A secondary counter (for comparisons) */
-    private AtomicInteger count2 = new AtomicInteger();
+    private final LongAdder count2 = new LongAdder();
 
     private Entry(final int code, final String label, final int tag) {
       this.code = code;
       this.label = label;
+      this.hash = label.hashCode();
       this.tag = tag;
     }
 
@@ -112,12 +130,12 @@ public class DicFreq
 
     public int count()
     {
-      return count.get();
+      return count.intValue();
     }
 
     public int count2()
     {
-      return count2.get();
+      return count2.intValue();
     }
 
     /**
@@ -138,7 +156,7 @@ public class DicFreq
      */
     public int compareTo(Entry o)
     {
-      return (o.count.get() + o.count2.get()) - (count.get() + count2.get());
+      return Long.compare(o.count.sum() + o.count2.sum(), count.sum() + count2.sum());
     }
   }
 
@@ -166,9 +184,10 @@ public class DicFreq
    */
   synchronized public void reset()
   {
-    occs.set(0);
+    occs.reset();
     pointer = 0;
-    byTerm.clear();
+    filled = 0;
+    byTerm = new Entry[64];
   }
 
   /**
@@ -179,9 +198,7 @@ public class DicFreq
    */
   public String label(final int code)
   {
-    if (code < 1)
-      return null;
-    if (code > pointer)
+    if (code < 0 || code >= pointer)
       return null;
     return byCode[code].label;
   }
@@ -194,7 +211,7 @@ public class DicFreq
    */
   public int code(Chain chain)
   {
-    Entry entry = byTerm.get(chain);
+    Entry entry = find(chain);
     if (entry == null)
       return -1;
     return entry.code;
@@ -208,7 +225,7 @@ public class DicFreq
    */
   public int code(String term)
   {
-    Entry line = byTerm.get(term);
+    Entry line = find(term);
     if (line == null)
       return -1;
     return line.code;
@@ -222,7 +239,7 @@ public class DicFreq
    */
   public int tag(Chain chain)
   {
-    Entry line = byTerm.get(chain);
+    Entry line = find(chain);
     if (line == null)
       return 0;
     return line.tag;
@@ -236,7 +253,7 @@ public class DicFreq
    */
   public int tag(String term)
   {
-    Entry line = byTerm.get(term);
+    Entry line = find(term);
     if (line == null)
       return 0;
     return line.tag;
@@ -251,6 +268,8 @@ public class DicFreq
    */
   public int tag(int code)
   {
+    if (code < 0 || code >= pointer)
+      return 0;
     Entry line = byCode[code];
     if (line == null)
       return 0;
@@ -265,10 +284,10 @@ public class DicFreq
    */
   public int count(String term)
   {
-    Entry line = byTerm.get(term);
+    Entry line = find(term);
     if (line == null)
       return -1;
-    return line.count.get();
+    return line.count.intValue();
   }
 
   /**
@@ -279,10 +298,10 @@ public class DicFreq
    */
   public int count(Chain chain)
   {
-    Entry line = byTerm.get(chain);
+    Entry line = find(chain);
     if (line == null)
       return -1;
-    return line.count.get();
+    return line.count.intValue();
   }
 
   /**
@@ -294,11 +313,9 @@ public class DicFreq
    */
   public int count(int code)
   {
-    if (code < 1)
+    if (code < 0 || code >= pointer)
       return -1;
-    if (code > pointer)
-      return -1;
-    return byCode[code].count.get();
+    return byCode[code].count.intValue();
   }
 
 
@@ -311,11 +328,11 @@ public class DicFreq
    */
   public int inc(final String term)
   {
-    Entry entry = byTerm.get(term);
+    Entry entry = find(term);
     if (entry == null)
       entry =  entry(term, 0);
-    entry.count.incrementAndGet();
-    occs.incrementAndGet();
+    entry.count.increment();
+    occs.increment();
     return entry.code;
   }
 
@@ -366,11 +383,11 @@ public class DicFreq
    */
   public int inc(final String term, final int tag)
   {
-    Entry entry = byTerm.get(term);
+    Entry entry = find(term);
     if (entry == null)
       entry =  entry(term, tag);
-    entry.count.incrementAndGet();
-    occs.incrementAndGet();
+    entry.count.increment();
+    occs.increment();
     return entry.code;
   }
 
@@ -385,10 +402,10 @@ public class DicFreq
    */
   public int inc(final Chain chain, final int tag)
   {
-    Entry entry = byTerm.get(chain);
-    if (entry == null) entry = entry(chain.toString(), tag);
-    entry.count.incrementAndGet();
-    occs.incrementAndGet();
+    Entry entry = find(chain);
+    if (entry == null) entry = create(chain, tag);
+    entry.count.increment();
+    occs.increment();
     return entry.code;
   }
 
@@ -486,10 +503,9 @@ public class DicFreq
   public int add(final String term, final int tag, final int delta1, final int delta2)
   {
     Entry entry = entry(term, tag);
-    entry.count.addAndGet(delta1);
-    entry.count2.addAndGet(delta2);
-    occs.addAndGet(delta1);
-    occs.addAndGet(delta2);
+    entry.count.add(delta1);
+    entry.count2.add(delta2);
+    occs.add(delta1 + delta2);
     return entry.code;
   }
 
@@ -506,20 +522,19 @@ public class DicFreq
    */
   public int add(final Chain chain, final int tag, final int delta1, final int delta2)
   {
-    Entry entry = byTerm.get(chain);
+    Entry entry = find(chain);
     if (entry == null) {
-      entry = entry(chain.toString(), tag);
+      entry = create(chain, tag);
     }
-    entry.count.addAndGet(delta1);
-    entry.count2.addAndGet(delta2);
-    occs.addAndGet(delta1);
-    occs.addAndGet(delta2);
+    entry.count.add(delta1);
+    entry.count2.add(delta2);
+    occs.add(delta1 + delta2);
     return entry.code;
   }
 
 
   /**
-   * Put a full entry, synchronized method to keep conssitency.
+   * Put a full entry, lookup with no String allocation.
    * 
    * @param chain
    * @param tag
@@ -529,9 +544,9 @@ public class DicFreq
    */
   public int put(final Chain chain, final int tag, final int count, final int count2)
   {
-    Entry entry = byTerm.get(chain);
+    Entry entry = find(chain);
     if (entry == null) {
-      entry = entry(chain.toString(), tag);
+      entry = create(chain, tag);
     }
     return put(entry, count, count2);
   }
@@ -552,12 +567,20 @@ public class DicFreq
     return put(entry, count, count2);
   }
 
+  /**
+   * Set the counters of an entry. Counters are not reset but moved by a delta,
+   * same delta for the total, so that concurrent increments are not lost, and
+   * {@link #occs()} stays the exact sum of counts. Concurrent puts on the same
+   * entry are serialized.
+   */
   private int put(Entry entry, final int count, final int count2)
   {
     synchronized (entry) {
-      occs.set(occs.get() - entry.count.get() - entry.count2.get() + count + count2);
-      entry.count.set(count);
-      entry.count2.set(count2);
+      final long delta1 = count - entry.count.sum();
+      final long delta2 = count2 - entry.count2.sum();
+      entry.count.add(delta1);
+      entry.count2.add(delta2);
+      occs.add(delta1 + delta2);
     }
     return entry.code;
   }
@@ -604,41 +627,168 @@ public class DicFreq
   }
 
   /**
-   * Create a chain in the different data structures.
-   * Critic fro multiThreading.
+   * Get an entry by String, create it if not exists.
    * 
-   * @param chain
+   * @param term
+   * @param tag
+   *          An int tag for output filtering, used only for a new entry
+   * @return
+   */
+  private Entry entry(final String term, final int tag)
+  {
+    // lock free lookup, most common case
+    Entry entry = find(term);
+    if (entry != null) {
+      return entry;
+    }
+    return create(term, tag);
+  }
+
+  /**
+   * Spread bits of a String hash.
+   */
+  private static int mix(final int h)
+  {
+    final int x = h * 0x9E3779B9;
+    return x ^ (x >>> 16);
+  }
+
+  /**
+   * Find an entry by String, null if not found.
+   */
+  private Entry find(final String term)
+  {
+    final int hash = term.hashCode();
+    final Entry[] table = byTerm;
+    final int mask = table.length - 1;
+    int slot = mix(hash) & mask;
+    Entry entry;
+    while ((entry = table[slot]) != null) {
+      if (entry.hash == hash && entry.label.equals(term))
+        return entry;
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Find an entry by Chain, null if not found. Chars are compared from the
+   * array of the Chain, no String is created.
+   */
+  private Entry find(final Chain chain)
+  {
+    final int hash = chain.hashCode();
+    final char[] chars = chain.array();
+    final int start = chain.start();
+    final int len = chain.length();
+    final Entry[] table = byTerm;
+    final int mask = table.length - 1;
+    int slot = mix(hash) & mask;
+    Entry entry;
+    while ((entry = table[slot]) != null) {
+      if (entry.hash == hash && matches(entry.label, chars, start, len))
+        return entry;
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Compare a String with a slice of chars.
+   */
+  private static boolean matches(final String label, final char[] chars, final int start, final int len)
+  {
+    if (label.length() != len)
+      return false;
+    for (int i = 0; i < len; i++) {
+      if (label.charAt(i) != chars[start + i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Create an entry for a Chain, the String is created here, only for a new
+   * term.
+   */
+  synchronized private Entry create(final Chain chain, final int tag)
+  {
+    // possible queue, multiple call and entry creation is not finished
+    Entry entry = find(chain);
+    if (entry != null) {
+      return entry;
+    }
+    return create(chain.toString(), tag);
+  }
+
+  /**
+   * Create a chain in the different data structures. Critic for multiThreading,
+   * the only synchronized step, when a term is new.
+   * 
+   * @param term
    * @param tag
    *          An int tag for output filtering
-   * @param count
-   *          initial value for counter
-   * @param count2
-   *          initial value for secondary counter
    * @return
    */
-  synchronized private Entry entry(final String term, final int tag)
+  synchronized private Entry create(final String term, final int tag)
   {
     Entry entry;
     // possible queue, multiple call and entry creation is not finished
-    entry = byTerm.get(term);
+    entry = find(term);
     if (entry != null) {
       return entry;
     }
+    Entry[] byCode = this.byCode;
     // index is too short, extends it (not a big perf pb)
     if (pointer >= byCode.length) {
       final int oldLength = byCode.length;
       final Entry[] oldData = byCode;
-      byCode = new Entry[Calcul.nextSquare(oldLength)];
+      byCode = new Entry[Calcul.nextSquare(oldLength + 1)];
       System.arraycopy(oldData, 0, byCode, 0, oldLength);
     }
     entry = new Entry(pointer, term, tag);
-    // put the same line object by reference in HashMap and Array
+    // put the same line object by reference in table and Array,
+    // array first, a code found in the table has its entry in the array
     byCode[pointer] = entry;
+    this.byCode = byCode;
     pointer++;
-    byTerm.put(term, entry);
+    index(entry);
     return entry;
   }
 
+  /**
+   * Put an entry in the hash table, under lock. Load factor is kept under 0.5,
+   * for short probes. The new table of a resize is filled before publication.
+   */
+  private void index(final Entry entry)
+  {
+    Entry[] table = byTerm;
+    if (++filled * 2 > table.length) {
+      final Entry[] old = table;
+      table = new Entry[old.length * 2];
+      for (Entry e : old) {
+        if (e != null)
+          put(table, e);
+      }
+      put(table, entry);
+      byTerm = table;
+      return;
+    }
+    put(table, entry);
+  }
+
+  /**
+   * Put an entry in the first free slot of a table.
+   */
+  private static void put(final Entry[] table, final Entry entry)
+  {
+    final int mask = table.length - 1;
+    int slot = mix(entry.hash) & mask;
+    while (table[slot] != null)
+      slot = (slot + 1) & mask;
+    table[slot] = entry;
+  }
+
   /**
    * Size of the dictionary
    */
@@ -652,7 +802,7 @@ public class DicFreq
    */
   public long occs()
   {
-    return occs.get();
+    return occs.sum();
   }
 
   /**
@@ -661,7 +811,7 @@ public class DicFreq
    */
   public DicFreq inc()
   {
-    occs.incrementAndGet();
+    occs.increment();
     return this;
   }
 
@@ -671,7 +821,7 @@ public class DicFreq
    */
   public DicFreq add(int delta)
   {
-    occs.addAndGet(delta);
+    occs.add(delta);
     return this;
   }
 
@@ -682,11 +832,18 @@ public class DicFreq
    */
   public List<Entry> byCount()
   {
-    List<Entry> list = new ArrayList<Entry>(byTerm.values()); // will copy entries (?)
+    final int size = pointer;
+    final Entry[] byCode = this.byCode;
+    List<Entry> list = new ArrayList<Entry>(size);
+    for (int code = 0; code < size; code++)
+      list.add(byCode[code]);
     Collections.sort(list);
     return list;
   }
 
+  /**
+   * Entries by code, array may be longer than {@link #size()}, ended by null.
+   */
   public Entry[] entries()
   {
     return byCode;
@@ -776,7 +933,7 @@ public class DicFreq
           break;
         writer.write(entry.toString());
         writer.write(SEP);
-        writer.write("" + (double) Math.round(100000000.0 * entry.count.get() / occs.get()) / 100);
+        writer.write("" + (double) Math.round(100000000.0 * entry.count.sum() / occs.sum()) / 100);
         writer.write("\n");
       }
     }
@@ -878,5 +1035,46 @@ public class DicFreq
     }
     dic.csv(new PrintWriter(System.out));
     */
+    // test concurrency, threads share a dictionary, check codes and totals
+    final int threads = 8;
+    final int loops = 1000000;
+    final DicFreq dic = new DicFreq();
+    Thread[] pool = new Thread[threads];
+    long time = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      final int seed = t;
+      pool[t] = new Thread() {
+        @Override
+        public void run()
+        {
+          java.util.Random random = new java.util.Random(seed);
+          Chain chain = new Chain();
+          for (int i = 0; i < loops; i++) {
+            chain.reset();
+            chain.append("w").append(Integer.toString((int) (Math.pow(random.nextDouble(), 3) * 50000)));
+            dic.inc(chain);
+          }
+        }
+      };
+      pool[t].start();
+    }
+    for (Thread t : pool) {
+      try {
+        t.join();
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+    }
+    long sum = 0;
+    int size = dic.size();
+    Entry[] entries = dic.entries();
+    for (int code = 0; code < size; code++) {
+      if (entries[code].code() != code) System.out.println("Bad code " + code + " " + entries[code]);
+      if (dic.code(entries[code].label()) != code) System.out.println("Bad lookup " + entries[code]);
+      sum += entries[code].count();
+    }
+    System.out.println(size + " terms, occs()=" + dic.occs() + " sum=" + sum + " expected=" + ((long) threads * loops)
+        + " in " + ((System.nanoTime() - time) / 1000000) + " ms");
   }
 }
@@ -68,6 +68,10 @@ public class DicVek
   public final int stopoffset;
   /** Time finished */
   private long modified;
+  /** Kernel for {@link #sims(int)}, sorted vectors with a dense head of stop words, see {@link #sorted(boolean)} */
+  private boolean sorted;
+  /** Sorted snapshot of vectors, built on demand, null after a change of vectors */
+  private IntOMap<SortedVek> sortedVeks;
 
   /**
    * Constructor
@@ -251,10 +255,50 @@ public class DicVek
     return sims(code);
   }
 
+  /**
+   * Choose the kernel for {@link #sims(int)}, hash maps of vectors (false,
+   * default), or a sorted snapshot of vectors (true), codes of stop words (below
+   * {@link #stopoffset}) in a dense head, see {@link SortedVek}.
+   */
+  public void sorted(final boolean sorted)
+  {
+    this.sorted = sorted;
+  }
+
+  /**
+   * Sorted snapshot of vectors
+   */
+  private IntOMap<SortedVek> sortedVeks()
+  {
+    if (sortedVeks != null)
+      return sortedVeks;
+    IntOMap<SortedVek> map = new IntOMap<SortedVek>(vectors.size());
+    vectors.reset();
+    while (vectors.next()) {
+      map.put(vectors.key(), new SortedVek(vectors.value(), stopoffset));
+    }
+    sortedVeks = map;
+    return map;
+  }
+
   public ArrayList<SimRow> sims(int code)
   {
     ArrayList<SimRow> table = new ArrayList<SimRow>();
     SimRow row;
+    if (sorted) {
+      IntOMap<SortedVek> veks = sortedVeks();
+      SortedVek vekterm = veks.get(code);
+      veks.reset();
+      while (veks.next()) {
+        SortedVek vek = veks.value();
+        double score = vekterm.cosine(vek);
+        if (Double.isNaN(score))
+          continue;
+        table.add(new SimRow(vek.code, score));
+      }
+      Collections.sort(table);
+      return table;
+    }
     IntVek vekterm = vectors.get(code);
     // Similarity
     double score;
@@ -546,16 +590,18 @@ public class DicVek
   {
     occs = new OccRoller(left, right);
     // values = new IntRoller( left, right );
-    String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
-    Tokenizer toks = new Tokenizer(text);
     Occ space = new Occ();
     for (int i = left; i <= 0; i++)
       occs.push(space); // envoyer des espaces avant
-    Occ occ;
-    while ((occ = toks.word()) != null) {
-      occs.push(occ); // record occurrence
-      // values.push( value( occ ) ); // precalculate value
-      update();
+    // stream the mapped file, do not load the text in memory
+    try (MappedText text = new MappedText(file)) {
+      Tokenizer toks = new Tokenizer(text.reader());
+      Occ occ;
+      while ((occ = toks.word()) != null) {
+        occs.push(occ); // record occurrence
+        // values.push( value( occ ) ); // precalculate value
+        update();
+      }
     }
     // send some spaces
     for (int i = 0; i < right; i++) {
@@ -565,6 +611,7 @@ public class DicVek
     }
     // suppress little vector here ?
     modified = System.currentTimeMillis();
+    sortedVeks = null;
   }
 
   public long modified()
@@ -649,6 +696,8 @@ public class DicVek
         vectors.remove();
       }
     }
+    if (ops > 0)
+      sortedVeks = null;
     return ops;
   }
 
@@ -681,6 +730,8 @@ public class DicVek
       veks.walk(args[i], new PrintWriter(System.out));
     }
     veks.prune(5);
+    // sorted vectors, dense head of stop words
+    veks.sorted(true);
     DicFreq dic = veks.dic();
     System.out.println(dic);
 
@@ -0,0 +1,402 @@
+package alix.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import alix.fr.dic.Tag;
+
+/**
+ * A compiled, immutable dictionary of compound expressions (locutions), for
+ * the tokenizer, replacing the tree of {@link StemTrie} (a HashMap of Strings
+ * by node). Words of the expressions are ints, from a packed vocabulary
+ * ({@link CharPack}), an expression is a path of states in a double-array
+ * trie over those ints:
+ *
+ * <pre>
+ * next state = base[state] + word, valid if check[next state] == state
+ * </pre>
+ *
+ * A state ending an expression has a tag (grammatical category) and may have
+ * a normalized form. A step is a lookup of a word in the vocabulary (from the
+ * chars of a Chain, no allocation), and two reads in arrays.
+ *
+ * <pre>
+ * int state = loc.next(LocTrie.ROOT, chain);
+ * while (state != LocTrie.NONE) { if (loc.tag(state) != 0) …; state = loc.next(state, nextChain); }
+ * </pre>
+ *
+ * Build with {@link Builder}.
+ *
+ * @author glorieux-f
+ */
+public final class LocTrie
+{
+    /** The root state, before the first word */
+    public static final int ROOT = 0;
+    /** No state, no transition or unknown word */
+    public static final int NONE = -1;
+    /** Check value of a free cell */
+    private static final int FREE = -1;
+    /** Words of the expressions, word code is entry + 1 */
+    private final CharPack words;
+    /** Base of transitions by state */
+    private final int[] base;
+    /** Parent state of a cell */
+    private final int[] check;
+    /** True if an expression ends at this state */
+    private final boolean[] ends;
+    /** Tag by state, 0 if state does not end an expression, or if tag is unknown */
+    private final short[] tags;
+    /** Normalized form by state, or null */
+    private final String[] orths;
+
+    private LocTrie(final CharPack words, final int[] base, final int[] check, final boolean[] ends,
+            final short[] tags, final String[] orths)
+    {
+        this.words = words;
+        this.base = base;
+        this.check = check;
+        this.ends = ends;
+        this.tags = tags;
+        this.orths = orths;
+    }
+
+    /**
+     * Code of a word, or {@link #NONE} if the word is not in an expression.
+     */
+    public int code(final Chain word)
+    {
+        final int entry = words.find(word);
+        if (entry == CharPack.NOT_FOUND) return NONE;
+        return entry + 1;
+    }
+
+    /**
+     * Code of a word, or {@link #NONE} if the word is not in an expression.
+     */
+    public int code(final CharSequence word)
+    {
+        final int entry = words.find(word);
+        if (entry == CharPack.NOT_FOUND) return NONE;
+        return entry + 1;
+    }
+
+    /**
+     * Go from a state with a word code.
+     *
+     * @return next state, or {@link #NONE}
+     */
+    public int next(final int state, final int code)
+    {
+        if (state < 0 || code <= 0) return NONE;
+        final int t = base[state] + code;
+        if (t >= check.length || check[t] != state) return NONE;
+        return t;
+    }
+
+    /**
+     * Go from a state with a word.
+     *
+     * @return next state, or {@link #NONE}
+     */
+    public int next(final int state, final Chain word)
+    {
+        if (state < 0) return NONE;
+        return next(state, code(word));
+    }
+
+    /**
+     * Does an expression end at this state? Not only a prefix of a longer one.
+     */
+    public boolean end(final int state)
+    {
+        return state >= 0 && ends[state];
+    }
+
+    /**
+     * Tag of a state, not 0 if an expression with a known tag ends here
+     * ({@link Tag#UNKNOWN} is 0, see {@link #end(int)}).
+     */
+    public short tag(final int state)
+    {
+        return tags[state];
+    }
+
+    /**
+     * Normalized form of the expression ending at this state, or null.
+     */
+    public String orth(final int state)
+    {
+        return orths[state];
+    }
+
+    /**
+     * Count of cells of the double array (states and holes).
+     */
+    public int size()
+    {
+        return check.length;
+    }
+
+    /**
+     * Count of words in the vocabulary
+     */
+    public int words()
+    {
+        return words.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LocTrie " + words.size() + " words, " + check.length + " cells";
+    }
+
+    /**
+     * Words of an expression, as the tokenizer gives them: separated by
+     * spaces, split after the apostrophe of an elided word (“d’abord”, the
+     * apostrophe normalized).
+     */
+    public static List<String> words(final String term)
+    {
+        List<String> words = new ArrayList<String>();
+        char[] chars = term.toCharArray();
+        final int lim = chars.length;
+        int offset = 0;
+        for (int i = 0; i < lim; i++) {
+            final char c = chars[i];
+            if (c == '’' || c == '\'') {
+                chars[i] = '\'';
+                String token = new String(chars, offset, i - offset + 1);
+                if (!StemTrie.ELLISION.contains(token)) continue;
+                words.add(token);
+                offset = i + 1;
+            }
+            if (Char.isSpace(c)) {
+                if (offset != i) words.add(new String(chars, offset, i - offset));
+                offset = i + 1;
+            }
+        }
+        if (offset != lim) words.add(new String(chars, offset, lim - offset));
+        return words;
+    }
+
+    /**
+     * Collect expressions, in a tree of nodes, then compile it. Same input as
+     * {@link StemTrie}: csv lines “expression;TAG;orth”, words separated by
+     * spaces, and apostrophe after an elided word (“d’abord”).
+     */
+    public static class Builder
+    {
+        /** Vocabulary */
+        private final CharPack.Builder words = new CharPack.Builder();
+        /** Root of the tree */
+        private final Node root = new Node();
+        /** Count of nodes */
+        private int nodes = 1;
+
+        /** A node of the tree, children by word code */
+        private static class Node
+        {
+            TreeMap<Integer, Node> children;
+            boolean end;
+            short tag;
+            String orth;
+        }
+
+        /**
+         * Load a list of compounds from a stream, first line is labels.
+         *
+         * @throws IOException
+         */
+        public Builder load(final InputStream stream, final String separator) throws IOException
+        {
+            String line;
+            BufferedReader buf = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            buf.readLine();
+            while ((line = buf.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.charAt(0) == '#') continue;
+                add(line.split(separator));
+            }
+            buf.close();
+            return this;
+        }
+
+        /**
+         * Add a line of a csv file in format {"a compound expression", "TAG",
+         * "orth"}.
+         */
+        public boolean add(final String[] cells)
+        {
+            if (cells == null || cells.length == 0) return false;
+            if (cells[0] == null || cells[0].isEmpty()) return false;
+            if (cells.length == 1) {
+                add(cells[0], Tag.UNKNOWN, null);
+                return true;
+            }
+            final int cat = Tag.code(cells[1]);
+            if (cells.length == 2 || cells[2] == null || cells[2].isEmpty()) add(cells[0], cat, null);
+            else add(cells[0], cat, cells[2]);
+            return true;
+        }
+
+        /**
+         * Add an expression, words separated by spaces, split after the
+         * apostrophe of an elided word.
+         *
+         * @param cat
+         *            grammatical category code
+         * @param orth
+         *            a normalized form, or null
+         */
+        public void add(final String term, final int cat, final String orth)
+        {
+            Node node = root;
+            for (String word : words(term)) node = append(node, word);
+            node.end = true;
+            node.tag = (short) cat;
+            if (orth != null) node.orth = orth;
+        }
+
+        private Node append(final Node node, final String word)
+        {
+            final int code = words.put(word, (short) 0, null, false) + 1;
+            if (node.children == null) node.children = new TreeMap<Integer, Node>();
+            Node child = node.children.get(code);
+            if (child == null) {
+                child = new Node();
+                node.children.put(code, child);
+                nodes++;
+            }
+            return child;
+        }
+
+        /**
+         * Compile the tree in a double array. States are placed breadth first,
+         * the base of a state is the first one where all the cells of its
+         * children are free.
+         */
+        public LocTrie build()
+        {
+            int capacity = Math.max(16, nodes * 2);
+            int[] base = new int[capacity];
+            int[] check = new int[capacity];
+            Arrays.fill(check, FREE);
+            Node[] states = new Node[capacity];
+            // root cell is not a child
+            check[ROOT] = Integer.MAX_VALUE;
+            states[ROOT] = root;
+            int max = ROOT;
+            // first cell possibly free
+            int free = 1;
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            queue.add(ROOT);
+            ArrayList<Integer> codes = new ArrayList<Integer>();
+            while (!queue.isEmpty()) {
+                final int state = queue.poll();
+                final Node node = states[state];
+                if (node.children == null) continue;
+                codes.clear();
+                codes.addAll(node.children.keySet());
+                final int first = codes.get(0);
+                while (free < check.length && check[free] != FREE) free++;
+                int b = Math.max(1, free - first);
+                search: while (true) {
+                    for (int code : codes) {
+                        final int t = b + code;
+                        if (t < check.length && check[t] != FREE) {
+                            b++;
+                            continue search;
+                        }
+                    }
+                    break;
+                }
+                final int last = b + codes.get(codes.size() - 1);
+                if (last >= check.length) {
+                    final int old = check.length;
+                    final int length = Math.max(last + 1, old * 2);
+                    base = Arrays.copyOf(base, length);
+                    check = Arrays.copyOf(check, length);
+                    Arrays.fill(check, old, length, FREE);
+                    states = Arrays.copyOf(states, length);
+                }
+                base[state] = b;
+                for (int code : codes) {
+                    final int t = b + code;
+                    check[t] = state;
+                    states[t] = node.children.get(code);
+                    queue.add(t);
+                    if (t > max) max = t;
+                }
+            }
+            final int length = max + 1;
+            boolean[] ends = new boolean[length];
+            short[] tags = new short[length];
+            String[] orths = new String[length];
+            for (int state = 0; state < length; state++) {
+                if (states[state] == null) continue;
+                ends[state] = states[state].end;
+                tags[state] = states[state].tag;
+                orths[state] = states[state].orth;
+            }
+            return new LocTrie(words.build(), Arrays.copyOf(base, length), Arrays.copyOf(check, length), ends,
+                    tags, orths);
+        }
+    }
+
+    /**
+     * State reached by the words of an expression, or {@link #NONE}.
+     */
+    private int walk(final String term, final Chain chain)
+    {
+        int state = ROOT;
+        for (String word : words(term)) {
+            chain.copy(word);
+            state = next(state, chain);
+            if (state == NONE) break;
+        }
+        return state;
+    }
+
+    /**
+     * Check, same sample as {@link StemTrie#main(String[])}: expressions added
+     * are found, prefixes and expressions not added are not.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Builder builder = new Builder();
+        String[] added = new String[] { "d' abord", "n'importe quoi", "d'alors", "de abord", "parce   que",
+                "afin que    " };
+        for (String term : added) builder.add(term, Tag.UNKNOWN, null);
+        // prefixes of added expressions, or never added
+        String[] absent = new String[] { "afin", "parce", "n'importe", "d'", "afin de", "ne pas ajouter", "que" };
+        LocTrie loc = builder.build();
+        System.out.println(loc);
+        Chain chain = new Chain();
+        int errors = 0;
+        for (String term : added) {
+            int state = loc.walk(term, chain);
+            boolean ok = loc.end(state);
+            if (!ok) errors++;
+            System.out.println((ok ? "OK    " : "ERROR ") + term + " found " + words(term) + " -> " + state);
+        }
+        for (String term : absent) {
+            int state = loc.walk(term, chain);
+            boolean ok = !loc.end(state);
+            if (!ok) errors++;
+            System.out.println((ok ? "OK    " : "ERROR ") + term + " not found " + words(term) + " -> " + state);
+        }
+        System.out.println(errors + " errors");
+        if (errors > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,330 @@
+package alix.util;
+
+/**
+ * An efficient long-double Map, to count cells of a big sparse matrix with no
+ * object by cell. A cell (row, col) is packed in a long key, see
+ * {@link #key(int, int)}. Same open addressing design as {@link IntOMap}.
+ *
+ * When counting is finished, {@link #sort()} compacts the entries at the start
+ * of the arrays, sorted by key (so by row, then col), with no copy. After
+ * that, the map is read only, entries are accessed by index.
+ */
+public class LongDoubleMap
+{
+    public static final long NO_KEY = 0;
+    public static final double NO_VALUE = 0;
+
+    /** Keys */
+    private long[] keys;
+    /** Values */
+    private double[] values;
+
+    /** Do we have 'free' key in the map? */
+    private boolean hasFreeKey;
+    /** Value of 'free' key */
+    private double freeValue;
+
+    /** Fill factor, must be between (0 and 1) */
+    private final float fillFactor;
+    /** We will resize a map once it reaches this size */
+    private int threshold;
+    /** Current map size */
+    private int size;
+    /** Mask to calculate the original position */
+    private int mask;
+    /** Entries are sorted, map is read only */
+    private boolean sorted;
+
+    /**
+     * Constructor with default fillFactor
+     */
+    public LongDoubleMap()
+    {
+        this(1024, (float) 0.75);
+    }
+
+    public LongDoubleMap(final int size, final float fillFactor)
+    {
+        if (fillFactor <= 0 || fillFactor >= 1)
+            throw new IllegalArgumentException("FillFactor must be between [0-1]");
+        if (size <= 0)
+            throw new IllegalArgumentException("Size must be positive!");
+        final int capacity = arraySize(size, fillFactor);
+        mask = capacity - 1;
+        this.fillFactor = fillFactor;
+        keys = new long[capacity];
+        values = new double[capacity];
+        threshold = (int) (capacity * fillFactor);
+    }
+
+    /**
+     * Pack a cell in a key, sorting keys sort cells by row, then col (positive
+     * ints).
+     */
+    public static long key(final int row, final int col)
+    {
+        return ((long) row << 32) | (col & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Row of a packed cell
+     */
+    public static int row(final long key)
+    {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Col of a packed cell
+     */
+    public static int col(final long key)
+    {
+        return (int) key;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public double get(final long key)
+    {
+        if (sorted) throw new IllegalStateException("Map is sorted, read only");
+        if (key == NO_KEY) return hasFreeKey ? freeValue : NO_VALUE;
+        final int idx = getReadIndex(key);
+        return idx != -1 ? values[idx] : NO_VALUE;
+    }
+
+    /**
+     * Increment the value of a key.
+     */
+    public void inc(final long key)
+    {
+        add(key, 1);
+    }
+
+    /**
+     * Add to the value of a key, create it if needed.
+     */
+    public void add(final long key, final double add)
+    {
+        if (sorted) throw new IllegalStateException("Map is sorted, read only");
+        if (key == NO_KEY) {
+            if (!hasFreeKey) ++size;
+            hasFreeKey = true;
+            freeValue += add;
+            return;
+        }
+        final long[] keys = this.keys;
+        int idx = getStartIndex(key);
+        long k;
+        while ((k = keys[idx]) != NO_KEY) {
+            if (k == key) {
+                values[idx] += add;
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+        keys[idx] = key;
+        values[idx] = add;
+        if (++size >= threshold) rehash(keys.length * 2);
+    }
+
+    /**
+     * Add all the entries of another map.
+     */
+    public void add(final LongDoubleMap map)
+    {
+        if (map.hasFreeKey) add(NO_KEY, map.freeValue);
+        final long[] keys = map.keys;
+        final double[] values = map.values;
+        final int length = map.sorted ? map.size : keys.length;
+        for (int i = 0; i < length; i++) {
+            if (keys[i] != NO_KEY) add(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Compact and sort entries by key, in place. After that, the map is read
+     * only, entries are read with {@link #key(int)} and {@link #value(int)},
+     * from 0 to size - 1.
+     */
+    public void sort()
+    {
+        if (sorted) return;
+        final long[] keys = this.keys;
+        final double[] values = this.values;
+        final int length = keys.length;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (keys[i] == NO_KEY) continue;
+            keys[n] = keys[i];
+            values[n] = values[i];
+            n++;
+        }
+        if (hasFreeKey) {
+            keys[n] = NO_KEY;
+            values[n] = freeValue;
+            n++;
+        }
+        sort(keys, values, 0, n - 1);
+        sorted = true;
+    }
+
+    /**
+     * Key of an entry, after {@link #sort()}
+     */
+    public long key(final int i)
+    {
+        return keys[i];
+    }
+
+    /**
+     * Value of an entry, after {@link #sort()}
+     */
+    public double value(final int i)
+    {
+        return values[i];
+    }
+
+    /**
+     * Sort keys, and values with them. A quicksort, recursion on the smallest
+     * part, insertion sort for small parts.
+     */
+    private static void sort(final long[] keys, final double[] values, int lo, int hi)
+    {
+        while (hi - lo > 16) {
+            // median of 3 as pivot
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo]) swap(keys, values, mid, lo);
+            if (keys[hi] < keys[lo]) swap(keys, values, hi, lo);
+            if (keys[hi] < keys[mid]) swap(keys, values, hi, mid);
+            final long pivot = keys[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(keys, values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            }
+            else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            final long key = keys[i];
+            final double value = values[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(final long[] keys, final double[] values, final int i, final int j)
+    {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private void rehash(final int newCapacity)
+    {
+        if (newCapacity > (1 << 30)) throw new IllegalStateException("Too large, more than 2^30 slots");
+        threshold = (int) (newCapacity * fillFactor);
+        mask = newCapacity - 1;
+        final int oldCapacity = keys.length;
+        final long[] oldKeys = keys;
+        final double[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new double[newCapacity];
+        for (int i = oldCapacity; i-- > 0;) {
+            final long key = oldKeys[i];
+            if (key == NO_KEY) continue;
+            int idx = getStartIndex(key);
+            while (keys[idx] != NO_KEY) idx = (idx + 1) & mask;
+            keys[idx] = key;
+            values[idx] = oldValues[i];
+        }
+    }
+
+    /**
+     * Find key position in the map.
+     *
+     * @return Key position or -1 if not found
+     */
+    private int getReadIndex(final long key)
+    {
+        int idx = getStartIndex(key);
+        long k;
+        while ((k = keys[idx]) != NO_KEY) {
+            if (k == key) return idx;
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int getStartIndex(final long key)
+    {
+        return phiMix(key) & mask;
+    }
+
+    /**
+     * Returns the least power of two smaller than or equal to 2<sup>30</sup> and
+     * larger than or equal to <code>Math.ceil( expected / f )</code>.
+     */
+    private static int arraySize(final int expected, final float f)
+    {
+        final long s = Math.max(2, Calcul.nextSquare((long) Math.ceil(expected / f)));
+        if (s > (1 << 30))
+            throw new IllegalArgumentException(
+                    "Too large (" + expected + " expected elements with load factor " + f + ")");
+        return (int) s;
+    }
+
+    // taken from FastUtil
+    private static final long LONG_PHI = 0x9E3779B97F4A7C15L;
+
+    private static int phiMix(final long x)
+    {
+        final long h = x * LONG_PHI;
+        return (int) (h ^ (h >>> 32) ^ (h >>> 16));
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ ");
+        boolean first = true;
+        if (hasFreeKey && !sorted) {
+            sb.append(NO_KEY + ":" + freeValue);
+            first = false;
+        }
+        final int length = sorted ? size : keys.length;
+        for (int i = 0; i < length; i++) {
+            if (!sorted && keys[i] == NO_KEY) continue;
+            if (!first) sb.append(", ");
+            else first = false;
+            sb.append(keys[i] + ":" + values[i]);
+        }
+        sb.append(" }");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,370 @@
+package alix.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A big UTF-8 text file, memory mapped, to be read in one or more passes by
+ * the tokenizers (or a char loop), with no system call and no intermediate
+ * byte buffer. Chars are decoded from the mapped bytes by a fast path (ascii
+ * bytes are cast to chars, other sequences decoded by hand, malformed bytes
+ * give U+FFFD). The file may be bigger than 2 Go, it is mapped by windows.
+ *
+ * The text may be split in parts, for parallel work, split points are after a
+ * space (ascii), so that no word is broken, and each part is a {@link Reader}.
+ *
+ * <pre>
+ * try (MappedText text = new MappedText(path)) {
+ *   for (long[] part: text.splits(threads)) ... text.reader(part[0], part[1])
+ * }
+ * </pre>
+ *
+ * @author glorieux-f
+ */
+public class MappedText implements Closeable
+{
+    /** Size of a mapped window, in bytes */
+    public static final int WINDOW = 1 << 28;
+    /** Replacement char for malformed bytes */
+    private static final char REPLACEMENT = '�';
+    /** File channel, open till close */
+    private final FileChannel channel;
+    /** Size of file in bytes */
+    private final long size;
+
+    public MappedText(final Path file) throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    public MappedText(final String file) throws IOException
+    {
+        this(Paths.get(file));
+    }
+
+    /**
+     * Size of the file, in bytes.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * A reader on all the text.
+     */
+    public Reader reader()
+    {
+        return new Part(0, size);
+    }
+
+    /**
+     * A reader on a part of the text, from a start byte to an end byte, should
+     * be boundaries given by {@link #splits(int)}.
+     */
+    public Reader reader(final long start, final long end)
+    {
+        if (start < 0 || end > size || start > end)
+            throw new IllegalArgumentException("Bad bounds [" + start + ", " + end + "[ for size " + size);
+        return new Part(start, end);
+    }
+
+    /**
+     * Split the text in parts of similar size, on word boundaries.
+     *
+     * @param count
+     *            wanted count of parts, may be less for a small text
+     * @return couples of [start, end[ byte index
+     * @throws IOException
+     */
+    public long[][] splits(final int count) throws IOException
+    {
+        if (count < 1) throw new IllegalArgumentException("Count of parts should be positive: " + count);
+        long[] points = new long[count + 1];
+        int n = 0;
+        points[n++] = 0;
+        for (int i = 1; i < count; i++) {
+            long point = boundary(size * i / count);
+            if (point <= points[n - 1]) continue;
+            if (point >= size) break;
+            points[n++] = point;
+        }
+        points[n++] = size;
+        long[][] splits = new long[n - 1][];
+        for (int i = 0; i < n - 1; i++) {
+            splits[i] = new long[] { points[i], points[i + 1] };
+        }
+        return splits;
+    }
+
+    /**
+     * Next index after an ascii space, from a byte index. A byte < 0x80 is
+     * always a full char in UTF-8, so that a reader can start there.
+     */
+    public long boundary(long pos) throws IOException
+    {
+        int len = (int) Math.min(1 << 16, size - pos);
+        while (len > 0) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            for (int i = 0; i < len; i++) {
+                byte b = buf.get(i);
+                if (b == ' ' || b == '\n' || b == '\r' || b == '\t') return pos + i + 1;
+            }
+            pos += len;
+            len = (int) Math.min(1 << 16, size - pos);
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * A reader on a part of the mapped file, not thread safe, one reader by
+     * thread.
+     */
+    private class Part extends Reader
+    {
+        /** Absolute end of part in file */
+        private final long end;
+        /** Absolute start of mapped window in file */
+        private long base;
+        /** Mapped window */
+        private MappedByteBuffer buf;
+        /** Index in window */
+        private int pos;
+        /** Size of window */
+        private int limit;
+        /** Low surrogate waiting for a char place */
+        private char pending;
+        /** Char index after last decode */
+        private int next;
+
+        Part(final long start, final long end)
+        {
+            this.base = start;
+            this.end = end;
+        }
+
+        /**
+         * Map next window from current position, an incomplete char sequence at
+         * the end of a window is mapped again at the start of next one.
+         */
+        private boolean map() throws IOException
+        {
+            base += pos;
+            if (base >= end) return false;
+            limit = (int) Math.min(WINDOW, end - base);
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, base, limit);
+            pos = 0;
+            return true;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) throws IOException
+        {
+            if (len == 0) return 0;
+            int i = off;
+            final int max = off + len;
+            if (pending != 0) {
+                cbuf[i++] = pending;
+                pending = 0;
+            }
+            while (i < max) {
+                // end of window, or less than a full sequence with more bytes in part
+                if (pos >= limit || (limit - pos < 4 && base + limit < end)) {
+                    if (!map()) break;
+                }
+                final MappedByteBuffer buf = this.buf;
+                final int safe = (base + limit < end) ? limit - 3 : limit;
+                int p = pos;
+                // fast loop in the window
+                while (i < max && p < safe) {
+                    final int b = buf.get(p);
+                    if (b >= 0) {
+                        cbuf[i++] = (char) b;
+                        p++;
+                        continue;
+                    }
+                    p = decode(buf, p, cbuf, i, max);
+                    i = next;
+                }
+                pos = p;
+            }
+            if (i == off) return -1;
+            return i - off;
+        }
+
+        /**
+         * Decode a multi-byte sequence at p, set {@link #next} to next char index,
+         * return next byte index.
+         */
+        private int decode(final MappedByteBuffer buf, final int p, final char[] cbuf, int i, final int max)
+        {
+            final int b = buf.get(p) & 0xFF;
+            int need;
+            int cp;
+            // range of the second byte, narrower after some leads, like the JDK
+            // decoder: no overlong forms, nothing after U+10FFFF
+            int lo = 0x80;
+            int hi = 0xBF;
+            if (b >= 0xF0 && b <= 0xF4) {
+                need = 3;
+                cp = b & 0x07;
+                if (b == 0xF0) lo = 0x90;
+                else if (b == 0xF4) hi = 0x8F;
+            }
+            else if (b >= 0xE0 && b < 0xF0) {
+                need = 2;
+                cp = b & 0x0F;
+                if (b == 0xE0) lo = 0xA0;
+            }
+            else if (b >= 0xC2 && b < 0xE0) {
+                need = 1;
+                cp = b & 0x1F;
+            }
+            else {
+                need = -1;
+                cp = 0;
+            }
+            int q = p + 1;
+            for (int k = 0; k < need; k++, q++) {
+                if (q >= limit) {
+                    need = -1;
+                    break;
+                }
+                final int c = buf.get(q) & 0xFF;
+                if (c < lo || c > hi) {
+                    need = -1;
+                    break;
+                }
+                cp = (cp << 6) | (c & 0x3F);
+                lo = 0x80;
+                hi = 0xBF;
+            }
+            if (need < 0) {
+                // malformed, replace the bytes read, go next
+                cbuf[i++] = REPLACEMENT;
+                next = i;
+                return q;
+            }
+            // a surrogate (ED A0..BF), the full sequence is one malformed char, like the JDK
+            if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) {
+                cbuf[i++] = REPLACEMENT;
+            }
+            else if (cp < 0x10000) {
+                cbuf[i++] = (char) cp;
+            }
+            else {
+                cbuf[i++] = Character.highSurrogate(cp);
+                if (i < max) cbuf[i++] = Character.lowSurrogate(cp);
+                else pending = Character.lowSurrogate(cp);
+            }
+            next = i;
+            return q;
+        }
+
+        @Override
+        public void close()
+        {
+            buf = null;
+        }
+    }
+
+    /**
+     * Compare decoding of malformed sequences with the JDK decoder (new
+     * String(bytes, UTF_8)), should be same chars.
+     *
+     * @return count of differences
+     */
+    static int check() throws IOException
+    {
+        int[][] cases = {
+            { 0xE0, 0x80, 0x80 }, { 0xE0, 0x9F, 0xBF }, { 0xE0, 0xA0, 0x80 }, // overlong 3 bytes, first valid
+            { 0xF0, 0x80, 0x80, 0x80 }, { 0xF0, 0x8F, 0xBF, 0xBF }, { 0xF0, 0x90, 0x80, 0x80 }, // overlong 4 bytes
+            { 0xED, 0xA0, 0x80 }, { 0xED, 0xBF, 0xBF }, { 0xED, 0x9F, 0xBF }, // surrogates, last valid
+            { 0xF4, 0x90, 0x80, 0x80 }, { 0xF4, 0x8F, 0xBF, 0xBF }, { 0xF5, 0x80, 0x80, 0x80 }, // > U+10FFFF
+            { 0xC0, 0xAF }, { 0xC1, 0xBF }, { 0x80 }, { 0xFF }, { 0xE2, 0x82 }, { 0xF0, 0x90, 0x41 },
+            { 0xED, 0xA0, 0x41 }, { 0xED, 0xA0 }, { 0xE0, 0x80, 0x41 }, { 0xF4, 0x90 },
+            { 0xC3, 0xA9 }, { 0xE2, 0x82, 0xAC }, { 0xF0, 0x9F, 0x98, 0x80 },
+        };
+        int errors = 0;
+        Path file = java.nio.file.Files.createTempFile("mapped", ".txt");
+        try {
+            for (int[] bytes : cases) {
+                byte[] seq = new byte[bytes.length + 2];
+                seq[0] = 'a';
+                for (int k = 0; k < bytes.length; k++) seq[k + 1] = (byte) bytes[k];
+                seq[seq.length - 1] = 'z';
+                java.nio.file.Files.write(file, seq);
+                String expected = new String(seq, java.nio.charset.StandardCharsets.UTF_8);
+                StringBuilder sb = new StringBuilder();
+                try (MappedText text = new MappedText(file); Reader reader = text.reader()) {
+                    int c;
+                    while ((c = reader.read()) >= 0) sb.append((char) c);
+                }
+                if (expected.equals(sb.toString())) continue;
+                errors++;
+                System.out.println("DIFF " + java.util.Arrays.toString(bytes) + " JDK=" + expected + " mapped=" + sb);
+            }
+        }
+        finally {
+            java.nio.file.Files.delete(file);
+        }
+        System.out.println(cases.length + " sequences, " + errors + " differences");
+        return errors;
+    }
+
+    /**
+     * Test decoding speed, compared with a BufferedReader
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1) {
+            System.out.println("java alix.util.MappedText (check | file.txt)");
+            return;
+        }
+        if ("check".equals(args[0])) {
+            if (check() > 0) System.exit(1);
+            return;
+        }
+        char[] cbuf = new char[1 << 16];
+        for (int loop = 0; loop < 3; loop++) {
+            long time = System.nanoTime();
+            long chars = 0;
+            long hash = 0;
+            try (Reader reader = java.nio.file.Files.newBufferedReader(Paths.get(args[0]))) {
+                int n;
+                while ((n = reader.read(cbuf)) > 0) {
+                    chars += n;
+                    for (int i = 0; i < n; i++) hash = 31 * hash + cbuf[i];
+                }
+            }
+            System.out.println("BufferedReader " + chars + " chars " + hash + " in "
+                    + ((System.nanoTime() - time) / 1000000) + " ms");
+            time = System.nanoTime();
+            chars = 0;
+            hash = 0;
+            try (MappedText text = new MappedText(args[0])) {
+                Reader reader = text.reader();
+                int n;
+                while ((n = reader.read(cbuf)) > 0) {
+                    chars += n;
+                    for (int i = 0; i < n; i++) hash = 31 * hash + cbuf[i];
+                }
+            }
+            System.out.println("MappedText     " + chars + " chars " + hash + " in "
+                    + ((System.nanoTime() - time) / 1000000) + " ms");
+        }
+    }
+}
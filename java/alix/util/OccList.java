@@ -40,7 +40,7 @@ public class OccList
     final int oldCapacity = data.length;
     if (size >= oldCapacity) {
       final Occ[] oldData = data;
-      final int newCapacity = Calcul.nextSquare(oldCapacity);
+      final int newCapacity = Calcul.nextSquare(oldCapacity + 1);
       data = new Occ[newCapacity];
       System.arraycopy(oldData, 0, data, 0, oldCapacity);
       // add occ
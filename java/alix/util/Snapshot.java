@@ -0,0 +1,201 @@
+package alix.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of compiled dictionaries, to avoid csv parsing at startup.
+ * A snapshot file starts with a magic String, and a stamp of its sources (size
+ * and date of the csv resources); a snapshot with another stamp is stale. The
+ * file is memory mapped for reading, arrays are bulk copied from the map.
+ *
+ * <pre>
+ * utf  magic
+ * long stamp
+ * …    content written by the dictionary
+ * </pre>
+ *
+ * @author glorieux-f
+ */
+public class Snapshot
+{
+    /** System property for the directory of snapshots */
+    public static final String DIR = "alix.snapshot";
+
+    /**
+     * Default path for a snapshot file: in the directory given by the system
+     * property {@link #DIR}, or besides the classes (jar or folder).
+     */
+    public static Path path(final Class<?> cls, final String name)
+    {
+        String dir = System.getProperty(DIR);
+        if (dir != null) return Paths.get(dir, name);
+        try {
+            File f = new File(cls.getProtectionDomain().getCodeSource().getLocation().toURI().getPath());
+            if (f.isFile()) f = f.getParentFile();
+            return new File(f, name).toPath();
+        }
+        catch (URISyntaxException | SecurityException | NullPointerException e) {
+            return Paths.get(name);
+        }
+    }
+
+    /**
+     * A cheap stamp of resources, with their size and date, no read of content.
+     *
+     * @param cls
+     *            class used to get the resources
+     * @param resources
+     *            names of resources, relative to the class
+     */
+    public static long stamp(final Class<?> cls, final String... resources)
+    {
+        long stamp = 17;
+        for (String res : resources) {
+            URL url = cls.getResource(res);
+            long size = -1;
+            long date = -1;
+            if (url != null) {
+                try {
+                    URLConnection conn = url.openConnection();
+                    size = conn.getContentLengthLong();
+                    date = conn.getLastModified();
+                    conn.getInputStream().close();
+                }
+                catch (IOException e) {
+                }
+            }
+            stamp = 31 * stamp + res.hashCode();
+            stamp = 31 * stamp + size;
+            stamp = 31 * stamp + date;
+        }
+        return stamp;
+    }
+
+    /**
+     * Map a snapshot, positioned after the header.
+     *
+     * @return null if the file is not found, not a snapshot of this kind, or
+     *         stale.
+     */
+    public static ByteBuffer open(final Path file, final String magic, final long stamp)
+    {
+        if (file == null || !Files.isRegularFile(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // mapping stay valid after the close of channel
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!magic.equals(getString(buf))) return null;
+            if (buf.getLong() != stamp) return null;
+            return buf;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create a snapshot, the header is written. Content is written to a temp
+     * file, call {@link #commit(Path)} after close.
+     *
+     * @throws IOException
+     */
+    public static DataOutputStream create(final Path file, final String magic, final long stamp) throws IOException
+    {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+        putString(out, magic);
+        out.writeLong(stamp);
+        return out;
+    }
+
+    /**
+     * Replace the snapshot by the temp file written.
+     *
+     * @throws IOException
+     */
+    public static void commit(final Path file) throws IOException
+    {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static void putString(final DataOutputStream out, final String s) throws IOException
+    {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String getString(final ByteBuffer buf)
+    {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        if (len > buf.remaining()) throw new IllegalArgumentException("Bad string length " + len);
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void putChars(final DataOutputStream out, final char[] chars) throws IOException
+    {
+        out.writeInt(chars.length);
+        for (char c : chars)
+            out.writeChar(c);
+    }
+
+    public static char[] getChars(final ByteBuffer buf)
+    {
+        char[] chars = new char[buf.getInt()];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + chars.length * 2);
+        return chars;
+    }
+
+    public static void putInts(final DataOutputStream out, final int[] ints) throws IOException
+    {
+        out.writeInt(ints.length);
+        for (int i : ints)
+            out.writeInt(i);
+    }
+
+    public static int[] getInts(final ByteBuffer buf)
+    {
+        int[] ints = new int[buf.getInt()];
+        buf.asIntBuffer().get(ints);
+        buf.position(buf.position() + ints.length * 4);
+        return ints;
+    }
+
+    public static void putShorts(final DataOutputStream out, final short[] shorts) throws IOException
+    {
+        out.writeInt(shorts.length);
+        for (short s : shorts)
+            out.writeShort(s);
+    }
+
+    public static short[] getShorts(final ByteBuffer buf)
+    {
+        short[] shorts = new short[buf.getInt()];
+        buf.asShortBuffer().get(shorts);
+        buf.position(buf.position() + shorts.length * 2);
+        return shorts;
+    }
+}
@@ -0,0 +1,267 @@
+package alix.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An immutable vector of int values, a snapshot of an {@link IntVek}, for fast
+ * cosines. The hash map of an IntVek is probed for each key of the other
+ * vector, a cosine here reads contiguous arrays:
+ *
+ * <ul>
+ * <li>keys below a limit (the first codes of a dictionary, stop words, see
+ * {@link DicVek#stopoffset}) are in a dense array, their product is a plain
+ * loop, with no branch, vectorized by the JIT;</li>
+ * <li>other keys are sorted, with their values; intersection is a merge, or a
+ * galloping search of the keys of the smallest vector in the biggest when
+ * sizes are very different.</li>
+ * </ul>
+ *
+ * @author glorieux-f
+ */
+public class SortedVek
+{
+    /** Size ratio of vectors from which galloping search is faster than merge */
+    static final int GALLOP_RATIO = 8;
+    /** Int id of the vector */
+    public final int code;
+    /** Values of keys from 0 to head.length - 1 */
+    private final int[] head;
+    /** Other keys, sorted */
+    private final int[] keys;
+    /** Values of the other keys */
+    private final int[] values;
+    /** Cached magnitude */
+    private final double magnitude;
+
+    /**
+     * Snapshot of a vector.
+     *
+     * @param dense
+     *            keys below this limit are stored in a dense array
+     */
+    public SortedVek(final IntVek vek, final int dense)
+    {
+        this.code = vek.code;
+        int[] head = new int[dense];
+        int[] keys = new int[vek.size()];
+        int[] values = new int[vek.size()];
+        int n = 0;
+        long mag = 0;
+        vek.reset();
+        while (vek.next()) {
+            final int key = vek.key();
+            final long value = vek.value();
+            mag += value * value;
+            if (key >= 0 && key < dense) {
+                head[key] = (int) value;
+                continue;
+            }
+            keys[n] = key;
+            values[n] = (int) value;
+            n++;
+        }
+        sort(keys, values, n);
+        this.head = head;
+        this.keys = Arrays.copyOf(keys, n);
+        this.values = Arrays.copyOf(values, n);
+        this.magnitude = Math.sqrt(mag);
+    }
+
+    /**
+     * Sort keys and values by key, insertion sort for small vectors, else by
+     * packed longs (key, value).
+     */
+    private static void sort(final int[] keys, final int[] values, final int n)
+    {
+        if (n < 32) {
+            for (int i = 1; i < n; i++) {
+                final int key = keys[i];
+                final int value = values[i];
+                int j = i - 1;
+                while (j >= 0 && keys[j] > key) {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+            return;
+        }
+        long[] pairs = new long[n];
+        for (int i = 0; i < n; i++) pairs[i] = ((long) keys[i] << 32) | (values[i] & 0xFFFFFFFFL);
+        Arrays.sort(pairs);
+        for (int i = 0; i < n; i++) {
+            keys[i] = (int) (pairs[i] >> 32);
+            values[i] = (int) pairs[i];
+        }
+    }
+
+    public double magnitude()
+    {
+        return magnitude;
+    }
+
+    /**
+     * Count of keys out of the dense head
+     */
+    public int size()
+    {
+        return keys.length;
+    }
+
+    /**
+     * Cosine similarity, NaN if a vector is empty (like
+     * {@link IntVek#cosine(IntVek)}).
+     */
+    public double cosine(final SortedVek other)
+    {
+        return dot(other) / (magnitude * other.magnitude);
+    }
+
+    /**
+     * Dot product
+     */
+    public long dot(final SortedVek other)
+    {
+        long sum = dense(head, other.head, Math.min(head.length, other.head.length));
+        final int n1 = keys.length;
+        final int n2 = other.keys.length;
+        if (n1 == 0 || n2 == 0) return sum;
+        if (n1 * GALLOP_RATIO < n2) return sum + gallop(keys, values, other.keys, other.values);
+        if (n2 * GALLOP_RATIO < n1) return sum + gallop(other.keys, other.values, keys, values);
+        return sum + merge(keys, values, other.keys, other.values);
+    }
+
+    /**
+     * Dot product of dense arrays.
+     */
+    static long dense(final int[] a, final int[] b, final int n)
+    {
+        long sum = 0;
+        for (int i = 0; i < n; i++) sum += a[i] * (long) b[i];
+        return sum;
+    }
+
+    /**
+     * Dot product of sorted sparse vectors, merge of keys.
+     */
+    static long merge(final int[] keys1, final int[] values1, final int[] keys2, final int[] values2)
+    {
+        long sum = 0;
+        int i1 = 0;
+        int i2 = 0;
+        final int n1 = keys1.length;
+        final int n2 = keys2.length;
+        while (i1 < n1 && i2 < n2) {
+            final int k1 = keys1[i1];
+            final int k2 = keys2[i2];
+            if (k1 == k2) sum += values1[i1] * (long) values2[i2];
+            // no if/else, let the JIT use conditional moves
+            i1 += (k1 <= k2) ? 1 : 0;
+            i2 += (k2 <= k1) ? 1 : 0;
+        }
+        return sum;
+    }
+
+    /**
+     * Dot product of sorted sparse vectors, each key of the small one is
+     * searched in the big one, from last position found, by steps of 1, 2, 4…,
+     * then by bisection.
+     */
+    static long gallop(final int[] small, final int[] smallValues, final int[] big, final int[] bigValues)
+    {
+        long sum = 0;
+        int lo = 0;
+        final int n = big.length;
+        for (int i = 0; i < small.length; i++) {
+            final int key = small[i];
+            lo = gallop(big, lo, n, key);
+            if (lo >= n) break;
+            if (big[lo] == key) sum += smallValues[i] * (long) bigValues[lo];
+        }
+        return sum;
+    }
+
+    /**
+     * First index from lo where keys[index] >= key, or n.
+     */
+    static int gallop(final int[] keys, int lo, final int n, final int key)
+    {
+        if (lo >= n || keys[lo] >= key) return lo;
+        int step = 1;
+        int hi = lo + 1;
+        while (hi < n && keys[hi] < key) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        if (hi > n) hi = n;
+        // keys[lo] < key, keys[hi] >= key or hi == n
+        lo++;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Benchmark of cosines, hash maps of IntVek against sorted vectors, with
+     * and without a dense head.
+     */
+    public static void main(String[] args)
+    {
+        final int vocab = 50000;
+        final int count = 2000;
+        final int dense = 200;
+        Random random = new Random(1);
+        IntVek[] veks = new IntVek[count];
+        for (int v = 0; v < count; v++) {
+            IntVek vek = new IntVek(v, null);
+            // zipfian keys, frequent words have small codes
+            int size = 50 + random.nextInt(3000);
+            for (int i = 0; i < size; i++) vek.inc((int) (Math.pow(random.nextDouble(), 4) * vocab));
+            veks[v] = vek;
+        }
+        SortedVek[] sparse = new SortedVek[count];
+        SortedVek[] hybrid = new SortedVek[count];
+        for (int v = 0; v < count; v++) {
+            sparse[v] = new SortedVek(veks[v], 0);
+            hybrid[v] = new SortedVek(veks[v], dense);
+        }
+        for (int loop = 0; loop < 5; loop++) {
+            double check = 0;
+            long time = System.nanoTime();
+            for (int q = 0; q < 20; q++) for (int v = 0; v < count; v++) check += hashCosine(veks[q], veks[v]);
+            System.out.print("IntVek " + ((System.nanoTime() - time) / 1000000) + " ms (" + check + ")");
+            check = 0;
+            time = System.nanoTime();
+            for (int q = 0; q < 20; q++) for (int v = 0; v < count; v++) check += sparse[q].cosine(sparse[v]);
+            System.out.print("   sorted " + ((System.nanoTime() - time) / 1000000) + " ms (" + check + ")");
+            check = 0;
+            time = System.nanoTime();
+            for (int q = 0; q < 20; q++) for (int v = 0; v < count; v++) check += hybrid[q].cosine(hybrid[v]);
+            System.out.println("   dense " + dense + " " + ((System.nanoTime() - time) / 1000000) + " ms (" + check + ")");
+        }
+    }
+
+    /**
+     * {@link IntVek#cosine(IntVek)} without its log of null products.
+     */
+    private static double hashCosine(final IntVek a, final IntVek b)
+    {
+        double sum = 0;
+        IntVek small = (a.size() < b.size()) ? a : b;
+        IntVek big = (small == a) ? b : a;
+        small.reset();
+        while (small.next()) {
+            int value = big.get(small.key());
+            if (value <= 0) continue;
+            sum += (long) value * small.value();
+        }
+        return sum / (a.magnitude() * b.magnitude());
+    }
+}
@@ -1,145 +1,338 @@
 package alix.util;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
- * A sparse matrix to record vectors
+ * A sparse matrix to record vectors. Data are in buffers, wrapping arrays when
+ * the matrix is built or loaded, or mapped on a file saved by
+ * {@link #save(String)}, see {@link #open(String)}, with no copy. Values of
+ * cells (counts, ppmi) may be stored with less precision, see
+ * {@link #storage(int)}. Kernels for cosines can be chosen, see
+ * {@link #kernel(int)} and {@link #dense(int)}.
  * @author fred
  *
  */
 public class SparseMat {
-    public HashMap<IntPair, Counter> hash = new HashMap<IntPair, Counter>();
+    /** Counts by cell, before compilation, see {@link LongDoubleMap#key(int, int)} */
+    public LongDoubleMap hash = new LongDoubleMap();
     int length;
     int height;
     int width;
     double sum;
-    int[] rows;
-    int[] rowIndex;
-    int[] rowSize;
-    int[] colSize;
-    int[] cols;
-    double[] counts;
-    double[] countsRowSum;
-    double[] countsColSum;
-    double[] countsRowMag;
-    double[] ppmi;
-    double[] ppmiRowMag;
+    IntBuffer rows;
+    IntBuffer rowIndex;
+    IntBuffer rowSize;
+    IntBuffer colSize;
+    IntBuffer cols;
+    Values counts;
+    DoubleBuffer countsRowSum;
+    DoubleBuffer countsColSum;
+    DoubleBuffer countsRowMag;
+    Values ppmi;
+    DoubleBuffer ppmiRowMag;
+    /** Col index (CSC), for each col, start index in colCells */
+    IntBuffer colIndex;
+    /** Col index (CSC), cells by col, sorted by row, index in rows, cols, values */
+    IntBuffer colCells;
+    /** Buffers are mapped on a file, read only */
+    boolean readOnly;
+    /** Storage of values, see {@link #storage(int)} */
+    int storage = DOUBLE;
+    /** Kernel for cosines of 2 rows, see {@link #kernel(int)} */
+    int kernel = MERGE;
+    /** Count of first cols in dense blocks, 0 if none, see {@link #dense(int)} */
+    int dense;
+    /** Dense block of counts, first cols, height × dense */
+    double[] countsDense;
+    /** Dense block of ppmi, first cols, height × dense */
+    double[] ppmiDense;
+    /** Arrays for the products of {@link #sims(int, int, int)}, one by thread */
+    private final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>()
+    {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch(0);
+        }
+    };
     final static double LOG2 = Math.log(2);
     public static final int COUNTS = 0;
     public static final int PPMI = 1;
     public static final int CELL_BYTE_LEN = 4 + 4 +8;
+    /** Storage of values, 8 bytes */
+    public static final int DOUBLE = 0;
+    /** Storage of values, 4 bytes, cosines exact to ~1e-7 */
+    public static final int FLOAT = 1;
+    /** Storage of values, 2 bytes, quantized by row, cosines exact to ~1e-5 */
+    public static final int SHORT = 2;
+    /** Storage of values, 1 byte, quantized by row, cosines exact to ~1e-3 */
+    public static final int BYTE = 3;
+    /** Kernel for cosines of 2 rows, merge of sorted cols */
+    public static final int MERGE = 0;
+    /** Kernel for cosines of 2 rows, galloping search of the cols of the shortest row in the longest */
+    public static final int GALLOP = 1;
+    /** Count of candidate rows to score in one task */
+    static final int SIMS_CHUNK = 1024;
+    /** File format, first bytes */
+    static final byte[] MAGIC = "ALIXSMAT".getBytes(StandardCharsets.US_ASCII);
+    /** File format, version */
+    static final int VERSION = 2;
+    /** File format, bytes before the table of sections */
+    static final int HEADER_LEN = 8 + 4 + 4 + 4 + 4 + 8 + 4 + 4;
+    /** File format, sections in order */
+    static final int SEC_ROWS = 0, SEC_COLS = 1, SEC_COUNTS = 2, SEC_ROW_INDEX = 3, SEC_COL_INDEX = 4,
+            SEC_COL_CELLS = 5, SEC_ROW_SIZE = 6, SEC_COL_SIZE = 7, SEC_ROW_SUM = 8, SEC_COL_SUM = 9,
+            SEC_ROW_MAG = 10, SEC_PPMI = 11, SEC_PPMI_ROW_MAG = 12, SEC_COUNTS_SCALE = 13, SEC_PPMI_SCALE = 14;
+    static final int SECTIONS = 15;
     
-    private static class Entry implements Comparable<Entry>
+    /**
+     * Increment the count of a cell, before {@link #compile()}.
+     */
+    public void inc(final int row, final int col)
     {
-        final int row;
-        final int col;
-        final double count;
-        Entry(final int row, final int col, final double count)
-        {
-            this.row = row;
-            this.col = col;
-            this.count = count;
-        }
-        @Override
-        public int compareTo(Entry o)
-        {
-            // inspired by Integer.compareTo(x, y)
-            if (this.row < o.row) return -1;
-            else if (this.row > o.row) return 1;
-            else if (this.col < o.col) return -1;
-            else if (this.col > o.col) return 1;
-            else return 0;
-        }
+        hash.inc(LongDoubleMap.key(row, col));
     }
-    
+
+    /**
+     * Add to the count of a cell, before {@link #compile()}.
+     */
+    public void add(final int row, final int col, final double count)
+    {
+        hash.add(LongDoubleMap.key(row, col), count);
+    }
+
     public void compile()
     {
-        sortData();
+        if (readOnly) throw new IllegalStateException("Matrix mapped on a file, read only");
+        // data may have been set by sortData(LongDoubleMap...)
+        if (rows == null || hash.size() > 0) sortData();
         indexRows();
+        indexCols();
         sumLines();
+        if (storage != DOUBLE) counts = store(counts);
         countsRowMags();
+        if (dense > 0) countsDense = denseBlock(counts);
+    }
+
+    /**
+     * Choose the kernel for cosines of 2 rows, {@link #MERGE} (default), or
+     * {@link #GALLOP}, better when rows have very different sizes.
+     */
+    public void kernel(final int kernel)
+    {
+        if (kernel != MERGE && kernel != GALLOP) throw new IllegalArgumentException("Unknown kernel: " + kernel);
+        this.kernel = kernel;
+    }
+
+    /**
+     * Store values of the first cols (the most frequent words, if cols are
+     * codes in frequency order) in dense blocks, one for counts, one for ppmi
+     * (height × n doubles each). Products on these cols are contiguous loops
+     * with no branch, instead of merges or visits of long cols of the col index.
+     * Blocks are not saved, call again after {@link #open(String)}.
+     *
+     * @param n
+     *            count of cols, 0 to remove the blocks
+     */
+    public void dense(final int n)
+    {
+        if (n < 0 || (long) n * height > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Dense block too big: " + height + " × " + n);
+        this.dense = Math.min(n, width);
+        countsDense = denseBlock(counts);
+        ppmiDense = denseBlock(ppmi);
+    }
+
+    /**
+     * Build a dense block of values, first cols.
+     */
+    private double[] denseBlock(final Values values)
+    {
+        if (values == null || dense <= 0) return null;
+        final int dense = this.dense;
+        double[] block = new double[height * dense];
+        for (int row = 0; row < height; row++) {
+            for (int i = rowIndex.get(row), end = rowIndex.get(row + 1); i < end; i++) {
+                int col = cols.get(i);
+                // cols are sorted
+                if (col >= dense) break;
+                block[row * dense + col] = values.get(i, row);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Dense block of a set of values, or null.
+     */
+    private double[] block(final Values values)
+    {
+        if (dense <= 0) return null;
+        if (values == counts) return countsDense;
+        if (values == ppmi) return ppmiDense;
+        return null;
+    }
+
+    /**
+     * Set the storage of values (counts and ppmi): {@link #DOUBLE} (default),
+     * {@link #FLOAT}, or quantized by row, {@link #SHORT} or {@link #BYTE}. Less
+     * memory and bandwidth for similarity queries, sums are computed before
+     * (exact), magnitudes after (cosine of stored values). Values already
+     * computed are converted, and values computed after are stored so.
+     */
+    public void storage(final int storage)
+    {
+        if (storage < DOUBLE || storage > BYTE) throw new IllegalArgumentException("Unknown storage: " + storage);
+        this.storage = storage;
+        if (counts != null && counts.storage != storage) {
+            counts = store(counts);
+            countsRowMags();
+        }
+        if (ppmi != null && ppmi.storage != storage) {
+            ppmi = store(ppmi);
+            ppmiRowMag = rowMags(ppmi);
+        }
+        if (dense > 0) dense(dense);
+    }
+
+    /**
+     * Values converted to the storage of the matrix.
+     */
+    private Values store(final Values values)
+    {
+        double[] doubles = new double[length];
+        for (int row = 0; row < height; row++) {
+            for (int i = rowIndex.get(row), end = rowIndex.get(row + 1); i < end; i++) doubles[i] = values.get(i, row);
+        }
+        return Values.of(storage, doubles, rowIndex, height);
+    }
+
+    /**
+     * Magnitudes of rows.
+     */
+    private DoubleBuffer rowMags(final Values values)
+    {
+        double[] mags = new double[height];
+        for (int row = 0; row < height; row++) {
+            double mag = 0;
+            for (int i = rowIndex.get(row), end = rowIndex.get(row + 1); i < end; i++) {
+                double value = values.get(i, row);
+                mag += value * value;
+            }
+            mags[row] = Math.sqrt(mag);
+        }
+        return DoubleBuffer.wrap(mags);
     }
     
+    /**
+     * Sort the counts by cell (row, then col), in arrays of rows, cols and
+     * counts. The map of counts is sorted in place, no object by cell.
+     */
     public void sortData()
     {
-        int length = hash.size();
-        Entry[] sorter = new Entry[length];
-        int i = 0;
-        for (Map.Entry<IntPair, Counter> entry : hash.entrySet()) {
-            sorter[i] = new Entry(entry.getKey().x(), entry.getKey().y(), entry.getValue().count);
-            i++;
-        }
+        LongDoubleMap hash = this.hash;
+        this.hash = new LongDoubleMap();
+        sortData(hash);
+    }
+
+    /**
+     * Set data from maps of counts (ex: one by thread), same result as
+     * {@link #sortData()}. Maps are sorted in parallel, then merged, counts of a
+     * cell in more than one map are added. Maps are read only after.
+     */
+    public void sortData(final LongDoubleMap... maps)
+    {
+        if (readOnly) throw new IllegalStateException("Matrix mapped on a file, read only");
         long start = System.nanoTime();
-        /* too slow
-        TreeMap<IntPair, Counter> sorted = new TreeMap<>();
-        sorted.putAll(hash);
-        parallelSort() seems not faster
-        */
-        Arrays.parallelSort(sorter);
+        Arrays.stream(maps).parallel().forEach(LongDoubleMap::sort);
         System.out.println("Sort coocs " + ((System.nanoTime() - start) / 1000000) + " ms");
-        i = 0;
+        // first merge to count cells, second to fill arrays
+        int length = merge(maps, null, null, null);
         int[] rows = new int[length];
         int[] cols = new int[length];
         double[] counts = new double[length];
-        int height = -1;
-        int width = -1;
-        int row;
-        int col;
-        for (Entry entry: sorter)
-        {
-            row = entry.row;
-            if (height <= row) height = row + 1;
-            rows[i] = row;
-            
-            col = entry.col;
-            if (width <= col) width = col + 1;
-            cols[i] = col;
-            
-            counts[i] = entry.count;
-            i++;
+        merge(maps, rows, cols, counts);
+        int height = 0;
+        int width = 0;
+        for (int i = 0; i < length; i++) {
+            if (height <= rows[i]) height = rows[i] + 1;
+            if (width <= cols[i]) width = cols[i] + 1;
         }
-        hash.clear();
-        this.rows = rows;
-        this.cols = cols;
-        this.counts = counts;
+        this.rows = IntBuffer.wrap(rows);
+        this.cols = IntBuffer.wrap(cols);
+        this.counts = new Values(DOUBLE, DoubleBuffer.wrap(counts), null);
         this.width = width;
         this.height = height;
         this.length = length;
     }
+
+    /**
+     * Merge sorted maps, return count of cells, write them if arrays are not
+     * null.
+     */
+    private static int merge(final LongDoubleMap[] maps, final int[] rows, final int[] cols, final double[] counts)
+    {
+        final int n = maps.length;
+        final int[] pos = new int[n];
+        int length = 0;
+        while (true) {
+            // smallest key at the head of the maps
+            long key = Long.MAX_VALUE;
+            boolean found = false;
+            for (int m = 0; m < n; m++) {
+                if (pos[m] >= maps[m].size()) continue;
+                long k = maps[m].key(pos[m]);
+                if (!found || k < key) key = k;
+                found = true;
+            }
+            if (!found) break;
+            double count = 0;
+            for (int m = 0; m < n; m++) {
+                if (pos[m] >= maps[m].size()) continue;
+                if (maps[m].key(pos[m]) != key) continue;
+                count += maps[m].value(pos[m]);
+                pos[m]++;
+            }
+            if (rows != null) {
+                rows[length] = LongDoubleMap.row(key);
+                cols[length] = LongDoubleMap.col(key);
+                counts[length] = count;
+            }
+            length++;
+        }
+        return length;
+    }
     
     
+    /**
+     * Start index of each row in cells (CSR), an empty row starts where the
+     * next one starts.
+     */
     public void indexRows()
     {
         int[] rowsIndex = new int[height+1];
-        Arrays.fill(rowsIndex, -1);
-        int row;
-        int rowLast = -1;
-        int length = rows.length;
-        int[] rows = this.rows;
-        for (int i = 0; i < length; i++)
-        {
-            row = rows[i];
-            if (row != rowLast) rowsIndex[row] = i;
-            rowLast = row;
-        }
-        rowsIndex[height] = length;
-        this.rowIndex = rowsIndex;
+        int length = this.length;
+        IntBuffer rows = this.rows;
+        for (int i = 0; i < length; i++) rowsIndex[rows.get(i) + 1]++;
+        for (int row = 0; row < height; row++) rowsIndex[row + 1] += rowsIndex[row];
+        this.rowIndex = IntBuffer.wrap(rowsIndex);
     }
     
     public void sumLines()
@@ -151,32 +344,28 @@ public class SparseMat {
         int[] rowSize = new int[height];
         int[] colSize = new int[width];
         for(int i=0; i < length; i++) {
-            count = counts[i];
-            rowSum[rows[i]] += count;
-            colSum[cols[i]] += count;
-            rowSize[rows[i]]++;
-            colSize[cols[i]]++;
+            int row = rows.get(i);
+            int col = cols.get(i);
+            count = counts.get(i, row);
+            rowSum[row] += count;
+            colSum[col] += count;
+            rowSize[row]++;
+            colSize[col]++;
             sum += count;
         }
         this.sum = sum;
-        this.countsRowSum = rowSum;
-        this.countsColSum = colSum;
-        this.rowSize = rowSize;
-        this.colSize = colSize;
+        this.countsRowSum = DoubleBuffer.wrap(rowSum);
+        this.countsColSum = DoubleBuffer.wrap(colSum);
+        this.rowSize = IntBuffer.wrap(rowSize);
+        this.colSize = IntBuffer.wrap(colSize);
     }
+
+    /**
+     * Magnitudes of rows of counts, as stored.
+     */
     public void countsRowMags()
     {
-        double[] values = this.counts;
-        countsRowMag = new double[height];
-        for(int row = 0; row < height; row++) {
-            int start = rowIndex[row];
-            int end = rowIndex[row+1];
-            float mag = 0;
-            for (int i=start; i < end; i++) {
-                mag += values[i] * values[i];
-            }
-            countsRowMag[row] = Math.sqrt(mag);
-        }
+        this.countsRowMag = rowMags(counts);
     }
 
     /**
@@ -185,61 +374,278 @@ public class SparseMat {
     public void ppmi(double laplace)
     {
         double cds = 1;
-        int[] rows = this.rows;
-        int[] cols = this.cols;
-        int length = counts.length;
+        IntBuffer rows = this.rows;
+        IntBuffer cols = this.cols;
+        Values counts = this.counts;
+        int length = this.length;
         double[] rowSum = new double[height];
-        for(int i=0; i < height; i++) rowSum[i] = laplace * (width - rowSize[i]);
+        for(int i=0; i < height; i++) rowSum[i] = laplace * (width - rowSize.get(i));
         double[] colSum = new double[width];
         double cdsLaplace = Math.pow(laplace, cds);
-        for(int i=0; i < width; i++) colSum[i] = cdsLaplace * (height - colSize[i]);
+        for(int i=0; i < width; i++) colSum[i] = cdsLaplace * (height - colSize.get(i));
         
         double count;
         double ppmiSum = 0;
         // pop sums
         for(int i=0; i < length; i++) {
-            count = counts[i];
-            rowSum[rows[i]] += (count + laplace);
-            colSum[cols[i]] += (count + laplace);
+            int row = rows.get(i);
+            count = counts.get(i, row);
+            rowSum[row] += (count + laplace);
+            colSum[cols.get(i)] += (count + laplace);
         }
         // for (int i=0; i < height; i++) rowSum[i] /= ppmiSum;
         // for (int i=0; i < width; i++) colSum[i] /= ppmiSum;
 
         double[] ppmi = new double[length];
-        double[] rowMag = new double[height];
         for(int i=0; i < length; i++) {
-            double cell = Math.log( (double)((counts[i]+laplace) * sum) / (double)(rowSum[rows[i]] * colSum[cols[i]]) ) / LOG2;
+            int row = rows.get(i);
+            double cell = Math.log( (double)((counts.get(i, row)+laplace) * sum) / (double)(rowSum[row] * colSum[cols.get(i)]) ) / LOG2;
             if (cell < 0) cell = 0;
-            else rowMag[rows[i]] += cell * cell;
             ppmi[i] = cell;
         }
-        for (int i=0; i < height; i++) rowMag[i] = Math.sqrt(rowMag[i]);
-        this.ppmiRowMag = rowMag;
-        this.ppmi = ppmi;
+        this.ppmi = Values.of(storage, ppmi, rowIndex, height);
+        this.ppmiRowMag = rowMags(this.ppmi);
+        if (dense > 0) ppmiDense = denseBlock(this.ppmi);
     }
 
 
-    
+    /**
+     * Build the col index (CSC) from the cells sorted by row (CSR), counting
+     * sort, cells of a col stay sorted by row. Cells are not copied, the index
+     * gives their position, for counts or ppmi.
+     */
+    public void indexCols()
+    {
+        int length = this.length;
+        int width = this.width;
+        IntBuffer cols = this.cols;
+        int[] colIndex = new int[width + 1];
+        for (int i = 0; i < length; i++) colIndex[cols.get(i) + 1]++;
+        for (int col = 0; col < width; col++) colIndex[col + 1] += colIndex[col];
+        int[] pos = Arrays.copyOf(colIndex, width);
+        int[] colCells = new int[length];
+        for (int i = 0; i < length; i++) colCells[pos[cols.get(i)]++] = i;
+        this.colCells = IntBuffer.wrap(colCells);
+        this.colIndex = IntBuffer.wrap(colIndex);
+    }
+
+    /**
+     * Dot products of a row with the rows sharing at least one col, by the col
+     * index, cost is the size of the overlap, not the height of the matrix. If
+     * there is a dense block, first cols may be a product with all the block,
+     * if their cols in the col index are longer.
+     *
+     * @param dots
+     *            products by row, should be filled with 0, only candidates are
+     *            written, to reset by caller
+     * @param seen
+     *            flags by row, should be false, reset before return
+     * @return candidate rows, sorted
+     */
+    int[] dots(final int row, final Values values, final double[] dots, final boolean[] seen)
+    {
+        final IntBuffer rows = this.rows;
+        final IntBuffer cols = this.cols;
+        final IntBuffer colIndex = this.colIndex;
+        final IntBuffer colCells = this.colCells;
+        int[] candidates = new int[64];
+        int n = 0;
+        final double scale = values.scale(row);
+        double[] block = block(values);
+        int start = rowIndex.get(row);
+        final int end = rowIndex.get(row + 1);
+        if (block != null) {
+            // dense product with all the block only if cheaper than the cols of the col index
+            final int skip = skip(start, end);
+            long cost = 0;
+            for (int i = start; i < skip; i++) cost += colIndex.get(cols.get(i) + 1) - colIndex.get(cols.get(i));
+            if (cost * 4 > (long) height * dense) start = skip;
+            else block = null;
+        }
+        for (int i = start; i < end; i++) {
+            final double value = values.raw(i) * scale;
+            if (value == 0) continue;
+            final int col = cols.get(i);
+            for (int j = colIndex.get(col), jEnd = colIndex.get(col + 1); j < jEnd; j++) {
+                final int cell = colCells.get(j);
+                final int r = rows.get(cell);
+                // scale of row r is applied after
+                dots[r] += value * values.raw(cell);
+                if (seen[r]) continue;
+                seen[r] = true;
+                if (n == candidates.length) candidates = Arrays.copyOf(candidates, n * 2);
+                candidates[n++] = r;
+            }
+        }
+        if (values.scales != null) {
+            for (int k = 0; k < n; k++) dots[candidates[k]] *= values.scale(candidates[k]);
+        }
+        if (block != null && start > rowIndex.get(row)) {
+            final int dense = this.dense;
+            final int off = row * dense;
+            for (int r = 0; r < height; r++) {
+                final double dot = dense(block, off, r * dense, dense);
+                if (dot == 0) continue;
+                dots[r] += dot;
+                if (seen[r]) continue;
+                seen[r] = true;
+                if (n == candidates.length) candidates = Arrays.copyOf(candidates, n * 2);
+                candidates[n++] = r;
+            }
+        }
+        for (int k = 0; k < n; k++) seen[candidates[k]] = false;
+        Arrays.sort(candidates, 0, n);
+        return Arrays.copyOf(candidates, n);
+    }
+
+    /**
+     * Rows most similar to a row (cosine). Only rows sharing a non zero col
+     * with the row are scored, their dot products are added through the col
+     * index, then cosines are selected in parallel (fork-join), a top by task,
+     * tops are merged.
+     */
     public Top<Integer> sims(int row, final int mode, int topSize) 
     {
-        Top<Integer> top = new Top<Integer>(topSize);
-        int height = this.height;
-        double dist;
-        for(int i = 0; i < height; i++) {
-            if (mode == this.PPMI) dist = cosine(row, i, ppmi, ppmiRowMag);
-            else dist = cosine(row, i, counts, countsRowMag);
-            top.push(dist, i);
+        final Values values;
+        final DoubleBuffer mags;
+        if (mode == PPMI) {
+            values = ppmi;
+            mags = ppmiRowMag;
+        }
+        else {
+            values = counts;
+            mags = countsRowMag;
+        }
+        if (mags.get(row) == 0) return new Top<Integer>(topSize);
+        Scratch scratch = scratches.get();
+        if (scratch.dots.length < height) {
+            scratch = new Scratch(height);
+            scratches.set(scratch);
+        }
+        final double[] dots = scratch.dots;
+        int[] candidates = dots(row, values, dots, scratch.seen);
+        try {
+            return ForkJoinPool.commonPool().invoke(new Sims(row, dots, mags, candidates, 0, candidates.length, topSize));
+        }
+        finally {
+            // only the candidates were written
+            for (int r : candidates) dots[r] = 0;
+        }
+    }
+
+    /**
+     * Arrays by row for the products of a query, one by thread, clean between
+     * queries.
+     */
+    private static class Scratch
+    {
+        final double[] dots;
+        final boolean[] seen;
+
+        Scratch(final int height)
+        {
+            dots = new double[height];
+            seen = new boolean[height];
+        }
+    }
+
+    /**
+     * Select best cosines in a slice of candidate rows, split it if too big.
+     */
+    private class Sims extends RecursiveTask<Top<Integer>>
+    {
+        private static final long serialVersionUID = 1L;
+        final int row;
+        final double[] dots;
+        final DoubleBuffer mags;
+        final int[] candidates;
+        final int start;
+        final int end;
+        final int topSize;
+
+        Sims(final int row, final double[] dots, final DoubleBuffer mags, final int[] candidates, final int start, final int end, final int topSize)
+        {
+            this.row = row;
+            this.dots = dots;
+            this.mags = mags;
+            this.candidates = candidates;
+            this.start = start;
+            this.end = end;
+            this.topSize = topSize;
+        }
+
+        @Override
+        protected Top<Integer> compute()
+        {
+            if (end - start > SIMS_CHUNK) {
+                int mid = (start + end) >>> 1;
+                Sims left = new Sims(row, dots, mags, candidates, start, mid, topSize);
+                left.fork();
+                Top<Integer> right = new Sims(row, dots, mags, candidates, mid, end, topSize).compute();
+                Top<Integer> top = left.join();
+                for (Top.Entry<Integer> entry: right) top.push(entry.score(), entry.value());
+                return top;
+            }
+            Top<Integer> top = new Top<Integer>(topSize);
+            final double mag = mags.get(row);
+            for (int i = start; i < end; i++) {
+                int r = candidates[i];
+                double rMag = mags.get(r);
+                if (rMag == 0) continue;
+                top.push(dots[r] / (mag * rMag), r);
+            }
+            return top;
         }
-        return top;
     }
 
     
-    public double cosine(final int row1, final int row2, final double[] values, final double[] mags)
+    /**
+     * Cosine of 2 rows, with the kernel chosen, see {@link #kernel(int)} and
+     * {@link #dense(int)}.
+     */
+    public double cosine(final int row1, final int row2, final Values values, final DoubleBuffer mags)
+    {
+        if (mags.get(row1) == 0 || mags.get(row2) == 0) return 0;
+        int i1 = rowIndex.get(row1);
+        int i1End = rowIndex.get(row1+1);
+        int i2 = rowIndex.get(row2);
+        int i2End = rowIndex.get(row2+1);
+        double dist = 0;
+        final double[] block = block(values);
+        if (block != null) {
+            // first cols, in dense block
+            dist = dense(block, row1 * dense, row2 * dense, dense);
+            i1 = skip(i1, i1End);
+            i2 = skip(i2, i2End);
+        }
+        if (kernel == GALLOP) dist += gallop(row1, i1, i1End, row2, i2, i2End, values);
+        else dist += merge(row1, i1, i1End, row2, i2, i2End, values);
+        return dist / (mags.get(row1) * mags.get(row2));
+    }
+
+    /**
+     * Product of 2 rows in a dense block.
+     */
+    private static double dense(final double[] block, final int off1, final int off2, final int n)
+    {
+        double sum = 0;
+        for (int c = 0; c < n; c++) sum += block[off1 + c] * block[off2 + c];
+        return sum;
+    }
+
+    /**
+     * First cell of a row after the cols of the dense block.
+     */
+    private int skip(final int start, final int end)
+    {
+        return gallop(start, end, dense);
+    }
+
+    /**
+     * Product of 2 rows, merge of sorted cols.
+     */
+    private double merge(final int row1, int i1, final int i1End, final int row2, int i2, final int i2End, final Values values)
     {
-        int i1 = rowIndex[row1];
-        int i1End = rowIndex[row1+1];
-        int i2 = rowIndex[row2];
-        int i2End = rowIndex[row2+1];
         double dist = 0;
         while (true) {
             if (i1 == i1End || i2 == i2End) {
@@ -255,8 +661,8 @@ public class SparseMat {
                 continue;
             }
             */
-            int col1 = cols[i1];
-            int col2 = cols[i2];
+            int col1 = cols.get(i1);
+            int col2 = cols.get(i2);
             if(col1 < col2) { // forward row1
                 i1++;
             }
@@ -264,13 +670,55 @@ public class SparseMat {
                 i2++;
             }
             else if (col1 == col2) { // row1 and row2 intersection
-                dist += values[i1] * values[i2];
+                dist += values.get(i1, row1) * values.get(i2, row2);
                 i1++;
                 i2++;
             }
         }
-        if (mags[row1] == 0 || mags[row2] == 0) return 0;
-        return dist / (mags[row1] * mags[row2]);
+        return dist;
+    }
+
+    /**
+     * Product of 2 rows, each col of the shortest row is searched in the
+     * longest, from the last position found, by steps of 1, 2, 4…, then by
+     * bisection.
+     */
+    private double gallop(final int row1, final int i1, final int i1End, final int row2, final int i2, final int i2End, final Values values)
+    {
+        if (i1End - i1 > i2End - i2) return gallop(row2, i2, i2End, row1, i1, i1End, values);
+        double dist = 0;
+        int pos = i2;
+        for (int i = i1; i < i1End; i++) {
+            final int col = cols.get(i);
+            pos = gallop(pos, i2End, col);
+            if (pos >= i2End) break;
+            if (cols.get(pos) == col) dist += values.get(i, row1) * values.get(pos, row2);
+        }
+        return dist;
+    }
+
+    /**
+     * First cell from lo where col >= the col searched, or end.
+     */
+    private int gallop(int lo, final int end, final int col)
+    {
+        final IntBuffer cols = this.cols;
+        if (lo >= end || cols.get(lo) >= col) return lo;
+        int step = 1;
+        int hi = lo + 1;
+        while (hi < end && cols.get(hi) < col) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        if (hi > end) hi = end;
+        lo++;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cols.get(mid) < col) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
     }
 
     /* Test of a Labbé distance, very bad.
@@ -323,59 +771,405 @@ public class SparseMat {
     }
     */
     
+    /**
+     * Save the matrix, with its indexes, sums and magnitudes, and ppmi values
+     * if computed. The file can be loaded in memory, or mapped read only. All
+     * numbers are little endian, sections start on 8 bytes.
+     * <pre>
+     * byte[8] "ALIXSMAT"
+     * int     version
+     * int     height
+     * int     width
+     * int     length (count of cells)
+     * double  sum
+     * int     storage of values (DOUBLE, FLOAT, SHORT, BYTE)
+     * int     count of sections
+     * long[]  offset of each section, 0 if absent
+     * int[length] rows, int[length] cols, value[length] counts
+     * int[height + 1] rowIndex, int[width + 1] colIndex, int[length] colCells
+     * int[height] rowSize, int[width] colSize
+     * double[height] row sums, double[width] col sums, double[height] row magnitudes
+     * value[length] ppmi, double[height] ppmi row magnitudes
+     * float[height] counts scales, float[height] ppmi scales (quantized storage)
+     * </pre>
+     */
     public void save(String dstFile) throws IOException 
     {
-        int length = counts.length;
+        if (colIndex == null) indexCols();
+        Buffer[] sections = sections();
+        long[] offsets = new long[SECTIONS];
+        long size = align(HEADER_LEN + 8L * SECTIONS);
+        for (int sec = 0; sec < SECTIONS; sec++) {
+            if (sections[sec] == null) continue;
+            offsets[sec] = size;
+            size = align(size + bytes(sections[sec]));
+        }
         try(
-            FileChannel channel = new RandomAccessFile(dstFile, "rw").getChannel();
+            FileChannel channel = FileChannel.open(Paths.get(dstFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
         ) {
-            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, (CELL_BYTE_LEN ) * length);
-            for(int i = 0; i < length; i++) {
-                buf.putInt(rows[i]).putInt(cols[i]).putDouble(counts[i]);
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LEN + 8L * SECTIONS);
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            head.put(MAGIC).putInt(VERSION).putInt(height).putInt(width).putInt(length).putDouble(sum);
+            head.putInt(storage).putInt(SECTIONS);
+            for (long offset: offsets) head.putLong(offset);
+            for (int sec = 0; sec < SECTIONS; sec++) {
+                if (sections[sec] == null) continue;
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, offsets[sec], bytes(sections[sec]));
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (sections[sec] instanceof IntBuffer) {
+                    IntBuffer src = ((IntBuffer) sections[sec]).duplicate();
+                    src.rewind();
+                    buf.asIntBuffer().put(src);
+                }
+                else if (sections[sec] instanceof DoubleBuffer) {
+                    DoubleBuffer src = ((DoubleBuffer) sections[sec]).duplicate();
+                    src.rewind();
+                    buf.asDoubleBuffer().put(src);
+                }
+                else if (sections[sec] instanceof FloatBuffer) {
+                    FloatBuffer src = ((FloatBuffer) sections[sec]).duplicate();
+                    src.rewind();
+                    buf.asFloatBuffer().put(src);
+                }
+                else if (sections[sec] instanceof ShortBuffer) {
+                    ShortBuffer src = ((ShortBuffer) sections[sec]).duplicate();
+                    src.rewind();
+                    buf.asShortBuffer().put(src);
+                }
+                else {
+                    ByteBuffer src = ((ByteBuffer) sections[sec]).duplicate();
+                    src.rewind();
+                    buf.put(src);
+                }
             }
-            channel.close();
         }
     }
+
+    /**
+     * Load a matrix saved by {@link #save(String)}, data are copied in memory,
+     * the matrix can be modified.
+     */
     public void load(String srcFile) throws IOException 
     {
-        int length;
-        int[] rows;
-        int[] cols;
-        double[] counts;
-        int height = 0;
-        int width = 0;
+        map(Paths.get(srcFile), true);
+    }
+
+    /**
+     * Open a matrix saved by {@link #save(String)}, read only, with no copy,
+     * queries are answered from the mapped file (shared by the page cache).
+     * Only ppmi may be computed again (in memory).
+     */
+    public static SparseMat open(String srcFile) throws IOException
+    {
+        SparseMat mat = new SparseMat();
+        mat.map(Paths.get(srcFile), false);
+        return mat;
+    }
+
+    private void map(final Path file, final boolean copy) throws IOException
+    {
+        Buffer[] sections = new Buffer[SECTIONS];
         try(
-                FileChannel channel = new FileInputStream(srcFile).getChannel();
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
         ){
             long size = channel.size();
-            length = (int) (size / CELL_BYTE_LEN);
-            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
-            rows = new int[length];
-            cols = new int[length];
-            counts = new double[length];
-            for(int i = 0; i < length; i++) {
-                int row = buf.getInt();
-                if (height <= row) height = row + 1;
-                rows[i] = row;
-                
-                int col = buf.getInt();
-                if (width <= col) width = col + 1;
-                cols[i] = col;
-                
-                counts[i] = buf.getDouble();
+            if (size < HEADER_LEN) throw new IOException("Not a matrix file: " + file);
+            // mappings stay valid after the close of channel
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LEN);
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            head.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a matrix file: " + file);
+            int version = head.getInt();
+            if (version < 1 || version > VERSION) throw new IOException("Matrix file version " + version + " not supported: " + file);
+            height = head.getInt();
+            width = head.getInt();
+            length = head.getInt();
+            sum = head.getDouble();
+            // version 1, doubles only
+            storage = head.getInt();
+            int count = head.getInt();
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LEN, 8L * count);
+            table.order(ByteOrder.LITTLE_ENDIAN);
+            for (int sec = 0; sec < count && sec < SECTIONS; sec++) {
+                long offset = table.getLong();
+                if (offset == 0) continue;
+                char type = type(sec);
+                long bytes = (long)size(sec) * width(type);
+                if (offset + bytes > size) throw new IOException("Matrix file truncated: " + file);
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                sections[sec] = view(buf, type, copy);
             }
-            channel.close();
         }
-        this.length = length;
-        this.rows = rows;
-        this.cols = cols;
-        this.counts = counts;
-        this.width = width;
-        this.height = height;
-        indexRows();
-        sumLines();
-        countsRowMags();
+        sections(sections);
+        readOnly = !copy;
+    }
+
+    /**
+     * A section mapped, as a typed buffer, or copied.
+     */
+    private static Buffer view(final ByteBuffer buf, final char type, final boolean copy)
+    {
+        switch (type) {
+            case 'I':
+                IntBuffer ints = buf.asIntBuffer();
+                if (!copy) return ints;
+                int[] intArray = new int[ints.capacity()];
+                ints.get(intArray);
+                return IntBuffer.wrap(intArray);
+            case 'D':
+                DoubleBuffer doubles = buf.asDoubleBuffer();
+                if (!copy) return doubles;
+                double[] doubleArray = new double[doubles.capacity()];
+                doubles.get(doubleArray);
+                return DoubleBuffer.wrap(doubleArray);
+            case 'F':
+                FloatBuffer floats = buf.asFloatBuffer();
+                if (!copy) return floats;
+                float[] floatArray = new float[floats.capacity()];
+                floats.get(floatArray);
+                return FloatBuffer.wrap(floatArray);
+            case 'S':
+                ShortBuffer shorts = buf.asShortBuffer();
+                if (!copy) return shorts;
+                short[] shortArray = new short[shorts.capacity()];
+                shorts.get(shortArray);
+                return ShortBuffer.wrap(shortArray);
+            default:
+                if (!copy) return buf;
+                byte[] byteArray = new byte[buf.capacity()];
+                buf.get(byteArray);
+                return ByteBuffer.wrap(byteArray);
+        }
     }
+
+    /**
+     * Type of values in a section: I(nt), D(ouble), F(loat), S(hort), B(yte).
+     */
+    private char type(final int sec)
+    {
+        switch (sec) {
+            case SEC_COUNTS:
+            case SEC_PPMI:
+                return "DFSB".charAt(storage);
+            case SEC_ROW_SUM:
+            case SEC_COL_SUM:
+            case SEC_ROW_MAG:
+            case SEC_PPMI_ROW_MAG:
+                return 'D';
+            case SEC_COUNTS_SCALE:
+            case SEC_PPMI_SCALE:
+                return 'F';
+            default:
+                return 'I';
+        }
+    }
+
+    private static int width(final char type)
+    {
+        switch (type) {
+            case 'D':
+                return 8;
+            case 'S':
+                return 2;
+            case 'B':
+                return 1;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Count of values in a section.
+     */
+    private int size(final int sec)
+    {
+        switch (sec) {
+            case SEC_ROW_INDEX:
+                return height + 1;
+            case SEC_COL_INDEX:
+                return width + 1;
+            case SEC_ROW_SIZE:
+            case SEC_ROW_SUM:
+            case SEC_ROW_MAG:
+            case SEC_PPMI_ROW_MAG:
+            case SEC_COUNTS_SCALE:
+            case SEC_PPMI_SCALE:
+                return height;
+            case SEC_COL_SIZE:
+            case SEC_COL_SUM:
+                return width;
+            default:
+                return length;
+        }
+    }
+
+    private Buffer[] sections()
+    {
+        return new Buffer[] { rows, cols, counts.buffer(), rowIndex, colIndex, colCells, rowSize, colSize,
+                countsRowSum, countsColSum, countsRowMag, (ppmi == null) ? null : ppmi.buffer(), ppmiRowMag,
+                counts.scales, (ppmi == null) ? null : ppmi.scales };
+    }
+
+    private void sections(final Buffer[] sections)
+    {
+        rows = (IntBuffer) sections[SEC_ROWS];
+        cols = (IntBuffer) sections[SEC_COLS];
+        counts = new Values(storage, sections[SEC_COUNTS], (FloatBuffer) sections[SEC_COUNTS_SCALE]);
+        rowIndex = (IntBuffer) sections[SEC_ROW_INDEX];
+        colIndex = (IntBuffer) sections[SEC_COL_INDEX];
+        colCells = (IntBuffer) sections[SEC_COL_CELLS];
+        rowSize = (IntBuffer) sections[SEC_ROW_SIZE];
+        colSize = (IntBuffer) sections[SEC_COL_SIZE];
+        countsRowSum = (DoubleBuffer) sections[SEC_ROW_SUM];
+        countsColSum = (DoubleBuffer) sections[SEC_COL_SUM];
+        countsRowMag = (DoubleBuffer) sections[SEC_ROW_MAG];
+        ppmi = (sections[SEC_PPMI] == null) ? null
+                : new Values(storage, sections[SEC_PPMI], (FloatBuffer) sections[SEC_PPMI_SCALE]);
+        ppmiRowMag = (DoubleBuffer) sections[SEC_PPMI_ROW_MAG];
+    }
+
+    private static long bytes(final Buffer buf)
+    {
+        int width = 4;
+        if (buf instanceof DoubleBuffer) width = 8;
+        else if (buf instanceof ShortBuffer) width = 2;
+        else if (buf instanceof ByteBuffer) width = 1;
+        return (long)buf.capacity() * width;
+    }
+
+    private static long align(final long pos)
+    {
+        return (pos + 7) & ~7L;
+    }
+
+    /**
+     * Values of the cells (counts or ppmi), stored as doubles, floats, or
+     * quantized by row, shorts or bytes with a scale by row (value = raw ×
+     * scale, the row max gives the full range).
+     */
+    public static class Values
+    {
+        /** {@link SparseMat#DOUBLE}, {@link SparseMat#FLOAT}, {@link SparseMat#SHORT} or {@link SparseMat#BYTE} */
+        final int storage;
+        final DoubleBuffer doubles;
+        final FloatBuffer floats;
+        final ShortBuffer shorts;
+        final ByteBuffer bytes;
+        /** Scale by row, for quantized values, or null */
+        final FloatBuffer scales;
+
+        Values(final int storage, final Buffer buf, final FloatBuffer scales)
+        {
+            this.storage = storage;
+            this.doubles = (storage == DOUBLE) ? (DoubleBuffer) buf : null;
+            this.floats = (storage == FLOAT) ? (FloatBuffer) buf : null;
+            this.shorts = (storage == SHORT) ? (ShortBuffer) buf : null;
+            this.bytes = (storage == BYTE) ? (ByteBuffer) buf : null;
+            if ((storage == SHORT || storage == BYTE) && scales == null)
+                throw new IllegalArgumentException("Quantized values without scales");
+            this.scales = scales;
+        }
+
+        /**
+         * Store values, quantized if requested.
+         *
+         * @param values
+         *            values of cells, sorted by row
+         * @param rowIndex
+         *            start of each row in values
+         */
+        static Values of(final int storage, final double[] values, final IntBuffer rowIndex, final int height)
+        {
+            final int length = values.length;
+            switch (storage) {
+                case DOUBLE:
+                    return new Values(storage, DoubleBuffer.wrap(values), null);
+                case FLOAT:
+                    float[] floats = new float[length];
+                    for (int i = 0; i < length; i++) floats[i] = (float) values[i];
+                    return new Values(storage, FloatBuffer.wrap(floats), null);
+                case SHORT:
+                case BYTE:
+                    final int max = (storage == SHORT) ? Short.MAX_VALUE : Byte.MAX_VALUE;
+                    float[] scales = new float[height];
+                    short[] shorts = (storage == SHORT) ? new short[length] : null;
+                    byte[] bytes = (storage == BYTE) ? new byte[length] : null;
+                    for (int row = 0; row < height; row++) {
+                        final int start = rowIndex.get(row);
+                        final int end = rowIndex.get(row + 1);
+                        double rowMax = 0;
+                        for (int i = start; i < end; i++) rowMax = Math.max(rowMax, Math.abs(values[i]));
+                        if (rowMax == 0) continue;
+                        final float scale = (float) (rowMax / max);
+                        scales[row] = scale;
+                        for (int i = start; i < end; i++) {
+                            final long raw = Math.max(-max, Math.min(max, Math.round(values[i] / scale)));
+                            if (shorts != null) shorts[i] = (short) raw;
+                            else bytes[i] = (byte) raw;
+                        }
+                    }
+                    if (shorts != null) return new Values(storage, ShortBuffer.wrap(shorts), FloatBuffer.wrap(scales));
+                    return new Values(storage, ByteBuffer.wrap(bytes), FloatBuffer.wrap(scales));
+                default:
+                    throw new IllegalArgumentException("Unknown storage: " + storage);
+            }
+        }
+
+        /**
+         * Stored value of a cell, to multiply by the scale of its row.
+         */
+        final double raw(final int cell)
+        {
+            switch (storage) {
+                case DOUBLE:
+                    return doubles.get(cell);
+                case FLOAT:
+                    return floats.get(cell);
+                case SHORT:
+                    return shorts.get(cell);
+                default:
+                    return bytes.get(cell);
+            }
+        }
+
+        /**
+         * Scale of a row, 1 if not quantized.
+         */
+        final double scale(final int row)
+        {
+            if (scales == null) return 1;
+            return scales.get(row);
+        }
+
+        /**
+         * Value of a cell.
+         */
+        final double get(final int cell, final int row)
+        {
+            return raw(cell) * scale(row);
+        }
+
+        /**
+         * Buffer of stored values
+         */
+        Buffer buffer()
+        {
+            switch (storage) {
+                case DOUBLE:
+                    return doubles;
+                case FLOAT:
+                    return floats;
+                case SHORT:
+                    return shorts;
+                default:
+                    return bytes;
+            }
+        }
+    }
+
     public static class Counter 
     {
         private double count = 0;
@@ -403,12 +1197,12 @@ public class SparseMat {
     {
         DecimalFormat df = new DecimalFormat("0.####");
         StringBuffer sb = new StringBuffer();
-        int length = counts.length;
+        int length = this.length;
         int rowLast = 0;
         int colLast = 0;
         for(int i = 0; i < length; i++) {
-            int row = rows[i];
-            int col = cols[i];
+            int row = rows.get(i);
+            int col = cols.get(i);
             if (rowLast != row) {
                 sb.append('\n');
                 colLast= 0;
@@ -418,34 +1212,77 @@ public class SparseMat {
             for(int j = (col - colLast -1); j > 0; j--) {
                 sb.append("\t");
             }
-            if (mode == PPMI) sb.append(df.format(ppmi[i])+'\t');
+            if (mode == PPMI) sb.append(df.format(ppmi.get(i, row))+'\t');
             // else if (mode == PMI) sb.append(df.format(pmi[i])+'\t');
-            else sb.append(""+counts[i]+'\t');
+            else sb.append(""+counts.get(i, row)+'\t');
             colLast = col;
         }
         return sb.toString();
     }
     
+    /**
+     * Benchmark of kernels, on a random matrix, cols in zipfian order (first
+     * cols are the most frequent).
+     */
+    static void bench()
+    {
+        final int height = 50000;
+        SparseMat mat = new SparseMat();
+        java.util.Random random = new java.util.Random(1);
+        for (int row = 0; row < height; row++) {
+            int n = 10 + random.nextInt(200);
+            for (int k = 0; k < n; k++) mat.inc(row, (int) (Math.pow(random.nextDouble(), 4) * height));
+        }
+        mat.compile();
+        mat.ppmi(0);
+        final int queries = 50;
+        for (int loop = 0; loop < 3; loop++) {
+            for (int dense : new int[] { 0, 64, 256 }) {
+                mat.dense(dense);
+                for (int kernel : new int[] { MERGE, GALLOP }) {
+                    mat.kernel(kernel);
+                    double check = 0;
+                    long time = System.nanoTime();
+                    for (int q = 0; q < queries; q++) {
+                        for (int row = 0; row < height; row += 10) check += mat.cosine(q * 97, row, mat.ppmi, mat.ppmiRowMag);
+                    }
+                    System.out.print("dense=" + dense + " " + ((kernel == MERGE) ? "merge " : "gallop")
+                            + " cosines " + ((System.nanoTime() - time) / 1000000) + " ms (" + (float) check + ")   ");
+                }
+                double check = 0;
+                long time = System.nanoTime();
+                for (int q = 0; q < queries; q++) {
+                    for (Top.Entry<Integer> entry : mat.sims(q * 97, PPMI, 10)) check += entry.score();
+                }
+                System.out.println("   sims " + ((System.nanoTime() - time) / 1000000) + " ms (" + (float) check + ")");
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception
     {
+        if (args.length > 0 && "bench".equals(args[0])) {
+            bench();
+            return;
+        }
         SparseMat mat = new SparseMat();
-        mat.hash.put(new IntPair(2, 0), new Counter(5));
-        mat.hash.put(new IntPair(2, 2), new Counter(5));
-        mat.hash.put(new IntPair(2, 4), new Counter(5));
-        mat.hash.put(new IntPair(0, 0), new Counter(10));
-        mat.hash.put(new IntPair(0, 2), new Counter(10));
-        mat.hash.put(new IntPair(0, 4), new Counter(10));
-        // mat.hash.put(new IntPair(0, 10), new Counter(10));
-        mat.hash.put(new IntPair(1, 0), new Counter(10));
-        mat.hash.put(new IntPair(1, 1), new Counter(3));
-        mat.hash.put(new IntPair(1, 3), new Counter(10));
-        mat.hash.put(new IntPair(1, 5), new Counter(10));
+        mat.add(2, 0, 5);
+        mat.add(2, 2, 5);
+        mat.add(2, 4, 5);
+        mat.add(0, 0, 10);
+        mat.add(0, 2, 10);
+        mat.add(0, 4, 10);
+        // mat.add(0, 10, 10);
+        mat.add(1, 0, 10);
+        mat.add(1, 1, 3);
+        mat.add(1, 3, 10);
+        mat.add(1, 5, 10);
         mat.compile();
         System.out.println(mat);
         System.out.print("rowSize");
-        System.out.println(Arrays.toString(mat.rowSize));
+        System.out.println(Arrays.toString(mat.rowSize.array()));
         System.out.print("colSize");
-        System.out.println(Arrays.toString(mat.colSize));
+        System.out.println(Arrays.toString(mat.colSize.array()));
         System.out.println("sum = "+mat.sum);
         mat.save("test.dat");
         System.out.println("     --- save, load");
@@ -454,7 +1291,7 @@ public class SparseMat {
         mat.ppmi(0);
         System.out.println("height="+mat.height+" width="+mat.width);
         System.out.println(mat.toString(SparseMat.PPMI));
-        System.out.println(Arrays.toString(mat.ppmiRowMag));
+        System.out.println(Arrays.toString(mat.ppmiRowMag.array()));
         int rowLength = 3;
         for(int i=0; i < rowLength; i++) {
             for(int j=0; j < rowLength; j++) {
@@ -462,5 +1299,16 @@ public class SparseMat {
                 System.out.println(mat.cosine(i, j, mat.ppmi, mat.ppmiRowMag));
             }
         }
+        System.out.println("\nsims(0)");
+        System.out.println(mat.sims(0, SparseMat.PPMI, 3));
+        mat.save("test.dat");
+        System.out.println("     --- save, open read only");
+        SparseMat map = SparseMat.open("test.dat");
+        System.out.println(map.toString(SparseMat.PPMI));
+        System.out.println(map.sims(0, SparseMat.PPMI, 3));
+        System.out.println("     --- bytes");
+        mat.storage(SparseMat.BYTE);
+        System.out.println(mat.toString(SparseMat.PPMI));
+        System.out.println(mat.sims(0, SparseMat.PPMI, 3));
     }
 }